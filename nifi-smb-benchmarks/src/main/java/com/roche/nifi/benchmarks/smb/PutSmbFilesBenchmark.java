@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.benchmarks.smb;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.roche.nifi.processors.smb.InMemorySmbServer;
+import com.roche.nifi.processors.smb.PutSmbFiles;
+
+/**
+ * Measures PutSmbFiles writing batches to an in-memory SMB server with a
+ * simulated round trip time, bandwidth and maximum write size.
+ *
+ * Besides the batches per second, the files and megabytes counters report
+ * files/s and MB/s. Run with {@code -prof gc} for the allocation rate, e.g.
+ * {@code java -jar target/benchmarks.jar PutSmbFilesBenchmark -prof gc -p fileSize=4096}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(1)
+public class PutSmbFilesBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    @Param({"1", "8"})
+    public int concurrentWrites;
+
+    @Param({"4"})
+    public int pipelineDepth;
+
+    @Param({"1"})
+    public long latencyMillis;
+
+    /** Megabytes per second, 0 for no limit. */
+    @Param({"0"})
+    public long bandwidth;
+
+    @Param({"1048576"})
+    public int maxWriteSize;
+
+    private InMemorySmbServer server;
+    private TestRunner testRunner;
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = new InMemorySmbServer()
+            .withLatency(latencyMillis, TimeUnit.MILLISECONDS)
+            .withBandwidth(bandwidth * 1024 * 1024)
+            .withMaxWriteSize(maxWriteSize)
+            .withRetainedContent(false);
+
+        testRunner = TestRunners.newTestRunner(PutSmbFiles.class);
+        ((PutSmbFiles) testRunner.getProcessor()).initSmbClient(server.newClient());
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "benchmark");
+        testRunner.setProperty(PutSmbFiles.SHARE, "share");
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, "out");
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.setProperty(PutSmbFiles.BATCH_SIZE, String.valueOf(batchSize));
+        testRunner.setProperty(PutSmbFiles.MAX_CONCURRENT_WRITES, String.valueOf(concurrentWrites));
+        testRunner.setProperty(PutSmbFiles.WRITE_PIPELINE_DEPTH, String.valueOf(pipelineDepth));
+
+        content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+
+        // schedules the processor once for all invocations
+        testRunner.run(1, false, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void enqueueBatch() {
+        testRunner.clearTransferState();
+        for (int i = 0; i < batchSize; i++) {
+            // the names repeat so the server keeps a bounded number of files
+            testRunner.enqueue(content, Collections.singletonMap("filename", "file-" + i));
+        }
+    }
+
+    @Benchmark
+    public void putBatch(final Throughput throughput) {
+        testRunner.run(1, false, false);
+        if (!testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_FAILURE).isEmpty()) {
+            throw new IllegalStateException("Files were routed to failure");
+        }
+        throughput.files += batchSize;
+        throughput.megabytes += (double) batchSize * fileSize / (1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        testRunner.run(1, true, false);
+        server.close();
+    }
+
+    /**
+     * Reported by JMH as rates next to the batch throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long files;
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+            megabytes = 0;
+        }
+    }
+}
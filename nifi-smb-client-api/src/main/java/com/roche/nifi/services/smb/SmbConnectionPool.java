@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.services.smb;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.io.IOException;
+
+@Tags({"samba, smb, cifs, connection, pool"})
+@CapabilityDescription("Provides authenticated SMB share handles from a pool shared by all processors referencing this service.")
+public interface SmbConnectionPool extends ControllerService {
+
+    /**
+     * Borrows an authenticated handle to the given share, waiting for one to
+     * become available if the pool limit for that share has been reached.
+     * The lease must be closed to hand the handle back to the pool.
+     */
+    SmbShareLease borrow(String hostname, String shareName) throws IOException;
+
+    /**
+     * Same as {@link #borrow(String, String)}, but over the given one of several
+     * independent TCP connections to the host. Index 0 is the connection used by
+     * {@link #borrow(String, String)}.
+     */
+    SmbShareLease borrow(String hostname, String shareName, int connectionIndex) throws IOException;
+}
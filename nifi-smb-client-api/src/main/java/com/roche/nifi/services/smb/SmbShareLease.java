@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.services.smb;
+
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+
+import java.io.Closeable;
+
+/**
+ * An authenticated share handle on loan from an {@link SmbConnectionPool}.
+ * Closing it hands it back to the pool instead of disconnecting.
+ */
+public interface SmbShareLease extends Closeable {
+
+    DiskShare getShare();
+
+    /**
+     * The connection the share was opened over, e.g. to look up the negotiated read and write sizes.
+     */
+    Connection getConnection();
+
+    String getHostname();
+
+    String getShareName();
+
+    boolean isHealthy();
+
+    /**
+     * Marks this handle as broken so it is disconnected rather than reused when closed.
+     */
+    void invalidate();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.roche.nifi.services.smb.SmbConnectionPool;
+import com.roche.nifi.services.smb.SmbShareLease;
+
+/**
+ * Base of the processors which work on samba shares. Holds the connection
+ * and credential properties they have in common and lends them shares,
+ * either from the SMB Connection Pool if one is set or from a session pool
+ * of the processor's own.
+ */
+public abstract class AbstractSmbProcessor extends AbstractProcessor {
+
+    public static final PropertyDescriptor CONNECTION_POOL = new PropertyDescriptor.Builder()
+            .name("SMB Connection Pool")
+            .description("Optional controller service providing pooled sessions shared with other processors. " +
+                "When set, authentication and session pooling are configured on the service instead of on this processor.")
+            .required(false)
+            .identifiesControllerService(SmbConnectionPool.class)
+            .build();
+    public static final PropertyDescriptor DOMAIN = new PropertyDescriptor.Builder()
+            .name("Domain")
+            .description("The domain use for authentication. Not used when an SMB Connection Pool is set.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor USERNAME = new PropertyDescriptor.Builder()
+            .name("Username")
+            .description("The username use for authentication. Not used when an SMB Connection Pool is set.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor PASSWORD = new PropertyDescriptor.Builder()
+            .name("Password")
+            .description("The password use for authentication. Not used when an SMB Connection Pool is set.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .sensitive(true)
+            .build();
+
+    private SMBClient smbClient = null;
+
+    private Supplier<SMBClient> smbClientFactory = null;
+
+    private volatile SmbSessionPool sessionPool = null;
+
+    private volatile SmbConnectionPool connectionPool = null;
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (validationContext.getProperty(CONNECTION_POOL).isSet()) {
+            for (final PropertyDescriptor credential : new PropertyDescriptor[]{DOMAIN, USERNAME, PASSWORD}) {
+                if (validationContext.getProperty(credential).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                        .subject(credential.getDisplayName())
+                        .valid(false)
+                        .explanation("credentials must be configured on the SMB Connection Pool when one is set")
+                        .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Takes the SMB Connection Pool if one is set, otherwise opens a session
+     * pool authenticated with the credentials of the processor.
+     */
+    protected void openSessionPool(final ProcessContext context, final int maxIdleSessions, final long idleTimeoutMillis,
+            final long keepAliveIntervalMillis) {
+        if (context.getProperty(CONNECTION_POOL).isSet()) {
+            connectionPool = context.getProperty(CONNECTION_POOL).asControllerService(SmbConnectionPool.class);
+            return;
+        }
+
+        final String domain = context.getProperty(DOMAIN).getValue();
+        final String username = context.getProperty(USERNAME).getValue();
+        String password = context.getProperty(PASSWORD).getValue();
+
+        AuthenticationContext ac = null;
+        if (username != null) {
+            if (password == null) {
+                password = "";
+            }
+            ac = new AuthenticationContext(
+                username,
+                password.toCharArray(),
+                domain);
+        } else {
+            ac = AuthenticationContext.anonymous();
+        }
+
+        if (smbClient == null) {
+            initSmbClient();
+        }
+        sessionPool = new SmbSessionPool(smbClient, smbClientFactory, ac, maxIdleSessions, idleTimeoutMillis, keepAliveIntervalMillis);
+    }
+
+    /**
+     * Closes the sessions of the processor's own pool. The sessions of an SMB
+     * Connection Pool stay with the service.
+     */
+    protected void closeSessionPool() {
+        connectionPool = null;
+        if (sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
+        }
+    }
+
+    public void initSmbClient() {
+        initSmbClient(new SMBClient());
+        this.smbClientFactory = SMBClient::new;
+    }
+
+    /**
+     * Uses the given client for all connections, including the additional
+     * connections borrowed with a connection index above 0, which otherwise
+     * get a client of their own.
+     */
+    public void initSmbClient(SMBClient smbClient) {
+        this.smbClient = smbClient;
+        this.smbClientFactory = () -> smbClient;
+    }
+
+    protected SmbShareLease borrowShare(final String hostname, final String shareName) throws IOException {
+        return borrowShare(hostname, shareName, 0);
+    }
+
+    protected SmbShareLease borrowShare(final String hostname, final String shareName, final int connectionIndex) throws IOException {
+        final SmbConnectionPool pool = connectionPool;
+        if (pool != null) {
+            return pool.borrow(hostname, shareName, connectionIndex);
+        }
+        return sessionPool.borrow(hostname, shareName, connectionIndex);
+    }
+
+    /**
+     * Turns a path as configured into one relative to the share, with
+     * backslashes and without leading or trailing separators.
+     */
+    static String normalize(final String path) {
+        String normalized = path.replace('/', '\\');
+        while (normalized.startsWith("\\")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("\\")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    static void closeQuietly(final AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing left to clean up
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.roche.nifi.services.smb.SmbShareLease;
+
+/**
+ * Remembers the content hash of the files written, together with the size
+ * and last write time the server reported for them, so that new content can
+ * be recognized as identical to a remote file without reading the file back.
+ *
+ * A hash only applies while the remote file still has the recorded size and
+ * last write time, so a file changed by someone else since it was written is
+ * never mistaken for an identical one. The least recently used entries are
+ * dropped once the cache is full.
+ */
+class ContentHashCache {
+
+    static final String ALGORITHM = "SHA-256";
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+
+    ContentHashCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > ContentHashCache.this.maxEntries;
+            }
+        };
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support it
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @return the hash recorded for the file, or null if none was recorded or
+     *      the file changed since
+     */
+    synchronized byte[] get(final SmbShareLease lease, final String path, final long size, final long lastWriteTime) {
+        final Entry entry = entries.get(key(lease, path));
+        if (entry == null || entry.size != size || entry.lastWriteTime != lastWriteTime) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    synchronized void put(final SmbShareLease lease, final String path, final long size, final long lastWriteTime, final byte[] hash) {
+        entries.put(key(lease, path), new Entry(size, lastWriteTime, hash));
+    }
+
+    private static String key(final SmbShareLease lease, final String path) {
+        return (lease.getHostname() + "\\" + lease.getShareName() + "\\" + path.replace('/', '\\')).toLowerCase();
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long lastWriteTime;
+        private final byte[] hash;
+
+        private Entry(final long size, final long lastWriteTime, final byte[] hash) {
+            this.size = size;
+            this.lastWriteTime = lastWriteTime;
+            this.hash = hash;
+        }
+    }
+}
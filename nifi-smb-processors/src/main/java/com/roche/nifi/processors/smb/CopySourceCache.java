@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.roche.nifi.services.smb.SmbShareLease;
+
+/**
+ * Remembers where recently written content can be found on each share, by
+ * content hash, so that the same content can be copied on the server instead
+ * of being uploaded again.
+ *
+ * Only the most recent file written with a given content is remembered per
+ * share, together with the size and last write time the server reported for
+ * it. A copy source has to be checked against these before it is used, as
+ * the file may have been changed or removed since. The least recently used
+ * entries are dropped once the cache is full.
+ */
+class CopySourceCache {
+
+    private final int maxEntries;
+    private final Map<String, CopySource> sources;
+
+    CopySourceCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.sources = new LinkedHashMap<String, CopySource>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CopySource> eldest) {
+                return size() > CopySourceCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return a file with the given content on the share of the lease, or
+     *      null if none is known
+     */
+    synchronized CopySource find(final SmbShareLease lease, final byte[] hash, final long size) {
+        final CopySource source = sources.get(key(lease, hash));
+        return source == null || source.size != size ? null : source;
+    }
+
+    synchronized void put(final SmbShareLease lease, final byte[] hash, final String path, final long size, final long lastWriteTime) {
+        sources.put(key(lease, hash), new CopySource(path, size, lastWriteTime));
+    }
+
+    /**
+     * Forgets the source unless another file was recorded for the content since.
+     */
+    synchronized void invalidate(final SmbShareLease lease, final byte[] hash, final CopySource source) {
+        sources.remove(key(lease, hash), source);
+    }
+
+    private static String key(final SmbShareLease lease, final byte[] hash) {
+        final StringBuilder key = new StringBuilder((lease.getHostname() + "\\" + lease.getShareName() + "\\").toLowerCase());
+        for (final byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    static final class CopySource {
+        final String path;
+        final long size;
+        final long lastWriteTime;
+
+        private CopySource(final String path, final long size, final long lastWriteTime) {
+            this.path = path;
+            this.size = size;
+            this.lastWriteTime = lastWriteTime;
+        }
+    }
+}
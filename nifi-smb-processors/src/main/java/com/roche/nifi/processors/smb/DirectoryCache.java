@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.DiskShare;
+import com.roche.nifi.services.smb.SmbShareLease;
+
+/**
+ * Remembers which remote directories are known to exist, per host and share,
+ * so that files written to the same directory do not each pay a round trip
+ * to check for it. Entries expire after a time to live and the least recently
+ * used entries are dropped once the cache is full.
+ *
+ * Missing directories are created optimistically: the deepest directory is
+ * created first, and its parents only if the server reports that the path
+ * does not exist. A directory that already exists therefore costs one request
+ * and a new leaf directory in an existing tree also costs one request.
+ */
+class DirectoryCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String, Long> expiries;
+
+    DirectoryCache(final int maxEntries, final long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.expiries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+                return size() > DirectoryCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Creates the directory and any missing parents unless it is already known to exist.
+     */
+    void ensureExists(final SmbShareLease lease, final String directory) {
+        final String normalized = AbstractSmbProcessor.normalize(directory);
+        if (normalized.isEmpty() || isKnown(lease, normalized)) {
+            return;
+        }
+
+        create(lease.getShare(), normalized);
+        markExisting(lease, normalized);
+    }
+
+    /**
+     * Forgets the directory and everything below it, e.g. after the server
+     * reported that the path does not exist.
+     */
+    synchronized void invalidate(final SmbShareLease lease, final String directory) {
+        final String key = key(lease, AbstractSmbProcessor.normalize(directory));
+        final Iterator<String> keys = expiries.keySet().iterator();
+        while (keys.hasNext()) {
+            final String cached = keys.next();
+            if (cached.equals(key) || cached.startsWith(key + "\\")) {
+                keys.remove();
+            }
+        }
+    }
+
+    static boolean isPathNotFound(final SMBApiException e) {
+        return e.getStatus() == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND
+            || e.getStatus() == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND;
+    }
+
+    private void create(final DiskShare share, final String directory) {
+        try {
+            share.mkdir(directory);
+        } catch (SMBApiException e) {
+            if (e.getStatus() == NtStatus.STATUS_OBJECT_NAME_COLLISION) {
+                // already exists, possibly created by a concurrent write
+                return;
+            }
+            final int parentEnd = directory.lastIndexOf('\\');
+            if (!isPathNotFound(e) || parentEnd <= 0) {
+                throw e;
+            }
+
+            create(share, directory.substring(0, parentEnd));
+            try {
+                share.mkdir(directory);
+            } catch (SMBApiException retryError) {
+                if (retryError.getStatus() != NtStatus.STATUS_OBJECT_NAME_COLLISION) {
+                    throw retryError;
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isKnown(final SmbShareLease lease, final String directory) {
+        final String key = key(lease, directory);
+        final Long expiry = expiries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < System.currentTimeMillis()) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void markExisting(final SmbShareLease lease, final String directory) {
+        if (maxEntries > 0) {
+            expiries.put(key(lease, directory), System.currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    private static String key(final SmbShareLease lease, final String directory) {
+        return (lease.getHostname() + "\\" + lease.getShareName() + "\\" + directory).toLowerCase();
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.File;
+import com.roche.nifi.services.smb.SmbShareLease;
+
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@Tags({"samba, smb, cifs, files, fetch, get, ingest"})
+@CapabilityDescription("Fetches the content of a file from a samba network location into the FlowFile, " +
+    "replacing any existing content. The file is streamed into the content repository as it is read, " +
+    "with several read requests in flight, so it is never held in memory.")
+@SeeAlso({ListSmb.class, PutSmbFiles.class})
+@ReadsAttributes({@ReadsAttribute(attribute="smb.hostname", description="The host to fetch from, by default."),
+    @ReadsAttribute(attribute="smb.share", description="The share to fetch from, by default."),
+    @ReadsAttribute(attribute="path", description="The folder of the file within the share, by default."),
+    @ReadsAttribute(attribute="filename", description="The name of the file, by default.")})
+public class FetchSmb extends AbstractSmbProcessor {
+    public static final String COMPLETION_NONE = "None";
+    public static final String COMPLETION_MOVE = "Move File";
+    public static final String COMPLETION_DELETE = "Delete File";
+
+    public static final PropertyDescriptor HOSTNAME = new PropertyDescriptor.Builder()
+            .name("Hostname")
+            .description("The network host from which the file should be fetched. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${" + ListSmb.HOSTNAME_ATTRIBUTE + "}")
+            .build();
+    public static final PropertyDescriptor SHARE = new PropertyDescriptor.Builder()
+            .name("Share")
+            .description("The network share from which the file should be fetched. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${" + ListSmb.SHARE_ATTRIBUTE + "}")
+            .build();
+    public static final PropertyDescriptor REMOTE_FILE = new PropertyDescriptor.Builder()
+            .name("Remote File")
+            .description("The path of the file within the share. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${" + ListSmb.PATH_ATTRIBUTE + "}\\${filename}")
+            .build();
+    public static final PropertyDescriptor COMPLETION_STRATEGY = new PropertyDescriptor.Builder()
+            .name("Completion Strategy")
+            .description("What to do with the remote file once it has been fetched. The file is moved or deleted " +
+                "through the handle it was read from, which costs a single request, after the FlowFile has been " +
+                "committed to success. If this fails, the FlowFile stays in success and a warning is logged.")
+            .required(true)
+            .allowableValues(COMPLETION_NONE, COMPLETION_MOVE, COMPLETION_DELETE)
+            .defaultValue(COMPLETION_NONE)
+            .build();
+    public static final PropertyDescriptor MOVE_DESTINATION = new PropertyDescriptor.Builder()
+            .name("Move Destination Directory")
+            .description("The folder within the same share to which the file is moved if the completion strategy " +
+                "is '" + COMPLETION_MOVE + "'. The folder must exist. You may use expression language.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+    public static final PropertyDescriptor READ_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("Read Chunk Size")
+            .description("The size of a single read request. The maximum read size negotiated with the server " +
+                "is used instead if it is smaller.")
+            .required(true)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(4096, 16 * 1024 * 1024))
+            .defaultValue("1 MB")
+            .build();
+    public static final PropertyDescriptor READ_PIPELINE_DEPTH = new PropertyDescriptor.Builder()
+            .name("Read Pipeline Depth")
+            .description("The number of read requests kept in flight per connection. Higher values keep high latency " +
+                "links busy at the cost of one chunk of memory per request.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+    public static final PropertyDescriptor PARALLEL_RANGES = new PropertyDescriptor.Builder()
+            .name("Parallel Ranges")
+            .description("The number of separate connections over which a file of at least the parallel range threshold " +
+                "is read. The chunks of the file are read through the connections in turn, so every connection reads " +
+                "its own ranges of the file in parallel with the others. Set to 1 to disable.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor RANGE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Parallel Range Threshold")
+            .description("The minimum size of a file to be read over parallel ranges.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 GB")
+            .build();
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles whose content has been fetched are transferred to this relationship")
+            .build();
+
+    public static final Relationship REL_NOT_FOUND = new Relationship.Builder()
+            .name("not.found")
+            .description("FlowFiles whose remote file does not exist are transferred to this relationship")
+            .build();
+
+    public static final Relationship REL_PERMISSION_DENIED = new Relationship.Builder()
+            .name("permission.denied")
+            .description("FlowFiles whose remote file could not be read for lack of permissions are transferred to this relationship")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles whose remote file could not be fetched for any other reason are transferred to this relationship")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile PipelinedFileReader reader = null;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(CONNECTION_POOL);
+        descriptors.add(HOSTNAME);
+        descriptors.add(SHARE);
+        descriptors.add(REMOTE_FILE);
+        descriptors.add(DOMAIN);
+        descriptors.add(USERNAME);
+        descriptors.add(PASSWORD);
+        descriptors.add(COMPLETION_STRATEGY);
+        descriptors.add(MOVE_DESTINATION);
+        descriptors.add(READ_CHUNK_SIZE);
+        descriptors.add(READ_PIPELINE_DEPTH);
+        descriptors.add(PARALLEL_RANGES);
+        descriptors.add(RANGE_THRESHOLD);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_NOT_FOUND);
+        relationships.add(REL_PERMISSION_DENIED);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (COMPLETION_MOVE.equals(validationContext.getProperty(COMPLETION_STRATEGY).getValue())
+                && !validationContext.getProperty(MOVE_DESTINATION).isSet()) {
+            results.add(new ValidationResult.Builder()
+                .subject(MOVE_DESTINATION.getDisplayName())
+                .valid(false)
+                .explanation("a destination directory is required to move fetched files")
+                .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        reader = new PipelinedFileReader(
+            context.getProperty(READ_CHUNK_SIZE).asDataSize(DataUnit.B).intValue(),
+            context.getProperty(READ_PIPELINE_DEPTH).asInteger());
+
+        // one idle session per concurrent task, no keep-alive since fetches usually come in bursts
+        openSessionPool(context, context.getMaxConcurrentTasks(), TimeUnit.MINUTES.toMillis(5), 0);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        reader = null;
+        closeSessionPool();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        final ComponentLog logger = getLogger();
+        final String hostname = context.getProperty(HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+        final String shareName = context.getProperty(SHARE).evaluateAttributeExpressions(flowFile).getValue();
+        final String path = normalize(context.getProperty(REMOTE_FILE).evaluateAttributeExpressions(flowFile).getValue());
+        final String completionStrategy = context.getProperty(COMPLETION_STRATEGY).getValue();
+        final String uri = "smb://" + hostname + "/" + shareName + "/" + path.replace('\\', '/');
+
+        final SmbShareLease lease;
+        try {
+            lease = borrowShare(hostname, shareName, 0);
+        } catch (Exception e) {
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            logger.error("Penalizing {} and routing to 'failure' because no smb connection to {} could be established: {}",
+                new Object[]{flowFile, hostname, e});
+            context.yield();
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final List<SmbShareLease> rangeLeases = new ArrayList<>();
+        final List<File> rangeHandles = new ArrayList<>();
+        final AtomicLong copied = new AtomicLong();
+        long size = 0;
+        File file = null;
+        try {
+            // the completion happens through the handle the file is read from
+            final Set<AccessMask> access = completionStrategy.equals(COMPLETION_NONE)
+                ? EnumSet.of(AccessMask.GENERIC_READ)
+                : EnumSet.of(AccessMask.GENERIC_READ, AccessMask.DELETE);
+            file = lease.getShare().openFile(
+                path,
+                access,
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
+                SMB2CreateDisposition.FILE_OPEN,
+                EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE, SMB2CreateOptions.FILE_SEQUENTIAL_ONLY));
+            size = file.getFileInformation(FileStandardInformation.class).getEndOfFile();
+
+            final List<File> handles = new ArrayList<>();
+            handles.add(file);
+            final int ranges = context.getProperty(PARALLEL_RANGES).asInteger();
+            if (ranges > 1 && size >= context.getProperty(RANGE_THRESHOLD).asDataSize(DataUnit.B).longValue()) {
+                for (int i = 1; i < ranges; i++) {
+                    final SmbShareLease rangeLease = borrowShare(hostname, shareName, i);
+                    rangeLeases.add(rangeLease);
+                    final File rangeHandle = rangeLease.getShare().openFile(
+                        path,
+                        EnumSet.of(AccessMask.GENERIC_READ),
+                        EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                        EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_DELETE),
+                        SMB2CreateDisposition.FILE_OPEN,
+                        EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE));
+                    rangeHandles.add(rangeHandle);
+                    handles.add(rangeHandle);
+                }
+            }
+
+            final PipelinedFileReader fileReader = reader;
+            final int chunkSize = fileReader.getChunkSize(lease.getConnection());
+            final long expected = size;
+            flowFile = session.write(flowFile, out -> copied.set(fileReader.read(handles, expected, out, chunkSize)));
+        } catch (Exception e) {
+            closeQuietly(file);
+            releaseRanges(rangeHandles, rangeLeases);
+            if (SmbSessionPool.isSessionLost(e) || !lease.isHealthy()) {
+                lease.invalidate();
+            }
+            lease.close();
+
+            final SMBApiException apiException = findApiException(e);
+            final NtStatus status = apiException == null ? null : apiException.getStatus();
+            if (status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || status == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND) {
+                session.transfer(session.penalize(flowFile), REL_NOT_FOUND);
+                logger.error("Routing {} to 'not.found' because {} does not exist", new Object[]{flowFile, uri});
+            } else if (status == NtStatus.STATUS_ACCESS_DENIED) {
+                session.transfer(session.penalize(flowFile), REL_PERMISSION_DENIED);
+                logger.error("Routing {} to 'permission.denied' because {} could not be read: {}", new Object[]{flowFile, uri, e});
+            } else {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                logger.error("Penalizing {} and routing to 'failure' because {} could not be fetched: {}", new Object[]{flowFile, uri, e});
+            }
+            return;
+        }
+        releaseRanges(rangeHandles, rangeLeases);
+
+        if (copied.get() != size) {
+            // a short copy must neither pass as the file nor complete it
+            closeQuietly(file);
+            if (!lease.isHealthy()) {
+                lease.invalidate();
+            }
+            lease.close();
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            logger.error("Penalizing {} and routing to 'failure' because {} was truncated while it was fetched: read {} of {} bytes",
+                new Object[]{flowFile, uri, copied.get(), size});
+            return;
+        }
+
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        session.adjustCounter("Files fetched", 1, false);
+        session.adjustCounter("Bytes fetched", flowFile.getSize(), false);
+        session.getProvenanceReporter().fetch(flowFile, uri, millis);
+        session.transfer(flowFile, REL_SUCCESS);
+
+        try {
+            // the remote file is only moved or deleted once its content is safe in the repository
+            session.commit();
+            try {
+                complete(context, flowFile, file, path, completionStrategy);
+            } catch (Exception e) {
+                session.adjustCounter("Completion failures", 1, false);
+                logger.warn("Fetched {} for {} but could not complete it with strategy '{}': {}",
+                    new Object[]{uri, flowFile, completionStrategy, e});
+            }
+        } finally {
+            closeQuietly(file);
+            if (!lease.isHealthy()) {
+                lease.invalidate();
+            }
+            lease.close();
+        }
+    }
+
+    /**
+     * Moves or deletes the fetched file through its still open handle, once
+     * the session that received its content has been committed.
+     */
+    private void complete(final ProcessContext context, final FlowFile flowFile, final File file, final String path,
+            final String completionStrategy) {
+        switch (completionStrategy) {
+            case COMPLETION_DELETE:
+                file.deleteOnClose();
+                break;
+            case COMPLETION_MOVE:
+                final String destination = normalize(context.getProperty(MOVE_DESTINATION).evaluateAttributeExpressions(flowFile).getValue());
+                final String name = path.substring(path.lastIndexOf('\\') + 1);
+                file.rename(destination.isEmpty() ? name : destination + "\\" + name);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void releaseRanges(final List<File> rangeHandles, final List<SmbShareLease> rangeLeases) {
+        for (final File rangeHandle : rangeHandles) {
+            closeQuietly(rangeHandle);
+        }
+        rangeHandles.clear();
+        for (final SmbShareLease rangeLease : rangeLeases) {
+            if (!rangeLease.isHealthy()) {
+                rangeLease.invalidate();
+            }
+            rangeLease.close();
+        }
+        rangeLeases.clear();
+    }
+
+    private static SMBApiException findApiException(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SMBApiException) {
+                return (SMBApiException) cause;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.transport.TransportException;
+
+/**
+ * Tracks consecutive connection failures per host, so that a host which is
+ * down is not connected to on every trigger.
+ *
+ * Once the failure threshold is reached the breaker of the host opens and
+ * connections are refused until the back-off has passed. Then a single
+ * caller is let through as a probe: if it connects the breaker closes again,
+ * otherwise it stays open for another back-off.
+ *
+ * Only failures of the host itself count, that is failures to reach it or
+ * to authenticate with it. A missing share or a timeout waiting for a pooled
+ * session says nothing about the host.
+ */
+class HostCircuitBreaker {
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long backOffMillis;
+    private final Map<String, HostState> hosts = new HashMap<>();
+
+    /**
+     * @param failureThreshold consecutive failures after which the breaker
+     *        opens, 0 to never open it
+     */
+    HostCircuitBreaker(final int failureThreshold, final long backOffMillis) {
+        this.failureThreshold = failureThreshold;
+        this.backOffMillis = backOffMillis;
+    }
+
+    /**
+     * Tells whether connections to the host are currently refused, without
+     * claiming the probe of a breaker whose back-off has passed.
+     */
+    synchronized boolean isRefusing(final String hostname) {
+        final HostState host = hosts.get(key(hostname));
+        if (host == null || host.state == State.CLOSED) {
+            return false;
+        }
+        return host.state == State.HALF_OPEN || System.currentTimeMillis() - host.openedAt < backOffMillis;
+    }
+
+    /**
+     * Tells whether the caller may connect to the host. If the back-off of an
+     * open breaker has passed, the caller becomes the probe and must report
+     * its result.
+     */
+    synchronized boolean tryAcquire(final String hostname) {
+        final HostState host = hosts.get(key(hostname));
+        if (host == null || host.state == State.CLOSED) {
+            return true;
+        }
+        if (host.state == State.OPEN && System.currentTimeMillis() - host.openedAt >= backOffMillis) {
+            host.state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the breaker of the host was open and is closed now
+     */
+    synchronized boolean recordSuccess(final String hostname) {
+        final HostState host = hosts.remove(key(hostname));
+        return host != null && host.state != State.CLOSED;
+    }
+
+    /**
+     * @return true if the breaker of the host opened because of this failure
+     */
+    synchronized boolean recordFailure(final String hostname) {
+        final HostState host = hosts.computeIfAbsent(key(hostname), k -> new HostState());
+        host.consecutiveFailures++;
+        if (host.state == State.HALF_OPEN
+                || (host.state == State.CLOSED && failureThreshold > 0 && host.consecutiveFailures >= failureThreshold)) {
+            final boolean opened = host.state == State.CLOSED;
+            host.state = State.OPEN;
+            host.openedAt = System.currentTimeMillis();
+            return opened;
+        }
+        return false;
+    }
+
+    /**
+     * Lets the next caller probe the host again if this caller was the probe
+     * and failed for a reason which is not a failure of the host.
+     */
+    synchronized void recordInconclusive(final String hostname) {
+        final HostState host = hosts.get(key(hostname));
+        if (host != null && host.state == State.HALF_OPEN) {
+            host.state = State.OPEN;
+        }
+    }
+
+    /**
+     * Tells whether the error of a connection attempt is a failure of the
+     * host, which counts towards opening its breaker.
+     */
+    static boolean isHostFailure(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransportException || cause instanceof SocketException
+                    || cause instanceof SocketTimeoutException || cause instanceof UnknownHostException) {
+                return true;
+            }
+            if (cause instanceof SMBApiException) {
+                final SMB2MessageCommandCode command = ((SMBApiException) cause).getFailedCommand();
+                return command == SMB2MessageCommandCode.SMB2_NEGOTIATE || command == SMB2MessageCommandCode.SMB2_SESSION_SETUP;
+            }
+        }
+        return false;
+    }
+
+    synchronized int getConsecutiveFailures(final String hostname) {
+        final HostState host = hosts.get(key(hostname));
+        return host == null ? 0 : host.consecutiveFailures;
+    }
+
+    long getBackOffMillis() {
+        return backOffMillis;
+    }
+
+    private static String key(final String hostname) {
+        return hostname.toLowerCase();
+    }
+
+    private static final class HostState {
+        private State state = State.CLOSED;
+        private int consecutiveFailures = 0;
+        private long openedAt = 0;
+    }
+}
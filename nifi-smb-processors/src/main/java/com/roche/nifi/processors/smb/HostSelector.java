@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders equivalent hosts serving the same shares by preference, based on
+ * what was observed of them: the writes in flight and the recent latency.
+ *
+ * The latency of a host is a moving average of the time it took to open a
+ * file on it, or to connect to it as long as no file was opened yet. A host
+ * is healthy unless its latency exceeds the maximum, and healthy hosts always
+ * come first. Latencies expire when a host was not used for a while, so a
+ * slow host is tried again eventually. Failing hosts are left to the circuit
+ * breaker.
+ */
+class HostSelector {
+
+    static final String FAILOVER = "failover";
+    static final String ROUND_ROBIN = "round robin";
+    static final String LEAST_OUTSTANDING = "least outstanding writes";
+    static final String LOWEST_LATENCY = "lowest latency";
+
+    // weight of a new observation in the moving average
+    private static final double WEIGHT = 0.3;
+
+    private final String policy;
+    private final long maxLatencyNanos;
+    private final long expiryMillis;
+    private final Map<String, HostState> hosts = new HashMap<>();
+    private final Map<String, Integer> rotations = new HashMap<>();
+
+    /**
+     * @param maxLatencyNanos latency above which a host is unhealthy, 0 to
+     *        consider every host healthy
+     * @param expiryMillis time after which the latency of an unused host is
+     *        forgotten
+     */
+    HostSelector(final String policy, final long maxLatencyNanos, final long expiryMillis) {
+        this.policy = policy;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * Splits a comma separated list of hosts, dropping empty and repeated
+     * entries.
+     */
+    static List<String> parseHosts(final String value) {
+        final List<String> parsed = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        for (final String host : value.split(",")) {
+            final String trimmed = host.trim();
+            if (!trimmed.isEmpty() && seen.add(key(trimmed))) {
+                parsed.add(trimmed);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the hosts in the order they should be tried, healthy ones first
+     */
+    synchronized List<String> order(final List<String> candidates) {
+        final List<String> ordered = new ArrayList<>(candidates);
+        switch (policy) {
+            case ROUND_ROBIN:
+                final String rotationKey = key(String.join(",", candidates));
+                final int rotation = rotations.merge(rotationKey, 1, (a, b) -> (a + b) % candidates.size());
+                final int start = (rotation + candidates.size() - 1) % candidates.size();
+                ordered.clear();
+                ordered.addAll(candidates.subList(start, candidates.size()));
+                ordered.addAll(candidates.subList(0, start));
+                break;
+            case LEAST_OUTSTANDING:
+                ordered.sort(Comparator.comparingInt(host -> state(host).outstanding));
+                break;
+            case LOWEST_LATENCY:
+                // a host without a recent latency is tried first, so that it gets one
+                ordered.sort(Comparator.comparingLong(this::latency));
+                break;
+            default:
+                break;
+        }
+        // stable, so the order of the policy is kept among healthy and among unhealthy hosts
+        ordered.sort(Comparator.comparing(host -> !isHealthy(host)));
+        return ordered;
+    }
+
+    synchronized boolean isHealthy(final String hostname) {
+        return maxLatencyNanos <= 0 || latency(hostname) <= maxLatencyNanos;
+    }
+
+    /**
+     * @return the recent latency of the host in nanoseconds, 0 if unknown
+     */
+    synchronized long getLatency(final String hostname) {
+        return latency(hostname);
+    }
+
+    synchronized void writeStarted(final String hostname) {
+        state(hostname).outstanding++;
+    }
+
+    synchronized void writeFinished(final String hostname) {
+        final HostState host = state(hostname);
+        host.outstanding = Math.max(0, host.outstanding - 1);
+    }
+
+    synchronized void recordConnect(final String hostname, final long nanos) {
+        final HostState host = state(hostname);
+        host.connectLatency = average(host.connectLatency, nanos, host.observedAt);
+        host.observedAt = System.currentTimeMillis();
+    }
+
+    synchronized void recordOpen(final String hostname, final long nanos) {
+        final HostState host = state(hostname);
+        host.openLatency = average(host.openLatency, nanos, host.observedAt);
+        host.observedAt = System.currentTimeMillis();
+    }
+
+    private long latency(final String hostname) {
+        final HostState host = hosts.get(key(hostname));
+        if (host == null || expired(host.observedAt)) {
+            return 0;
+        }
+        return host.openLatency > 0 ? host.openLatency : host.connectLatency;
+    }
+
+    private long average(final long current, final long observed, final long observedAt) {
+        if (current <= 0 || expired(observedAt)) {
+            return observed;
+        }
+        return (long) (WEIGHT * observed + (1 - WEIGHT) * current);
+    }
+
+    private boolean expired(final long observedAt) {
+        return System.currentTimeMillis() - observedAt > expiryMillis;
+    }
+
+    private HostState state(final String hostname) {
+        return hosts.computeIfAbsent(key(hostname), k -> new HostState());
+    }
+
+    private static String key(final String hostname) {
+        return hostname.toLowerCase();
+    }
+
+    private static final class HostState {
+        private int outstanding = 0;
+        private long connectLatency = 0;
+        private long openLatency = 0;
+        private long observedAt = 0;
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.PrimaryNodeOnly;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.smbj.share.Directory;
+import com.hierynomus.smbj.share.DiskShare;
+import com.roche.nifi.services.smb.SmbShareLease;
+
+@PrimaryNodeOnly
+@TriggerSerially
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+@Tags({"samba, smb, cifs, files, list, ingest"})
+@CapabilityDescription("Lists the files of a samba network folder and emits an empty FlowFile for every file that is new " +
+    "or changed since the last listing. Directories are read page by page as the server returns them, so huge " +
+    "directories are never held in memory. Only runs on the primary node, the emitted FlowFiles can be distributed " +
+    "across the cluster and fetched with FetchSmb.")
+@SeeAlso({FetchSmb.class, PutSmbFiles.class})
+@WritesAttributes({@WritesAttribute(attribute="filename", description="The name of the file."),
+    @WritesAttribute(attribute="path", description="The folder of the file within the share, e.g. in\\2020."),
+    @WritesAttribute(attribute="smb.hostname", description="The host the file was listed on."),
+    @WritesAttribute(attribute="smb.share", description="The share the file was listed on."),
+    @WritesAttribute(attribute="file.size", description="The size of the file in bytes."),
+    @WritesAttribute(attribute="file.lastModifiedTime", description="The last write time of the file, " +
+        "formatted as yyyy-MM-dd'T'HH:mm:ssZ.")})
+@Stateful(scopes = Scope.CLUSTER, description = "The latest last write time of the files listed so far and the paths of " +
+    "the files with exactly that time, so that a new primary node continues the listing where the previous one stopped. " +
+    "At most 1000 paths are kept: if more files share the latest time and older files are listed in the same run, " +
+    "they are held back until the next run, otherwise only the last of their paths is kept. " +
+    "The state is cleared when the host, share, folder, recursion or file filter is changed.")
+public class ListSmb extends AbstractSmbProcessor {
+    public static final String PATH_ATTRIBUTE = "path";
+    public static final String HOSTNAME_ATTRIBUTE = "smb.hostname";
+    public static final String SHARE_ATTRIBUTE = "smb.share";
+    public static final String SIZE_ATTRIBUTE = "file.size";
+    public static final String LAST_MODIFIED_ATTRIBUTE = "file.lastModifiedTime";
+
+    private static final DateTimeFormatter LAST_MODIFIED_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
+
+    public static final PropertyDescriptor HOSTNAME = new PropertyDescriptor.Builder()
+            .name("Hostname")
+            .description("The network host on which files should be listed. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+    public static final PropertyDescriptor SHARE = new PropertyDescriptor.Builder()
+            .name("Share")
+            .description("The network share on which files should be listed. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+    public static final PropertyDescriptor DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Directory")
+            .description("The network folder whose files should be listed. Leave empty to list the root of the share. " +
+                "You may use expression language.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+    public static final PropertyDescriptor RECURSE = new PropertyDescriptor.Builder()
+            .name("Search Recursively")
+            .description("If true, the files of all subfolders are listed as well.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor PARALLEL_LISTINGS = new PropertyDescriptor.Builder()
+            .name("Parallel Directory Listings")
+            .description("The number of subfolders listed at the same time when searching recursively. " +
+                "Values above 1 hide the network round trips of deep trees with many small folders.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor FILE_FILTER = new PropertyDescriptor.Builder()
+            .name("File Filter")
+            .description("Only files whose names match this regular expression are listed.")
+            .required(true)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .defaultValue(".*")
+            .build();
+    public static final PropertyDescriptor IGNORE_HIDDEN = new PropertyDescriptor.Builder()
+            .name("Ignore Hidden Files")
+            .description("Whether files and folders with the hidden attribute are skipped.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+    public static final PropertyDescriptor MAX_LISTING_SIZE = new PropertyDescriptor.Builder()
+            .name("Maximum Listing Size")
+            .description("The maximum number of files emitted per run. If more files are new, the ones modified " +
+                "first are emitted and the others in the following runs. Only this many files are kept in memory " +
+                "while listing.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .build();
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("A FlowFile is emitted to this relationship for every new or changed file")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService listingExecutor = null;
+
+    private volatile boolean resetState = false;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(CONNECTION_POOL);
+        descriptors.add(HOSTNAME);
+        descriptors.add(SHARE);
+        descriptors.add(DIRECTORY);
+        descriptors.add(DOMAIN);
+        descriptors.add(USERNAME);
+        descriptors.add(PASSWORD);
+        descriptors.add(RECURSE);
+        descriptors.add(PARALLEL_LISTINGS);
+        descriptors.add(FILE_FILTER);
+        descriptors.add(IGNORE_HIDDEN);
+        descriptors.add(MAX_LISTING_SIZE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        // the watermark of another folder says nothing about this one
+        if (isConfigurationRestored() && !Objects.equals(oldValue, newValue)
+                && (descriptor.equals(HOSTNAME) || descriptor.equals(SHARE) || descriptor.equals(DIRECTORY)
+                    || descriptor.equals(RECURSE) || descriptor.equals(FILE_FILTER))) {
+            resetState = true;
+        }
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        if (resetState) {
+            context.getStateManager().clear(Scope.CLUSTER);
+            resetState = false;
+        }
+
+        final int parallelListings = context.getProperty(PARALLEL_LISTINGS).asInteger();
+        if (parallelListings > 1 && context.getProperty(RECURSE).asBoolean()) {
+            listingExecutor = Executors.newFixedThreadPool(parallelListings, r -> {
+                final Thread thread = new Thread(r, "ListSmb Lister " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // a single session is reused between runs, no keep-alive since runs are usually frequent
+        openSessionPool(context, 1, TimeUnit.MINUTES.toMillis(5), 0);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (listingExecutor != null) {
+            listingExecutor.shutdownNow();
+            listingExecutor = null;
+        }
+        closeSessionPool();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final ComponentLog logger = getLogger();
+        final String hostname = context.getProperty(HOSTNAME).evaluateAttributeExpressions().getValue();
+        final String shareName = context.getProperty(SHARE).evaluateAttributeExpressions().getValue();
+        final String directory = context.getProperty(DIRECTORY).isSet()
+            ? normalize(context.getProperty(DIRECTORY).evaluateAttributeExpressions().getValue())
+            : "";
+
+        final ListingWatermark watermark;
+        try {
+            watermark = ListingWatermark.fromState(context.getStateManager().getState(Scope.CLUSTER));
+        } catch (IOException e) {
+            logger.error("Could not read the listing state, will try again later because of error {}", new Object[]{e});
+            context.yield();
+            return;
+        }
+
+        final ListingSettings settings = new ListingSettings(context);
+        final Selection selection = new Selection(context.getProperty(MAX_LISTING_SIZE).asInteger(), watermark);
+        final long start = System.nanoTime();
+        SmbShareLease lease = null;
+        try {
+            lease = borrowShare(hostname, shareName);
+            final int directories = traverse(lease.getShare(), directory, settings, selection, listingExecutor);
+            session.adjustCounter("Directories listed", directories, false);
+        } catch (Exception e) {
+            if (lease != null && (SmbSessionPool.isSessionLost(e) || !lease.isHealthy())) {
+                lease.invalidate();
+            }
+            logger.error("Could not list \\\\{}\\{}\\{} because of error {}", new Object[]{hostname, shareName, directory, e});
+            context.yield();
+            return;
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        session.adjustCounter("SMB listing time (micros)", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), false);
+
+        final List<ListedFile> selected = selection.sorted();
+        if (selected.isEmpty()) {
+            context.yield();
+            return;
+        }
+        final List<ListedFile> files = selected.subList(0, countToEmit(selected, watermark));
+
+        final List<String> pathsAtNewest = new ArrayList<>();
+        final long newest = files.get(files.size() - 1).lastModified;
+        for (final ListedFile file : files) {
+            FlowFile flowFile = session.create();
+            flowFile = session.putAllAttributes(flowFile, file.toAttributes(hostname, shareName));
+            session.transfer(flowFile, REL_SUCCESS);
+            if (file.lastModified == newest) {
+                pathsAtNewest.add(file.path());
+            }
+        }
+        session.adjustCounter("Files listed", files.size(), false);
+        logger.debug("Listed {} new files on \\\\{}\\{}\\{}", new Object[]{files.size(), hostname, shareName, directory});
+        session.commit();
+
+        // written after the commit, a failure results in the files being listed again rather than lost
+        try {
+            context.getStateManager().setState(watermark.advance(newest, pathsAtNewest).toState(), Scope.CLUSTER);
+        } catch (IOException e) {
+            logger.warn("Could not save the listing state, the files of this run may be listed again because of error {}",
+                new Object[]{e});
+        }
+    }
+
+    /**
+     * Returns how many of the sorted files to emit now. The files sharing the
+     * newest time are held back for the next run if the watermark could not
+     * keep all their paths, unless no older files are emitted meanwhile.
+     */
+    private static int countToEmit(final List<ListedFile> files, final ListingWatermark watermark) {
+        final long newest = files.get(files.size() - 1).lastModified;
+        int atNewest = 0;
+        while (atNewest < files.size() && files.get(files.size() - 1 - atNewest).lastModified == newest) {
+            atNewest++;
+        }
+        final int paths = atNewest + (newest == watermark.getTimestamp() ? watermark.getPathCount() : 0);
+        if (paths > ListingWatermark.MAX_PATHS && atNewest < files.size()) {
+            return files.size() - atNewest;
+        }
+        return files.size();
+    }
+
+    /**
+     * Lists the given folder and, if recursing, its subfolders. With an
+     * executor every folder is listed by a task of its own, otherwise they
+     * are listed one after the other on the calling thread.
+     *
+     * @return the number of folders listed
+     */
+    private int traverse(final DiskShare share, final String root, final ListingSettings settings,
+            final Selection selection, final ExecutorService executor) throws IOException {
+        if (executor == null) {
+            final List<String> pending = new ArrayList<>();
+            pending.add(root);
+            int listed = 0;
+            while (!pending.isEmpty()) {
+                final String directory = pending.remove(pending.size() - 1);
+                pending.addAll(listDirectory(share, directory, directory.equals(root), settings, selection));
+                listed++;
+            }
+            return listed;
+        }
+
+        final CompletionService<List<String>> listings = new ExecutorCompletionService<>(executor);
+        listings.submit(() -> listDirectory(share, root, true, settings, selection));
+        int outstanding = 1;
+        int listed = 0;
+        Throwable failure = null;
+        while (outstanding > 0) {
+            final List<String> subdirectories;
+            try {
+                subdirectories = listings.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while listing " + root, e);
+            } catch (ExecutionException e) {
+                // the other listings still use the share, so wait for them before giving up
+                outstanding--;
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+                continue;
+            }
+            outstanding--;
+            listed++;
+            if (failure == null) {
+                for (final String subdirectory : subdirectories) {
+                    listings.submit(() -> listDirectory(share, subdirectory, false, settings, selection));
+                    outstanding++;
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException("Could not list " + root, failure);
+        }
+        return listed;
+    }
+
+    /**
+     * Reads the entries of the folder as the server returns them and offers
+     * its files to the selection.
+     *
+     * @return the subfolders to list, if recursing
+     */
+    private List<String> listDirectory(final DiskShare share, final String directory, final boolean root,
+            final ListingSettings settings, final Selection selection) {
+        final List<String> subdirectories = new ArrayList<>();
+        final Directory handle;
+        try {
+            handle = share.openDirectory(
+                directory,
+                EnumSet.of(AccessMask.FILE_LIST_DIRECTORY, AccessMask.FILE_READ_ATTRIBUTES),
+                null,
+                SMB2ShareAccess.ALL,
+                SMB2CreateDisposition.FILE_OPEN,
+                null);
+        } catch (SMBApiException e) {
+            if (root || !DirectoryCache.isPathNotFound(e)) {
+                throw e;
+            }
+            getLogger().debug("Skipping folder {} which was removed while listing", new Object[]{directory});
+            return subdirectories;
+        }
+
+        try {
+            // the iterator queries the next page of entries only once the previous one is consumed
+            final Iterator<FileIdBothDirectoryInformation> entries = handle.iterator();
+            while (entries.hasNext()) {
+                final FileIdBothDirectoryInformation entry = entries.next();
+                final String name = entry.getFileName();
+                if (name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                final long attributes = entry.getFileAttributes();
+                if (settings.ignoreHidden && EnumWithValue.EnumUtils.isSet(attributes, FileAttributes.FILE_ATTRIBUTE_HIDDEN)) {
+                    continue;
+                }
+                if (EnumWithValue.EnumUtils.isSet(attributes, FileAttributes.FILE_ATTRIBUTE_DIRECTORY)) {
+                    if (settings.recurse) {
+                        subdirectories.add(directory.isEmpty() ? name : directory + "\\" + name);
+                    }
+                } else if (settings.fileFilter.matcher(name).matches()) {
+                    selection.offer(new ListedFile(directory, name, entry.getEndOfFile(), entry.getLastWriteTime().toEpochMillis()));
+                }
+            }
+        } finally {
+            handle.closeSilently();
+        }
+        return subdirectories;
+    }
+
+    /**
+     * Settings of the current run, shared by all of its listings.
+     */
+    private static final class ListingSettings {
+        private final boolean recurse;
+        private final boolean ignoreHidden;
+        private final Pattern fileFilter;
+
+        private ListingSettings(final ProcessContext context) {
+            this.recurse = context.getProperty(RECURSE).asBoolean();
+            this.ignoreHidden = context.getProperty(IGNORE_HIDDEN).asBoolean();
+            this.fileFilter = Pattern.compile(context.getProperty(FILE_FILTER).getValue());
+        }
+    }
+
+    private static final class ListedFile {
+        private final String directory;
+        private final String name;
+        private final long size;
+        private final long lastModified;
+
+        private ListedFile(final String directory, final String name, final long size, final long lastModified) {
+            this.directory = directory;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private String path() {
+            return directory.isEmpty() ? name : directory + "\\" + name;
+        }
+
+        private Map<String, String> toAttributes(final String hostname, final String shareName) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(CoreAttributes.FILENAME.key(), name);
+            attributes.put(PATH_ATTRIBUTE, directory);
+            attributes.put(HOSTNAME_ATTRIBUTE, hostname);
+            attributes.put(SHARE_ATTRIBUTE, shareName);
+            attributes.put(SIZE_ATTRIBUTE, String.valueOf(size));
+            attributes.put(LAST_MODIFIED_ATTRIBUTE, LAST_MODIFIED_FORMAT.format(Instant.ofEpochMilli(lastModified)));
+            return attributes;
+        }
+    }
+
+    /**
+     * Keeps the new files modified first, up to the maximum listing size.
+     * Files are compared by last write time and then by path, so that the
+     * files left for the next run are exactly the ones after the new
+     * watermark.
+     */
+    private static final class Selection {
+        private static final Comparator<ListedFile> ORDER =
+            Comparator.<ListedFile>comparingLong(f -> f.lastModified).thenComparing(ListedFile::path);
+
+        private final int maxSize;
+        private final ListingWatermark watermark;
+        private final PriorityQueue<ListedFile> newest = new PriorityQueue<>(ORDER.reversed());
+
+        private Selection(final int maxSize, final ListingWatermark watermark) {
+            this.maxSize = maxSize;
+            this.watermark = watermark;
+        }
+
+        private synchronized void offer(final ListedFile file) {
+            if (!watermark.isNew(file.lastModified, file.path())) {
+                return;
+            }
+            if (newest.size() < maxSize) {
+                newest.add(file);
+            } else if (ORDER.compare(file, newest.peek()) < 0) {
+                newest.poll();
+                newest.add(file);
+            }
+        }
+
+        private synchronized List<ListedFile> sorted() {
+            final List<ListedFile> files = new ArrayList<>(newest);
+            files.sort(ORDER);
+            return files;
+        }
+    }
+}
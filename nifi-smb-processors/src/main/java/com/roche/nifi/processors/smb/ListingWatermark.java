@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.components.state.StateMap;
+
+/**
+ * The progress of a listing: the latest last-modified time of the files
+ * listed so far, and the paths of the listed files with exactly that time.
+ *
+ * A file is new if it was modified after the watermark, or at the watermark
+ * but is not among its paths. Keeping the paths at the watermark lets a run
+ * stop in the middle of files sharing a timestamp, and catches files which
+ * are written within the same tick as the last listed one.
+ *
+ * At most {@link #MAX_PATHS} paths are kept, so that the state stays well
+ * below the 1 MB a ZooKeeper node can hold. Once more files share the
+ * timestamp, only the last of their paths in listing order is kept, and the
+ * files at the watermark with a path up to that one count as listed. A file
+ * written within the same tick but with a path sorting before it is then
+ * only listed once it is modified again.
+ */
+final class ListingWatermark {
+
+    static final String TIMESTAMP_KEY = "listing.timestamp";
+    static final String PATH_KEY_PREFIX = "path.";
+    static final String LAST_PATH_KEY = "listing.lastPath";
+    static final int MAX_PATHS = 1000;
+
+    static final ListingWatermark NONE = new ListingWatermark(-1, Collections.<String>emptySet(), null);
+
+    private final long timestamp;
+    private final Set<String> paths;
+    private final String lastPath;
+
+    ListingWatermark(final long timestamp, final Set<String> paths, final String lastPath) {
+        this.timestamp = timestamp;
+        this.paths = paths;
+        this.lastPath = lastPath;
+    }
+
+    static ListingWatermark fromState(final StateMap state) {
+        final String timestamp = state.get(TIMESTAMP_KEY);
+        if (timestamp == null) {
+            return NONE;
+        }
+        final Set<String> paths = new HashSet<>();
+        for (final Map.Entry<String, String> entry : state.toMap().entrySet()) {
+            if (entry.getKey().startsWith(PATH_KEY_PREFIX)) {
+                paths.add(entry.getValue());
+            }
+        }
+        return new ListingWatermark(Long.parseLong(timestamp), paths, state.get(LAST_PATH_KEY));
+    }
+
+    Map<String, String> toState() {
+        final Map<String, String> state = new HashMap<>();
+        state.put(TIMESTAMP_KEY, String.valueOf(timestamp));
+        if (lastPath != null) {
+            state.put(LAST_PATH_KEY, lastPath);
+        }
+        int i = 0;
+        for (final String path : paths) {
+            state.put(PATH_KEY_PREFIX + i++, path);
+        }
+        return state;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    int getPathCount() {
+        return paths.size();
+    }
+
+    boolean isNew(final long lastModified, final String path) {
+        if (lastModified != timestamp) {
+            return lastModified > timestamp;
+        }
+        return lastPath != null ? path.compareTo(lastPath) > 0 : !paths.contains(path);
+    }
+
+    /**
+     * Returns the watermark after the given files have been listed as well.
+     * The files are listed in order, so the ones at the given time which are
+     * not listed yet all have a path sorting after the listed ones.
+     */
+    ListingWatermark advance(final long lastModified, final Collection<String> listedPaths) {
+        if (lastModified < timestamp) {
+            return this;
+        }
+        final Set<String> advancedPaths = new HashSet<>(listedPaths);
+        if (lastModified == timestamp) {
+            if (lastPath != null) {
+                return new ListingWatermark(lastModified, Collections.<String>emptySet(), Collections.max(advancedPaths));
+            }
+            advancedPaths.addAll(paths);
+        }
+        if (advancedPaths.size() > MAX_PATHS) {
+            // paths kept before sorting after the ones listed now are listed once more rather than missed
+            return new ListingWatermark(lastModified, Collections.<String>emptySet(), Collections.max(listedPaths));
+        }
+        return new ListingWatermark(lastModified, advancedPaths, null);
+    }
+}
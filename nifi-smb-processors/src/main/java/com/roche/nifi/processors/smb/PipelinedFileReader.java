@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.share.File;
+
+/**
+ * Reads an smb file as a pipeline of asynchronous READ requests, so that
+ * several chunks are on the wire at once instead of waiting a full round
+ * trip for every chunk. The chunks are copied to the output in order, so at
+ * most the chunks in flight are held in memory.
+ *
+ * Given several handles of the file, opened over separate connections, the
+ * chunks are requested through the handles in turn. Every handle then reads
+ * its own disjoint ranges of the file in parallel with the others, so that a
+ * single file is not limited to the throughput of a single TCP connection.
+ */
+class PipelinedFileReader {
+
+    private final int chunkSize;
+    private final int depth;
+
+    /**
+     * @param depth the number of requests kept in flight per handle
+     */
+    PipelinedFileReader(final int chunkSize, final int depth) {
+        this.chunkSize = chunkSize;
+        this.depth = depth;
+    }
+
+    /**
+     * The chunk size to use over the given connection, which is the configured
+     * chunk size unless the server negotiated a smaller maximum read size.
+     */
+    int getChunkSize(final Connection connection) {
+        final NegotiatedProtocol negotiated = connection == null ? null : connection.getNegotiatedProtocol();
+        if (negotiated == null || negotiated.getMaxReadSize() <= 0) {
+            return chunkSize;
+        }
+        return Math.min(chunkSize, negotiated.getMaxReadSize());
+    }
+
+    /**
+     * Copies the first size bytes of the file to the output. Stops early if
+     * the file turns out to be shorter.
+     *
+     * @return the number of bytes copied
+     */
+    long read(final List<File> handles, final long size, final OutputStream out, final int readSize) throws IOException {
+        final int maxInFlight = depth * handles.size();
+        final Deque<PendingChunk> inFlight = new ArrayDeque<>(maxInFlight);
+        long requested = 0;
+        long copied = 0;
+        int next = 0;
+        try {
+            while (copied < size) {
+                while (requested < size && inFlight.size() < maxInFlight) {
+                    final File handle = handles.get(next++ % handles.size());
+                    final int length = (int) Math.min(readSize, size - requested);
+                    inFlight.add(new PendingChunk(handle, requested, length, handle.readAsync(requested, length)));
+                    requested += length;
+                }
+
+                final PendingChunk chunk = inFlight.poll();
+                final int read = await(chunk, out);
+                copied += read;
+                if (read == 0) {
+                    // the file was truncated while it was read
+                    break;
+                }
+                if (read < chunk.length) {
+                    // the server may return less than a full chunk
+                    final int remaining = readRemaining(chunk, read, out);
+                    copied += remaining;
+                    if (read + remaining < chunk.length) {
+                        // the file was truncated while it was read
+                        break;
+                    }
+                }
+            }
+            return copied;
+        } finally {
+            // requests still on the wire are answered into buffers nobody waits for
+            for (final PendingChunk chunk : inFlight) {
+                chunk.read.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes copied, 0 at the end of the file
+     */
+    private static int await(final PendingChunk chunk, final OutputStream out) throws IOException {
+        final SMB2ReadResponse response;
+        try {
+            response = chunk.read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read at offset " + chunk.offset);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Read at offset " + chunk.offset + " failed", cause);
+        }
+
+        // unlike the synchronous reads, the asynchronous ones leave the status to the caller
+        final long status = response.getHeader().getStatusCode();
+        if (status == NtStatus.STATUS_END_OF_FILE.getValue()) {
+            return 0;
+        }
+        if (status != NtStatus.STATUS_SUCCESS.getValue()) {
+            throw new SMBApiException(status, SMB2MessageCommandCode.SMB2_READ,
+                new IOException("Read at offset " + chunk.offset + " failed"));
+        }
+        final byte[] data = response.getData();
+        final int length = Math.min(data.length, chunk.length);
+        out.write(data, 0, length);
+        return length;
+    }
+
+    private static int readRemaining(final PendingChunk chunk, final int alreadyRead, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[chunk.length - alreadyRead];
+        int filled = 0;
+        while (filled < buffer.length) {
+            final int read = chunk.handle.read(buffer, chunk.offset + alreadyRead + filled, filled, buffer.length - filled);
+            if (read <= 0) {
+                break;
+            }
+            filled += read;
+        }
+        out.write(buffer, 0, filled);
+        return filled;
+    }
+
+    private static final class PendingChunk {
+        private final File handle;
+        private final long offset;
+        private final int length;
+        private final Future<SMB2ReadResponse> read;
+
+        private PendingChunk(final File handle, final long offset, final int length, final Future<SMB2ReadResponse> read) {
+            this.handle = handle;
+            this.offset = offset;
+            this.length = length;
+            this.read = read;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.share.File;
+
+/**
+ * Writes content to an smb file as a pipeline of asynchronous WRITE requests,
+ * so that several chunks are on the wire at once instead of waiting a full
+ * round trip for every chunk.
+ *
+ * Content that is produced rather than read, such as an archive, can be
+ * written through an output stream that sends every filled chunk the same way.
+ *
+ * Chunk buffers come from a bounded pool shared by all writes of the
+ * processor. A write reserves all the buffers it may need before it starts,
+ * so concurrent writes can never starve each other.
+ */
+class PipelinedFileWriter {
+
+    private final int chunkSize;
+    private final int depth;
+    private final Semaphore bufferPermits;
+    private final ConcurrentLinkedQueue<byte[]> idleBuffers = new ConcurrentLinkedQueue<>();
+
+    PipelinedFileWriter(final int chunkSize, final int depth, final int maxConcurrentWrites) {
+        this.chunkSize = chunkSize;
+        this.depth = depth;
+        this.bufferPermits = new Semaphore(depth * maxConcurrentWrites, true);
+    }
+
+    /**
+     * The chunk size to use over the given connection, which is the configured
+     * chunk size unless the server negotiated a smaller maximum write size.
+     */
+    int getChunkSize(final Connection connection) {
+        return capToNegotiated(chunkSize, connection);
+    }
+
+    static int capToNegotiated(final int chunkSize, final Connection connection) {
+        final NegotiatedProtocol negotiated = connection == null ? null : connection.getNegotiatedProtocol();
+        if (negotiated == null || negotiated.getMaxWriteSize() <= 0) {
+            return chunkSize;
+        }
+        return Math.min(chunkSize, negotiated.getMaxWriteSize());
+    }
+
+    /**
+     * Copies the content to the file, starting at the given offset.
+     *
+     * @return the number of bytes written
+     */
+    long write(final File file, final InputStream content, final long startOffset, final int writeSize) throws IOException {
+        return write(file, content, startOffset, writeSize, null);
+    }
+
+    /**
+     * Copies the content to the file, starting at the given offset, and tells
+     * the listener about every chunk the server confirmed.
+     *
+     * @return the number of bytes written
+     */
+    long write(final File file, final InputStream content, final long startOffset, final int writeSize,
+            final ChunkListener listener) throws IOException {
+        try {
+            bufferPermits.acquire(depth);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for write buffers");
+        }
+
+        final Deque<PendingChunk> inFlight = new ArrayDeque<>(depth);
+        long offset = startOffset;
+        try {
+            while (true) {
+                final byte[] buffer = acquireBuffer();
+                final int length = readChunk(content, buffer, writeSize);
+                if (length <= 0) {
+                    idleBuffers.offer(buffer);
+                    break;
+                }
+
+                inFlight.add(new PendingChunk(buffer, offset, length, file.writeAsync(buffer, offset, 0, length)));
+                offset += length;
+                if (inFlight.size() >= depth) {
+                    await(file, inFlight.poll(), listener);
+                }
+                if (length < writeSize) {
+                    break;
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                await(file, inFlight.poll(), listener);
+            }
+            return offset - startOffset;
+        } finally {
+            // buffers of requests which may still be on the wire are not reused
+            bufferPermits.release(depth);
+        }
+    }
+
+    /**
+     * Opens an output stream which writes to the file from its start. Closing
+     * the stream waits for all of its writes, but does not close the file.
+     */
+    OutputStream openStream(final File file, final int writeSize) throws IOException {
+        try {
+            bufferPermits.acquire(depth);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for write buffers");
+        }
+        return new PipelinedOutputStream(file, writeSize);
+    }
+
+    private void await(final File file, final PendingChunk chunk, final ChunkListener listener) throws IOException {
+        final int written;
+        try {
+            written = chunk.write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for write at offset " + chunk.offset);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Write at offset " + chunk.offset + " failed", cause);
+        }
+
+        // the server may accept less than a full chunk
+        if (written < chunk.length) {
+            file.write(chunk.buffer, chunk.offset + written, written, chunk.length - written);
+        }
+        if (listener != null) {
+            listener.confirmed(chunk.offset, chunk.buffer, chunk.length);
+        }
+        idleBuffers.offer(chunk.buffer);
+    }
+
+    private byte[] acquireBuffer() {
+        final byte[] buffer = idleBuffers.poll();
+        return buffer != null ? buffer : new byte[chunkSize];
+    }
+
+    /**
+     * Reads until the buffer holds the given number of bytes or the content ends.
+     */
+    static int readChunk(final InputStream content, final byte[] buffer, final int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            final int read = content.read(buffer, filled, length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    private final class PipelinedOutputStream extends OutputStream {
+        private final File file;
+        private final int writeSize;
+        private final Deque<PendingChunk> inFlight = new ArrayDeque<>(depth);
+        private byte[] buffer = acquireBuffer();
+        private int filled = 0;
+        private long offset = 0;
+        private boolean closed = false;
+
+        private PipelinedOutputStream(final File file, final int writeSize) {
+            this.file = file;
+            this.writeSize = writeSize;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            buffer[filled++] = (byte) b;
+            if (filled == writeSize) {
+                send();
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            for (int done = 0; done < len; ) {
+                final int n = Math.min(len - done, writeSize - filled);
+                System.arraycopy(b, off + done, buffer, filled, n);
+                filled += n;
+                done += n;
+                if (filled == writeSize) {
+                    send();
+                }
+            }
+        }
+
+        /**
+         * Sends the partially filled chunk and waits for all writes.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            send();
+            while (!inFlight.isEmpty()) {
+                await(file, inFlight.poll(), null);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+                idleBuffers.offer(buffer);
+            } finally {
+                closed = true;
+                // buffers of requests which may still be on the wire are not reused
+                bufferPermits.release(depth);
+            }
+        }
+
+        private void send() throws IOException {
+            if (filled == 0) {
+                return;
+            }
+            inFlight.add(new PendingChunk(buffer, offset, filled, file.writeAsync(buffer, offset, 0, filled)));
+            offset += filled;
+            filled = 0;
+            if (inFlight.size() >= depth) {
+                await(file, inFlight.poll(), null);
+            }
+            buffer = acquireBuffer();
+        }
+    }
+
+    /**
+     * Told about the chunks of a write in their order, each once the server
+     * confirmed it, so every chunk before it has been confirmed as well.
+     */
+    interface ChunkListener {
+        /**
+         * @param buffer holds the data of the chunk, only until this returns
+         */
+        void confirmed(long offset, byte[] buffer, int length);
+    }
+
+    private static final class PendingChunk {
+        private final byte[] buffer;
+        private final long offset;
+        private final int length;
+        private final Future<Integer> write;
+
+        private PendingChunk(final byte[] buffer, final long offset, final int length, final Future<Integer> write) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.write = write;
+        }
+    }
+}
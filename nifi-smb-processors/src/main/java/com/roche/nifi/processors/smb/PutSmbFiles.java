@@ -19,17 +19,21 @@ package com.roche.nifi.processors.smb;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
@@ -38,27 +42,61 @@ import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.stream.io.StreamUtils;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.connection.Connection;
-import com.hierynomus.smbj.auth.AuthenticationContext;
 import com.hierynomus.smbj.share.DiskShare;
-import com.hierynomus.smbj.session.Session;
-import com.hierynomus.msfscc.FileAttributes;
 import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.protocol.commons.EnumWithValue;
 import com.hierynomus.mssmb2.SMB2ShareAccess;
 import com.hierynomus.mssmb2.SMB2CreateDisposition;
 import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.Directory;
 import com.hierynomus.smbj.share.File;
+import com.roche.nifi.processors.smb.CopySourceCache.CopySource;
+import com.roche.nifi.services.smb.SmbShareLease;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.EnumSet;
 
 @InputRequirement(Requirement.INPUT_REQUIRED)
@@ -67,7 +105,19 @@ import java.util.EnumSet;
     "Use this processor instead of a cifs mounts if share access control is important.")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="filename", description="The filename to use when writing the FlowFile to the network folder.")})
-public class PutSmbFiles extends AbstractProcessor {
+@WritesAttributes({@WritesAttribute(attribute="filename", description="The unique name the file was written under, " +
+        "if it was renamed because of the rename conflict resolution strategy."),
+    @WritesAttribute(attribute="smb.write.millis", description="The time it took to write the file, if timing attributes are enabled."),
+    @WritesAttribute(attribute="smb.bytes", description="The number of bytes written, if timing attributes are enabled."),
+    @WritesAttribute(attribute="smb.archive", description="The path of the archive the FlowFile was written to, if an archive format is set."),
+    @WritesAttribute(attribute="smb.archive.entry", description="The name of the FlowFile's entry in the archive, if an archive format is set."),
+    @WritesAttribute(attribute="smb.skipped", description="Set to true if the FlowFile was not written because an identical file " +
+        "already exists and the skip if identical conflict resolution strategy is used."),
+    @WritesAttribute(attribute="smb.resume.offset", description="The offset up to which a failed resumable upload was confirmed " +
+        "by the server. Removed once the FlowFile has been written."),
+    @WritesAttribute(attribute="smb.resume.checksum", description="The CRC-32 of the last bytes before the resume offset, " +
+        "in hexadecimal. Removed once the FlowFile has been written.")})
+public class PutSmbFiles extends AbstractSmbProcessor {
     public static final String SHARE_ACCESS_NONE = "none";
     public static final String SHARE_ACCESS_READ = "read";
     public static final String SHARE_ACCESS_READDELETE = "read, delete";
@@ -76,18 +126,54 @@ public class PutSmbFiles extends AbstractProcessor {
     public static final String REPLACE_RESOLUTION = "replace";
     public static final String IGNORE_RESOLUTION = "ignore";
     public static final String FAIL_RESOLUTION = "fail";
+    public static final String RENAME_RESOLUTION = "rename";
+    public static final String SKIP_IDENTICAL_RESOLUTION = "skip if identical";
+
+    public static final String DURABILITY_WRITE_THROUGH = "write-through";
+    public static final String DURABILITY_FLUSH_ON_CLOSE = "flush on close";
+    public static final String DURABILITY_FLUSH_PER_BATCH = "flush once per batch";
+
+    public static final String HOST_SELECTION_FAILOVER = HostSelector.FAILOVER;
+    public static final String HOST_SELECTION_ROUND_ROBIN = HostSelector.ROUND_ROBIN;
+    public static final String HOST_SELECTION_LEAST_OUTSTANDING = HostSelector.LEAST_OUTSTANDING;
+    public static final String HOST_SELECTION_LOWEST_LATENCY = HostSelector.LOWEST_LATENCY;
+
+    public static final String ARCHIVE_NONE = "none";
+    public static final String ARCHIVE_ZIP = "zip";
+    public static final String ARCHIVE_TAR = "tar";
+
+    public static final String WRITE_MILLIS_ATTRIBUTE = "smb.write.millis";
+    public static final String BYTES_ATTRIBUTE = "smb.bytes";
+    public static final String ARCHIVE_ATTRIBUTE = "smb.archive";
+    public static final String ARCHIVE_ENTRY_ATTRIBUTE = "smb.archive.entry";
+    public static final String SKIPPED_ATTRIBUTE = "smb.skipped";
+    public static final String RESUME_OFFSET_ATTRIBUTE = "smb.resume.offset";
+    public static final String RESUME_CHECKSUM_ATTRIBUTE = "smb.resume.checksum";
+
+    private static final Set<String> RESUME_ATTRIBUTES = Collections.unmodifiableSet(
+        new HashSet<>(Arrays.asList(RESUME_OFFSET_ATTRIBUTE, RESUME_CHECKSUM_ATTRIBUTE)));
+
+    private static final DateTimeFormatter SOURCE_LAST_MODIFIED_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
+
+    static final int MAX_RENAME_ATTEMPTS = 100;
 
     public static final PropertyDescriptor HOSTNAME = new PropertyDescriptor.Builder()
             .name("Hostname")
-            .description("The network host to which files should be written.")
+            .description("The network host to which files should be written, or a comma separated list of equivalent hosts " +
+                "serving the same shares. You may use expression language. The files of a batch are grouped by host and share " +
+                "and each group is written over its own session. With several hosts, each group is written to one of them, " +
+                "chosen by the host selection policy.")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
     public static final PropertyDescriptor SHARE = new PropertyDescriptor.Builder()
             .name("Share")
-            .description("The network share to which files should be written.")
+            .description("The network share to which files should be written. You may use expression language.")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
     public static final PropertyDescriptor DIRECTORY = new PropertyDescriptor.Builder()
             .name("Directory")
@@ -96,25 +182,6 @@ public class PutSmbFiles extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
-    public static final PropertyDescriptor DOMAIN = new PropertyDescriptor.Builder()
-            .name("Domain")
-            .description("The domain use for authentication")
-            .required(false)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .build();
-    public static final PropertyDescriptor USERNAME = new PropertyDescriptor.Builder()
-            .name("Username")
-            .description("The username use for authentication")
-            .required(false)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .build();
-    public static final PropertyDescriptor PASSWORD = new PropertyDescriptor.Builder()
-            .name("Password")
-            .description("The password use for authentication")
-            .required(false)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .sensitive(true)
-            .build();
     public static final PropertyDescriptor CREATE_DIRS = new PropertyDescriptor.Builder()
             .name("Create Missing Directories")
             .description("If true, then missing destination directories will be created. If false, flowfiles are penalized and sent to failure.")
@@ -122,6 +189,22 @@ public class PutSmbFiles extends AbstractProcessor {
             .allowableValues("true", "false")
             .defaultValue("false")
             .build();
+    public static final PropertyDescriptor DIRECTORY_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Directory Cache Size")
+            .description("The maximum number of directories remembered as existing, so that missing directories " +
+                "do not have to be looked for before every file. Only used when missing directories are created. " +
+                "Set to 0 to disable.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+    public static final PropertyDescriptor DIRECTORY_CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("Directory Cache Expiration")
+            .description("How long a directory is remembered as existing.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .build();
     public static final PropertyDescriptor SHARE_ACCESS = new PropertyDescriptor.Builder()
             .name("Share Access Strategy")
             .description("Indicates which shared access are granted on the file during the write. " + 
@@ -132,10 +215,47 @@ public class PutSmbFiles extends AbstractProcessor {
             .build();
     public static final PropertyDescriptor CONFLICT_RESOLUTION = new PropertyDescriptor.Builder()
             .name("Conflict Resolution Strategy")
-            .description("Indicates what should happen when a file with the same name already exists in the output directory")
+            .description("Indicates what should happen when a file with the same name already exists in the output directory. " +
+                "The existing file is detected by the create request itself, so no additional round trip is needed. " +
+                "'" + RENAME_RESOLUTION + "' writes the file under the first free name with a numeric suffix, e.g. report_1.csv, " +
+                "and updates the filename attribute accordingly. " +
+                "'" + SKIP_IDENTICAL_RESOLUTION + "' leaves an existing file of the same size alone if it was last written after " +
+                "the source last modified time, or if the content hash recorded when it was written matches, and replaces it otherwise. " +
+                "To find the existing files, every directory of a batch is listed once instead of querying every file.")
             .required(true)
             .defaultValue(REPLACE_RESOLUTION)
-            .allowableValues(REPLACE_RESOLUTION, IGNORE_RESOLUTION, FAIL_RESOLUTION)
+            .allowableValues(REPLACE_RESOLUTION, IGNORE_RESOLUTION, FAIL_RESOLUTION, RENAME_RESOLUTION, SKIP_IDENTICAL_RESOLUTION)
+            .build();
+    public static final PropertyDescriptor SOURCE_LAST_MODIFIED = new PropertyDescriptor.Builder()
+            .name("Source Last Modified Time")
+            .description("The time the content of a FlowFile was last modified at its source, in the format yyyy-MM-dd'T'HH:mm:ssZ " +
+                "as written by ListFile, GetFile or ListSmb. Only used by the '" + SKIP_IDENTICAL_RESOLUTION + "' strategy, " +
+                "which does not compare times if it is empty.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${file.lastModifiedTime}")
+            .build();
+    public static final PropertyDescriptor CONTENT_HASH_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Content Hash Cache Size")
+            .description("The maximum number of written files whose " + ContentHashCache.ALGORITHM + " content hash is remembered, " +
+                "so that the '" + SKIP_IDENTICAL_RESOLUTION + "' strategy can recognize identical content regardless of times. " +
+                "A hash is only trusted while the remote file keeps the size and last write time it had when it was written. " +
+                "Costs one additional request per written file. Set to 0 to disable.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .build();
+    public static final PropertyDescriptor DURABILITY = new PropertyDescriptor.Builder()
+            .name("Durability")
+            .description("When written data has to be on the server's disk before a FlowFile is routed to success. " +
+                "'" + DURABILITY_WRITE_THROUGH + "' makes the server commit every write request before acknowledging it. " +
+                "'" + DURABILITY_FLUSH_ON_CLOSE + "' writes through the server's cache and flushes each file before closing it. " +
+                "'" + DURABILITY_FLUSH_PER_BATCH + "' keeps the files of a batch open, flushes them all together at the end " +
+                "of the batch and only then routes them to success.")
+            .required(true)
+            .defaultValue(DURABILITY_WRITE_THROUGH)
+            .allowableValues(DURABILITY_WRITE_THROUGH, DURABILITY_FLUSH_ON_CLOSE, DURABILITY_FLUSH_PER_BATCH)
             .build();
     public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
             .name("Batch Size")
@@ -144,6 +264,212 @@ public class PutSmbFiles extends AbstractProcessor {
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
             .defaultValue("100")
             .build();
+    public static final PropertyDescriptor MAX_CONCURRENT_WRITES = new PropertyDescriptor.Builder()
+            .name("Max Concurrent Writes")
+            .description("The maximum number of files of a batch that are written at the same time over the same session. " +
+                "Values above 1 hide the network round trips of small files on high latency links.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor MAX_CONCURRENT_DESTINATIONS = new PropertyDescriptor.Builder()
+            .name("Max Concurrent Destinations")
+            .description("The maximum number of distinct hosts and shares of a batch that are written to at the same time, " +
+                "each over its own session. Only has an effect if Hostname or Share use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+    public static final PropertyDescriptor WRITE_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("Write Chunk Size")
+            .description("The size of a single write request. The maximum write size negotiated with the server " +
+                "is used instead if it is smaller.")
+            .required(true)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(4096, 16 * 1024 * 1024))
+            .defaultValue("1 MB")
+            .build();
+    public static final PropertyDescriptor WRITE_PIPELINE_DEPTH = new PropertyDescriptor.Builder()
+            .name("Write Pipeline Depth")
+            .description("The number of write requests kept in flight for a file larger than the write chunk size. " +
+                "Higher values keep high latency links busy at the cost of one chunk of memory per request. " +
+                "Set to 1 to write every chunk after the previous one has been acknowledged.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+    public static final PropertyDescriptor PARALLEL_STRIPES = new PropertyDescriptor.Builder()
+            .name("Parallel Stripes")
+            .description("The number of separate connections over which a file of at least the stripe threshold is written. " +
+                "Each connection writes its own chunks of the file in parallel. While a striped file is written, " +
+                "write sharing is granted on it in addition to the configured share access. Set to 1 to disable.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor STRIPE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Stripe Threshold")
+            .description("The minimum size of a file to be written over parallel stripes.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 GB")
+            .build();
+    public static final PropertyDescriptor SERVER_COPY_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Server-Side Copy Cache Size")
+            .description("The maximum number of recently written files remembered by their " + ContentHashCache.ALGORITHM +
+                " content hash. A file whose content was recently written to the same share is created by a copy on the server " +
+                "instead of being uploaded again, and is uploaded as usual if the copy fails. Costs reading the content of every " +
+                "file of at least the server-side copy threshold twice and one additional request per written file. Set to 0 to disable.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .build();
+    public static final PropertyDescriptor SERVER_COPY_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Server-Side Copy Threshold")
+            .description("The minimum size of a file to be created by a copy on the server. Smaller files are uploaded " +
+                "without taking their content hash.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 MB")
+            .build();
+    public static final PropertyDescriptor RESUMABLE_UPLOAD_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Resumable Upload Threshold")
+            .description("The minimum size of a file to be uploaded resumably. Such a file is written under a temporary name, " +
+                "a dot followed by its filename, FlowFile uuid and .partial, and renamed to its final name once all of it has been " +
+                "written, resolving a conflict with an existing file as configured. If the upload fails, the offset up to which the " +
+                "server confirmed the data is kept in the FlowFile's attributes and the partial file is left in place, so that the " +
+                "next attempt with the FlowFile continues from there as long as the partial file still ends with the same data. " +
+                "Resumable uploads are neither striped nor copied on the server, and are flushed before the rename unless written " +
+                "through. Leave unset to disable.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_IDLE_SESSIONS = new PropertyDescriptor.Builder()
+            .name("Max Idle Sessions")
+            .description("The maximum number of authenticated sessions to keep open between executions. " +
+                "Set this to at least the number of concurrent tasks so that every task can reuse a session. " +
+                "Not used when an SMB Connection Pool is set.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+    public static final PropertyDescriptor IDLE_SESSION_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Idle Session Timeout")
+            .description("How long an unused session is kept open before it is closed. Not used when an SMB Connection Pool is set.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .build();
+    public static final PropertyDescriptor KEEP_ALIVE_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Keep-Alive Interval")
+            .description("How often idle sessions are probed so that the server does not drop them. " +
+                "Idle sessions past the Idle Session Timeout are also evicted at this interval, and are never reused " +
+                "when borrowed later. Set to 0 sec to disable. " +
+                "Not used when an SMB Connection Pool is set.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 sec")
+            .build();
+    public static final PropertyDescriptor CIRCUIT_BREAKER_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Threshold")
+            .description("The number of consecutive failures to reach or authenticate with a host after which no further " +
+                "connections to it are attempted until the circuit breaker back-off has passed. In the meantime the FlowFiles " +
+                "for the host are left in the queue and the processor yields, as they are after any failed connection. " +
+                "Set to 0 to always attempt to connect.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("3")
+            .build();
+    public static final PropertyDescriptor CIRCUIT_BREAKER_BACK_OFF = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Back-Off")
+            .description("How long connections to a host are not attempted once its circuit breaker is open. " +
+                "Afterwards a single connection is attempted, which closes the breaker if it succeeds.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+    public static final PropertyDescriptor HOST_SELECTION_POLICY = new PropertyDescriptor.Builder()
+            .name("Host Selection Policy")
+            .description("How the host of a group of files is chosen if several hosts are given. Failover uses the first host " +
+                "in the list, round robin takes turns, least outstanding writes prefers the host with the fewest writes of this " +
+                "processor in flight and lowest latency the host which answered fastest recently. Healthy hosts whose circuit " +
+                "breaker is closed always come first. If the host of a group fails, the rest of the group moves on to the next " +
+                "host instead of being routed to failure, and the files of a group whose hosts all failed are left in the queue.")
+            .required(true)
+            .allowableValues(HOST_SELECTION_FAILOVER, HOST_SELECTION_ROUND_ROBIN, HOST_SELECTION_LEAST_OUTSTANDING,
+                HOST_SELECTION_LOWEST_LATENCY)
+            .defaultValue(HOST_SELECTION_FAILOVER)
+            .build();
+    public static final PropertyDescriptor MAX_HOST_LATENCY = new PropertyDescriptor.Builder()
+            .name("Max Host Latency")
+            .description("The recent latency above which a host is unhealthy, so that it is only used if no other host is healthy. " +
+                "The latency of a host is a moving average of the time it took to open a file on it, or to connect to it before " +
+                "a file was opened. It is forgotten once the host was not used for the circuit breaker back-off, so that an " +
+                "unhealthy host is tried again. Leave unset to consider every host healthy.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor TIMING_ATTRIBUTES = new PropertyDescriptor.Builder()
+            .name("Add Timing Attributes")
+            .description("Whether to add the time it took to write a file and its size as the " + WRITE_MILLIS_ATTRIBUTE +
+                " and " + BYTES_ATTRIBUTE + " attributes, so that slow destinations can be found in provenance. " +
+                "The time does not include a flush at the end of the batch.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor ARCHIVE_FORMAT = new PropertyDescriptor.Builder()
+            .name("Archive Format")
+            .description("If set, the FlowFiles of a batch going to the same directory are not written as files of their own, " +
+                "but streamed as the entries of a single archive file, which saves the create and close round trips of every file. " +
+                "Concurrent writes and parallel stripes are not used for archives.")
+            .required(true)
+            .defaultValue(ARCHIVE_NONE)
+            .allowableValues(ARCHIVE_NONE, ARCHIVE_ZIP, ARCHIVE_TAR)
+            .build();
+    public static final PropertyDescriptor ARCHIVE_FILENAME = new PropertyDescriptor.Builder()
+            .name("Archive Filename")
+            .description("The name of the archive file, evaluated against the first FlowFile of the archive. " +
+                "The extension of the archive format is appended unless the name already ends with it. " +
+                "The conflict resolution strategy applies to the archive file.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${uuid}")
+            .build();
+    public static final PropertyDescriptor ARCHIVE_ENTRY_NAME = new PropertyDescriptor.Builder()
+            .name("Archive Entry Name")
+            .description("The name of a FlowFile's entry in the archive. Backslashes are replaced by forward slashes, " +
+                "so that e.g. ${path}\\${filename} creates folders inside the archive.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${filename}")
+            .build();
+    public static final PropertyDescriptor MAX_ARCHIVE_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Archive Size")
+            .description("The maximum size of the FlowFiles taken for a single execution when an archive format is set. " +
+                "A single FlowFile larger than this is archived on its own.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("100 MB")
+            .build();
+    public static final PropertyDescriptor MIN_ARCHIVE_ENTRIES = new PropertyDescriptor.Builder()
+            .name("Min Archive Entries")
+            .description("The minimum number of FlowFiles to archive at once. Fewer FlowFiles are left in the queue until " +
+                "more arrive, the batch size or maximum archive size is reached, or the oldest of them has waited for " +
+                "the maximum archive bin age. Must not exceed the batch size.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor MAX_ARCHIVE_BIN_AGE = new PropertyDescriptor.Builder()
+            .name("Max Archive Bin Age")
+            .description("How long FlowFiles are left in the queue at most while waiting for the minimum number of archive entries, " +
+                "measured from when the oldest of them entered the flow.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .build();
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("Files that have been successfully written to the output network path are transferred to this relationship")
@@ -158,11 +484,28 @@ public class PutSmbFiles extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
-    private SMBClient smbClient = null;    
+    private volatile ExecutorService writeExecutor = null;
+
+    private volatile DirectoryCache directoryCache = null;
+
+    private volatile PipelinedFileWriter pipelinedWriter = null;
+
+    private volatile ExecutorService stripeExecutor = null;
+
+    private volatile StripedFileWriter stripedWriter = null;
+
+    private volatile HostCircuitBreaker circuitBreaker = null;
+
+    private volatile HostSelector hostSelector = null;
+
+    private volatile ContentHashCache contentHashCache = null;
+
+    private volatile CopySourceCache copySourceCache = null;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(CONNECTION_POOL);
         descriptors.add(HOSTNAME);
         descriptors.add(SHARE);
         descriptors.add(DIRECTORY);
@@ -170,19 +513,43 @@ public class PutSmbFiles extends AbstractProcessor {
         descriptors.add(USERNAME);
         descriptors.add(PASSWORD);
         descriptors.add(CREATE_DIRS);
+        descriptors.add(DIRECTORY_CACHE_SIZE);
+        descriptors.add(DIRECTORY_CACHE_TTL);
         descriptors.add(SHARE_ACCESS);
         descriptors.add(CONFLICT_RESOLUTION);
+        descriptors.add(SOURCE_LAST_MODIFIED);
+        descriptors.add(CONTENT_HASH_CACHE_SIZE);
+        descriptors.add(DURABILITY);
         descriptors.add(BATCH_SIZE);
+        descriptors.add(MAX_CONCURRENT_WRITES);
+        descriptors.add(MAX_CONCURRENT_DESTINATIONS);
+        descriptors.add(WRITE_CHUNK_SIZE);
+        descriptors.add(WRITE_PIPELINE_DEPTH);
+        descriptors.add(PARALLEL_STRIPES);
+        descriptors.add(STRIPE_THRESHOLD);
+        descriptors.add(SERVER_COPY_CACHE_SIZE);
+        descriptors.add(SERVER_COPY_THRESHOLD);
+        descriptors.add(RESUMABLE_UPLOAD_THRESHOLD);
+        descriptors.add(MAX_IDLE_SESSIONS);
+        descriptors.add(IDLE_SESSION_TIMEOUT);
+        descriptors.add(KEEP_ALIVE_INTERVAL);
+        descriptors.add(CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CIRCUIT_BREAKER_BACK_OFF);
+        descriptors.add(HOST_SELECTION_POLICY);
+        descriptors.add(MAX_HOST_LATENCY);
+        descriptors.add(TIMING_ATTRIBUTES);
+        descriptors.add(ARCHIVE_FORMAT);
+        descriptors.add(ARCHIVE_FILENAME);
+        descriptors.add(ARCHIVE_ENTRY_NAME);
+        descriptors.add(MAX_ARCHIVE_SIZE);
+        descriptors.add(MIN_ARCHIVE_ENTRIES);
+        descriptors.add(MAX_ARCHIVE_BIN_AGE);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(REL_SUCCESS);
         relationships.add(REL_FAILURE);
         this.relationships = Collections.unmodifiableSet(relationships);
-
-        if (this.smbClient == null) {
-            initSmbClient();
-        }
     }
 
     @Override
@@ -195,121 +562,1584 @@ public class PutSmbFiles extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (validationContext.getProperty(HOSTNAME).isSet() && !validationContext.getProperty(HOSTNAME).isExpressionLanguagePresent()
+                && HostSelector.parseHosts(validationContext.getProperty(HOSTNAME).getValue()).isEmpty()) {
+            results.add(new ValidationResult.Builder()
+                .subject(HOSTNAME.getDisplayName())
+                .valid(false)
+                .explanation("at least one host must be given")
+                .build());
+        }
+        if (!validationContext.getProperty(ARCHIVE_FORMAT).getValue().equals(ARCHIVE_NONE)
+                && validationContext.getProperty(MIN_ARCHIVE_ENTRIES).asInteger() > validationContext.getProperty(BATCH_SIZE).asInteger()) {
+            results.add(new ValidationResult.Builder()
+                .subject(MIN_ARCHIVE_ENTRIES.getDisplayName())
+                .valid(false)
+                .explanation("the minimum number of archive entries must not exceed the batch size")
+                .build());
+        }
+        return results;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
+        directoryCache = new DirectoryCache(
+            context.getProperty(DIRECTORY_CACHE_SIZE).asInteger(),
+            context.getProperty(DIRECTORY_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS));
+        circuitBreaker = new HostCircuitBreaker(
+            context.getProperty(CIRCUIT_BREAKER_THRESHOLD).asInteger(),
+            context.getProperty(CIRCUIT_BREAKER_BACK_OFF).asTimePeriod(TimeUnit.MILLISECONDS));
+        hostSelector = new HostSelector(
+            context.getProperty(HOST_SELECTION_POLICY).getValue(),
+            context.getProperty(MAX_HOST_LATENCY).isSet() ? context.getProperty(MAX_HOST_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS) : 0,
+            context.getProperty(CIRCUIT_BREAKER_BACK_OFF).asTimePeriod(TimeUnit.MILLISECONDS));
+        final int hashCacheSize = context.getProperty(CONTENT_HASH_CACHE_SIZE).asInteger();
+        if (hashCacheSize > 0 && context.getProperty(CONFLICT_RESOLUTION).getValue().equals(SKIP_IDENTICAL_RESOLUTION)) {
+            contentHashCache = new ContentHashCache(hashCacheSize);
+        }
+        final int copyCacheSize = context.getProperty(SERVER_COPY_CACHE_SIZE).asInteger();
+        if (copyCacheSize > 0) {
+            copySourceCache = new CopySourceCache(copyCacheSize);
+        }
 
-    }
+        // every destination written in parallel may have its own concurrent writes
+        final int maxWriterThreads = context.getProperty(MAX_CONCURRENT_WRITES).asInteger()
+            * context.getProperty(MAX_CONCURRENT_DESTINATIONS).asInteger();
+        if (maxWriterThreads > 1) {
+            writeExecutor = Executors.newFixedThreadPool(maxWriterThreads, r -> {
+                final Thread thread = new Thread(r, "PutSmbFiles Writer " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // resumable uploads learn about the confirmed writes from the pipeline, even with a single write in flight
+        final int pipelineDepth = context.getProperty(WRITE_PIPELINE_DEPTH).asInteger();
+        if (pipelineDepth > 1 || context.getProperty(RESUMABLE_UPLOAD_THRESHOLD).isSet()) {
+            pipelinedWriter = new PipelinedFileWriter(
+                context.getProperty(WRITE_CHUNK_SIZE).asDataSize(DataUnit.B).intValue(),
+                pipelineDepth,
+                // every concurrent task runs its own writer threads
+                maxWriterThreads * context.getMaxConcurrentTasks());
+        }
+
+        if (context.getProperty(PARALLEL_STRIPES).asInteger() > 1) {
+            stripeExecutor = Executors.newCachedThreadPool(r -> {
+                final Thread thread = new Thread(r, "PutSmbFiles Stripe Writer " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            });
+            stripedWriter = new StripedFileWriter(
+                stripeExecutor,
+                context.getProperty(WRITE_CHUNK_SIZE).asDataSize(DataUnit.B).intValue(),
+                pipelineDepth);
+        }
 
-    public void initSmbClient() {
-        initSmbClient(new SMBClient());
+        openSessionPool(
+            context,
+            context.getProperty(MAX_IDLE_SESSIONS).asInteger(),
+            context.getProperty(IDLE_SESSION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+            context.getProperty(KEEP_ALIVE_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
     }
 
-    public void initSmbClient(SMBClient smbClient) {
-        this.smbClient = smbClient;
+    @OnStopped
+    public void onStopped() {
+        circuitBreaker = null;
+        hostSelector = null;
+        contentHashCache = null;
+        copySourceCache = null;
+        pipelinedWriter = null;
+        stripedWriter = null;
+        if (stripeExecutor != null) {
+            stripeExecutor.shutdownNow();
+            stripeExecutor = null;
+        }
+        if (writeExecutor != null) {
+            writeExecutor.shutdownNow();
+            writeExecutor = null;
+        }
+        closeSessionPool();
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final HostCircuitBreaker breaker = circuitBreaker;
+        final HostSelector selector = hostSelector;
+        if (!context.getProperty(HOSTNAME).isExpressionLanguagePresent()) {
+            final List<String> hosts = HostSelector.parseHosts(context.getProperty(HOSTNAME).getValue());
+            if (!hosts.isEmpty() && hosts.stream().allMatch(breaker::isRefusing)) {
+                // do not even take the files of hosts which are known to be down
+                context.yield();
+                return;
+            }
+        }
+
         final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
-        List<FlowFile> flowFiles = session.get(batchSize);
+        final boolean archive = !context.getProperty(ARCHIVE_FORMAT).getValue().equals(ARCHIVE_NONE);
+        List<FlowFile> flowFiles = archive ? getArchiveBin(context, session, batchSize) : session.get(batchSize);
         if ( flowFiles.isEmpty() ) {
             return;
         }
         final ComponentLog logger = getLogger();
         logger.debug("Processing next {} flowfiles", new Object[]{flowFiles.size()});
-        
-        final String hostname = context.getProperty(HOSTNAME).getValue();
-        final String shareName = context.getProperty(SHARE).getValue();
-
-        final String domain = context.getProperty(DOMAIN).getValue();
-        final String username = context.getProperty(USERNAME).getValue();
-        String password = context.getProperty(PASSWORD).getValue();
-
-        AuthenticationContext ac = null;
-        if (username != null) {
-            if (password == null) {
-                password = "";
-            }
-            ac = new AuthenticationContext(
-                username,
-                password.toCharArray(),
-                domain);
-        } else {
-            ac = AuthenticationContext.anonymous();
+
+        // group the batch by destination, keeping the order of the files of each destination,
+        // and additionally by directory when every directory gets an archive of its own
+        final Map<String, Destination> destinations = new LinkedHashMap<>();
+        for (final FlowFile flowFile : flowFiles) {
+            final String hostname = context.getProperty(HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+            final String shareName = context.getProperty(SHARE).evaluateAttributeExpressions(flowFile).getValue();
+            if (hostname == null || HostSelector.parseHosts(hostname).isEmpty() || shareName == null || shareName.trim().isEmpty()) {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                logger.error("Penalizing {} and routing to 'failure' because its hostname or share is empty", new Object[]{flowFile});
+                continue;
+            }
+            final String key = hostname.toLowerCase() + "\\" + shareName.toLowerCase() + (archive
+                ? "\\" + context.getProperty(DIRECTORY).evaluateAttributeExpressions(flowFile).getValue()
+                : "");
+            destinations.computeIfAbsent(key, k -> new Destination(HostSelector.parseHosts(hostname), shareName, breaker, selector))
+                .flowFiles.add(flowFile);
         }
-        
 
-        // share access handling
-        Set<SMB2ShareAccess> sharedAccess = Collections.<SMB2ShareAccess>emptySet();
-        switch (context.getProperty(SHARE_ACCESS).getValue()) {
-            case SHARE_ACCESS_NONE:
-                /* nothing, already initated as empty */
-                break;
-            case SHARE_ACCESS_READ:
-                sharedAccess = EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ);
+        if (archive) {
+            final WriteSettings settings = new WriteSettings(context, directoryCache, pipelinedWriter, null, null, null);
+            boolean attempted = destinations.isEmpty();
+            for (final Destination destination : destinations.values()) {
+                if (!selectHost(destination)) {
+                    holdBack(session, destination);
+                    continue;
+                }
+                attempted = true;
+                writeArchive(context, session, settings, destination);
+            }
+            if (!attempted) {
+                context.yield();
+            }
+            return;
+        }
+
+        // writes run on the executor when more than one of them may be in
+        // flight, but every session call stays on this thread
+        final int maxConcurrentWrites = context.getProperty(MAX_CONCURRENT_WRITES).asInteger();
+        final ExecutorService executor = maxConcurrentWrites > 1 || destinations.size() > 1 ? writeExecutor : null;
+        final int writesPerDestination = executor == null ? 1 : maxConcurrentWrites;
+        final int maxConcurrentDestinations = context.getProperty(MAX_CONCURRENT_DESTINATIONS).asInteger();
+        final WriteSettings settings = new WriteSettings(context, directoryCache, pipelinedWriter, stripedWriter, contentHashCache, copySourceCache);
+
+        final Deque<Destination> waiting = new ArrayDeque<>(destinations.values());
+        final List<Destination> active = new ArrayList<>();
+        boolean attempted = destinations.isEmpty();
+        try {
+            while (!waiting.isEmpty() || !active.isEmpty()) {
+                while (active.size() < maxConcurrentDestinations && !waiting.isEmpty()) {
+                    final Destination destination = waiting.poll();
+                    if (!selectHost(destination)) {
+                        holdBack(session, destination);
+                        continue;
+                    }
+                    attempted = true;
+                    destination.connect(executor);
+                    active.add(destination);
+                }
+
+                // one file per destination and round, so the destinations are written in parallel
+                for (final Iterator<Destination> it = active.iterator(); it.hasNext(); ) {
+                    final Destination destination = it.next();
+                    if (!writeNext(context, session, settings, destination, executor, writesPerDestination)
+                            && !finish(context, session, settings, destination, executor)) {
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            // only reached with active destinations if the session is being rolled back
+            for (final Destination destination : active) {
+                destination.abandon();
+            }
+        }
+
+        if (!attempted) {
+            context.yield();
+        }
+    }
+
+    private void holdBack(final ProcessSession session, final Destination destination) {
+        session.transfer(destination.flowFiles);
+        session.adjustCounter("FlowFiles held back by circuit breaker", destination.flowFiles.size(), false);
+        getLogger().debug("Leaving {} flowfiles for {} in the queue because its circuit breaker is open",
+            new Object[]{destination.flowFiles.size(), String.join(", ", destination.hosts)});
+    }
+
+    /**
+     * Chooses the host the destination is written to next, among those which
+     * did not fail during this batch and whose circuit breaker lets a
+     * connection through.
+     *
+     * @return false if there is no such host
+     */
+    private boolean selectHost(final Destination destination) {
+        for (final String host : destination.selector.order(destination.hosts)) {
+            if (!destination.failedHosts.contains(host.toLowerCase()) && destination.breaker.tryAcquire(host)) {
+                destination.hostname = host;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the rest of the batch of the destination to another of its hosts
+     * after its current host failed. Without another host, the rest of the
+     * batch is left in the queue and the processor yields.
+     *
+     * @return false if there is no other host to write to
+     */
+    private boolean failOver(final ProcessContext context, final ProcessSession session, final Destination destination) {
+        final String failedHost = destination.hostname;
+        destination.failedHosts.add(failedHost.toLowerCase());
+        if (selectHost(destination)) {
+            session.adjustCounter("Failovers", 1, false);
+            getLogger().warn("Moving the remaining flowfiles for share {} from host {} to host {}",
+                new Object[]{destination.shareName, failedHost, destination.hostname});
+            return true;
+        }
+
+        final List<FlowFile> remaining = destination.remaining();
+        session.transfer(remaining);
+        session.adjustCounter(destination.hosts.size() > 1 ? "FlowFiles held back after failover" : "FlowFiles held back after connection failure",
+            remaining.size(), false);
+        getLogger().warn("Leaving {} flowfiles in the queue because none of the hosts {} could be written to",
+            new Object[]{remaining.size(), String.join(", ", destination.hosts)});
+        context.yield();
+        return false;
+    }
+
+    /**
+     * Takes the FlowFiles to archive, up to the batch size and the maximum
+     * archive size. Leaves them in the queue if there are fewer than the
+     * minimum number of entries and none of them has waited long enough.
+     */
+    private List<FlowFile> getArchiveBin(final ProcessContext context, final ProcessSession session, final int batchSize) {
+        final long maxSize = context.getProperty(MAX_ARCHIVE_SIZE).asDataSize(DataUnit.B).longValue();
+        final ArchiveBinFilter filter = new ArchiveBinFilter(batchSize, maxSize);
+        final List<FlowFile> flowFiles = session.get(filter);
+        if (flowFiles.isEmpty() || filter.full || flowFiles.size() >= context.getProperty(MIN_ARCHIVE_ENTRIES).asInteger()) {
+            return flowFiles;
+        }
+
+        long oldest = Long.MAX_VALUE;
+        for (final FlowFile flowFile : flowFiles) {
+            oldest = Math.min(oldest, flowFile.getEntryDate());
+        }
+        if (System.currentTimeMillis() - oldest >= context.getProperty(MAX_ARCHIVE_BIN_AGE).asTimePeriod(TimeUnit.MILLISECONDS)) {
+            return flowFiles;
+        }
+        session.transfer(flowFiles);
+        context.yield();
+        return Collections.emptyList();
+    }
+
+    /**
+     * Streams the files of the destination, which all go to the same
+     * directory, into a single archive file. The archive is removed again if
+     * it cannot be written completely, so its files either all succeed or all
+     * fail.
+     */
+    private void writeArchive(final ProcessContext context, final ProcessSession session, final WriteSettings settings,
+            final Destination destination) {
+        final ComponentLog logger = getLogger();
+        final List<FlowFile> flowFiles = destination.flowFiles;
+        final FlowFile first = flowFiles.get(0);
+        final String directory = context.getProperty(DIRECTORY).evaluateAttributeExpressions(first).getValue();
+        String archiveName = context.getProperty(ARCHIVE_FILENAME).evaluateAttributeExpressions(first).getValue();
+        final String extension = "." + settings.archiveFormat;
+        if (!archiveName.toLowerCase().endsWith(extension)) {
+            archiveName += extension;
+        }
+        final List<String> entryNames = new ArrayList<>(flowFiles.size());
+        for (final FlowFile flowFile : flowFiles) {
+            entryNames.add(context.getProperty(ARCHIVE_ENTRY_NAME).evaluateAttributeExpressions(flowFile).getValue().replace('\\', '/'));
+        }
+
+        long connectStart = System.nanoTime();
+        SmbShareLease lease = null;
+        while (lease == null) {
+            try {
+                lease = borrowShare(destination.hostname, destination.shareName);
+            } catch (Exception e) {
+                connectFailed(session, destination, e);
+                logger.error("Could not establish smb connection because of error {}", new Object[]{e});
+                if (!failOver(context, session, destination)) {
+                    return;
+                }
+                connectStart = System.nanoTime();
+            }
+        }
+        connected(session, destination, System.nanoTime() - connectStart);
+
+        final WriteTimings timings = new WriteTimings();
+        final OpenedTarget target;
+        try {
+            long start = System.nanoTime();
+            if (settings.createDirs) {
+                settings.directoryCache.ensureExists(lease, directory);
+            }
+            timings.directory = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            target = openResolvingConflict(lease, settings, directory, archiveName, settings.sharedAccess);
+            timings.open = System.nanoTime() - start;
+            destination.selector.recordOpen(destination.hostname, timings.open);
+            if (target.file != null) {
+                writeEntries(session, settings, lease, target.file, flowFiles, entryNames, timings);
+            }
+        } catch (Exception e) {
+            if (SmbSessionPool.isSessionLost(e) || !lease.isHealthy()) {
+                lease.invalidate();
+            }
+            lease.close();
+            for (final FlowFile flowFile : flowFiles) {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+            session.adjustCounter("Write failures to " + destination, flowFiles.size(), false);
+            logger.error("Penalizing {} flowfiles and routing to 'failure' because archive {} could not be written: {}",
+                new Object[]{flowFiles.size(), directory + "\\" + archiveName, e});
+            return;
+        }
+        lease.close();
+        timings.report(session);
+
+        switch (target.outcome) {
+            case EXISTS_IGNORED:
+                session.transfer(flowFiles, REL_SUCCESS);
+                logger.info("Transferring {} flowfiles to success because archive {} already exists",
+                    new Object[]{flowFiles.size(), directory + "\\" + archiveName});
                 break;
-            case SHARE_ACCESS_READDELETE:
-                sharedAccess = EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_DELETE);
+            case EXISTS_FAILED:
+                for (final FlowFile flowFile : flowFiles) {
+                    session.transfer(session.penalize(flowFile), REL_FAILURE);
+                }
+                logger.warn("Penalizing {} flowfiles and routing to failure as configured because archive {} already exists",
+                    new Object[]{flowFiles.size(), directory + "\\" + archiveName});
                 break;
-            case SHARE_ACCESS_READWRITEDELETE:
-                sharedAccess = EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_WRITE, SMB2ShareAccess.FILE_SHARE_DELETE);
+            default:
+                final String archivePath = directory + "\\" + target.name;
+                long bytes = 0;
+                for (int i = 0; i < flowFiles.size(); i++) {
+                    final Map<String, String> attributes = new HashMap<>();
+                    attributes.put(ARCHIVE_ATTRIBUTE, archivePath);
+                    attributes.put(ARCHIVE_ENTRY_ATTRIBUTE, entryNames.get(i));
+                    bytes += flowFiles.get(i).getSize();
+                    session.transfer(session.putAllAttributes(flowFiles.get(i), attributes), REL_SUCCESS);
+                }
+                session.adjustCounter("Archives written to " + destination, 1, false);
+                session.adjustCounter("Files written to " + destination, flowFiles.size(), false);
+                session.adjustCounter("Bytes written to " + destination, bytes, false);
                 break;
         }
+    }
+
+    /**
+     * Writes the content of the flowfiles as the entries of an archive and
+     * closes the archive file, deleting it if it could not be written.
+     */
+    private void writeEntries(final ProcessSession session, final WriteSettings settings, final SmbShareLease pooledShare,
+            final File file, final List<FlowFile> flowFiles, final List<String> entryNames, final WriteTimings timings) throws IOException {
+        boolean written = false;
+        long start = System.nanoTime();
+        OutputStream out = null;
+        ArchiveOutputStream archive = null;
+        try {
+            final PipelinedFileWriter writer = settings.pipelinedWriter;
+            out = writer != null
+                ? writer.openStream(file, writer.getChunkSize(pooledShare.getConnection()))
+                : file.getOutputStream();
+            archive = openArchive(settings.archiveFormat, out);
+            for (int i = 0; i < flowFiles.size(); i++) {
+                final FlowFile flowFile = flowFiles.get(i);
+                archive.putArchiveEntry(newArchiveEntry(settings.archiveFormat, entryNames.get(i), flowFile.getSize()));
+                try (InputStream content = session.read(flowFile)) {
+                    StreamUtils.copy(content, archive);
+                }
+                archive.closeArchiveEntry();
+            }
+            // finishes the archive and waits for all of its writes
+            archive.close();
+            timings.write = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            if (!settings.durability.equals(DURABILITY_WRITE_THROUGH)) {
+                // the archive is the whole batch, so flushing it once covers both durabilities
+                file.flush();
+            }
+            timings.flush = System.nanoTime() - start;
+            written = true;
+        } finally {
+            if (!written) {
+                if (archive != null) {
+                    closeQuietly(archive);
+                }
+                if (out != null) {
+                    closeQuietly(out);
+                }
+                try {
+                    file.deleteOnClose();
+                } catch (Exception e) {
+                    getLogger().warn("Could not remove partially written archive because of error {}", new Object[]{e});
+                }
+            }
+            start = System.nanoTime();
+            file.close();
+            timings.close = System.nanoTime() - start;
+        }
+    }
 
-        try (Connection connection = smbClient.connect(hostname);
-            Session smbSession = connection.authenticate(ac);
-            DiskShare share = (DiskShare) smbSession.connectShare(shareName);) {
+    private static ArchiveOutputStream openArchive(final String format, final OutputStream out) {
+        if (format.equals(ARCHIVE_TAR)) {
+            final TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            return tar;
+        }
+        return new ZipArchiveOutputStream(out);
+    }
 
-            for (FlowFile flowFile : flowFiles) {
-                final String directory = context.getProperty(DIRECTORY).evaluateAttributeExpressions(flowFile).getValue();
-                final String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
-                final String fullPath = directory + "\\" + filename;
+    private static ArchiveEntry newArchiveEntry(final String format, final String name, final long size) {
+        if (format.equals(ARCHIVE_TAR)) {
+            final TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(size);
+            return entry;
+        }
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setSize(size);
+        entry.setTime(System.currentTimeMillis());
+        return entry;
+    }
 
-                // missing directory handling
-                if (context.getProperty(CREATE_DIRS).asBoolean() && !share.folderExists(directory)) {
-                    logger.debug("Creating folder {}", new Object[]{directory});
-                    share.mkdir(directory);
+    /**
+     * Starts the write of the next file of the destination, after waiting for
+     * earlier writes if the destination has the maximum number of writes in
+     * flight.
+     *
+     * @return false if the destination has no files left to write
+     */
+    private boolean writeNext(final ProcessContext context, final ProcessSession session, final WriteSettings settings,
+            final Destination destination, final ExecutorService executor, final int writesPerDestination) {
+        final ComponentLog logger = getLogger();
+        if (destination.next >= destination.flowFiles.size()) {
+            return false;
+        }
+
+        if (destination.lease == null) {
+            try {
+                destination.lease = destination.connecting.get();
+            } catch (ExecutionException | InterruptedException e) {
+                destination.connecting = null;
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
                 }
+                final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                connectFailed(session, destination, cause);
+                logger.error("Could not establish smb connection because of error {}", new Object[]{cause});
+                if (!failOver(context, session, destination)) {
+                    return false;
+                }
+                destination.connect(executor);
+                return true;
+            }
+            destination.connecting = null;
+            connected(session, destination, destination.connectNanos);
+        }
 
-                // replace strategy handling
-                SMB2CreateDisposition createDisposition = SMB2CreateDisposition.FILE_OVERWRITE_IF;
-                final String conflictResolution = context.getProperty(CONFLICT_RESOLUTION).getValue();
-                if (!conflictResolution.equals(REPLACE_RESOLUTION) && share.fileExists(fullPath)) {
-                    if (conflictResolution.equals(IGNORE_RESOLUTION)) {
-                        session.transfer(flowFile, REL_SUCCESS);
-                        logger.info("Transferring {} to success because file with same name already exists", new Object[]{flowFile});
-                        continue;
-                    } else if (conflictResolution.equals(FAIL_RESOLUTION)) {
-                        flowFile = session.penalize(flowFile);
-                        logger.warn("Penalizing {} and routing to failure as configured because file with the same name already exists", new Object[]{flowFile});
-                        session.transfer(flowFile, REL_FAILURE);
-                        continue;
-                    } 
+        boolean sessionLost = false;
+        while (destination.pendingWrites.size() >= writesPerDestination) {
+            sessionLost |= completeWrite(session, settings, destination, destination.pendingWrites.poll());
+        }
+        if (sessionLost) {
+            // the server dropped the session, reconnect for the rest of the batch
+            while (!destination.pendingWrites.isEmpty()) {
+                completeWrite(session, settings, destination, destination.pendingWrites.poll());
+            }
+            flushDeferred(session, settings, destination, executor);
+            destination.lease.invalidate();
+            destination.lease.close();
+            destination.lease = null;
+            if (destination.hosts.size() > 1) {
+                // the writes lost with the session were queued again for the next host
+                if (!failOver(context, session, destination)) {
+                    return false;
+                }
+                destination.connect(executor);
+                return true;
+            }
+            final long reconnectStart = System.nanoTime();
+            try {
+                destination.lease = borrowShare(destination.hostname, destination.shareName);
+            } catch (Exception reconnectError) {
+                connectFailed(session, destination, reconnectError);
+                logger.error("Could not re-establish smb connection because of error {}", new Object[]{reconnectError});
+                failOver(context, session, destination);
+                return false;
+            }
+            connected(session, destination, System.nanoTime() - reconnectStart);
+        }
+
+        final FlowFile flowFile = destination.flowFiles.get(destination.next++);
+        final SmbShareLease lease = destination.lease;
+        final String directory = context.getProperty(DIRECTORY).evaluateAttributeExpressions(flowFile).getValue();
+        final String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+
+        if (settings.skipIdentical && isIdentical(context, session, settings, destination, flowFile, directory, filename)) {
+            session.adjustCounter("Files skipped as identical", 1, false);
+            session.transfer(session.putAttribute(flowFile, SKIPPED_ATTRIBUTE, "true"), REL_SUCCESS);
+            logger.debug("Transferring {} to success without writing it because an identical file already exists", new Object[]{flowFile});
+            return true;
+        }
+
+        final long size = flowFile.getSize();
+        final ResumableUpload upload = settings.resumableThreshold >= 0 && size >= settings.resumableThreshold
+            ? ResumableUpload.fromCheckpoint(
+                "." + filename + "." + flowFile.getAttribute(CoreAttributes.UUID.key()) + ".partial",
+                flowFile.getAttribute(RESUME_OFFSET_ATTRIBUTE),
+                flowFile.getAttribute(RESUME_CHECKSUM_ATTRIBUTE))
+            : null;
+
+        // hashed up front, so that a copy on the server can be chosen before the upload starts
+        final byte[] contentHash = upload == null && settings.copySourceCache != null && size >= settings.copyThreshold
+            ? hashContent(session, flowFile)
+            : null;
+
+        final InputStream content = session.read(flowFile);
+        destination.selector.writeStarted(destination.hostname);
+        final FutureTask<WriteResult> write = new FutureTask<>(() -> upload != null
+            ? writeResumable(lease, settings, directory, filename, content, size, upload)
+            : writeFile(lease, settings, directory, filename, content, size, contentHash));
+        destination.pendingWrites.add(new PendingWrite(flowFile, content, write, upload));
+        if (executor != null) {
+            executor.execute(write);
+        } else {
+            write.run();
+        }
+        return true;
+    }
+
+    /**
+     * Whether the file to write already exists with the same size and either
+     * was last written after the content was last modified at its source, or
+     * has the content hash recorded when it was written.
+     */
+    private boolean isIdentical(final ProcessContext context, final ProcessSession session, final WriteSettings settings,
+            final Destination destination, final FlowFile flowFile, final String directory, final String filename) {
+        final Map<String, RemoteFile> listing;
+        try {
+            listing = destination.listing(directory);
+        } catch (Exception e) {
+            getLogger().warn("Could not list {} to look for identical files, writing {} anyway: {}", new Object[]{directory, flowFile, e});
+            return false;
+        }
+        // the file is written unless it is skipped, so the listing is outdated for a later file of the same name
+        final RemoteFile remote = listing.remove(filename.toLowerCase());
+        if (remote == null || remote.size != flowFile.getSize()) {
+            return false;
+        }
+
+        final String sourceLastModified = context.getProperty(SOURCE_LAST_MODIFIED).evaluateAttributeExpressions(flowFile).getValue();
+        if (sourceLastModified != null && !sourceLastModified.isEmpty()) {
+            try {
+                if (remote.lastWriteTime >= SOURCE_LAST_MODIFIED_FORMAT.parse(sourceLastModified, Instant::from).toEpochMilli()) {
+                    return true;
                 }
+            } catch (DateTimeParseException e) {
+                getLogger().debug("Not comparing times for {} because of unparseable source last modified time {}",
+                    new Object[]{flowFile, sourceLastModified});
+            }
+        }
+
+        final ContentHashCache hashCache = settings.contentHashCache;
+        if (hashCache == null) {
+            return false;
+        }
+        final byte[] recorded = hashCache.get(destination.lease, directory + "\\" + filename, remote.size, remote.lastWriteTime);
+        if (recorded == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(recorded, hashContent(session, flowFile));
+    }
+
+    private static byte[] hashContent(final ProcessSession session, final FlowFile flowFile) {
+        final MessageDigest digest = ContentHashCache.newDigest();
+        session.read(flowFile, in -> {
+            final byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        });
+        return digest.digest();
+    }
+
+    /**
+     * Lists the files of the directory with their size and last write time.
+     */
+    private static Map<String, RemoteFile> listDirectory(final DiskShare share, final String directory) {
+        final Map<String, RemoteFile> files = new HashMap<>();
+        final Directory handle;
+        try {
+            handle = share.openDirectory(
+                directory,
+                EnumSet.of(AccessMask.FILE_LIST_DIRECTORY, AccessMask.FILE_READ_ATTRIBUTES),
+                null,
+                SMB2ShareAccess.ALL,
+                SMB2CreateDisposition.FILE_OPEN,
+                null);
+        } catch (SMBApiException e) {
+            if (!DirectoryCache.isPathNotFound(e)) {
+                throw e;
+            }
+            return files;
+        }
+
+        try {
+            for (final FileIdBothDirectoryInformation entry : handle) {
+                if (!EnumWithValue.EnumUtils.isSet(entry.getFileAttributes(), FileAttributes.FILE_ATTRIBUTE_DIRECTORY)) {
+                    files.put(entry.getFileName().toLowerCase(),
+                        new RemoteFile(entry.getEndOfFile(), entry.getLastWriteTime().toEpochMillis()));
+                }
+            }
+        } finally {
+            handle.closeSilently();
+        }
+        return files;
+    }
+
+    private void connected(final ProcessSession session, final Destination destination, final long connectNanos) {
+        // includes authenticating and connecting the share unless an idle session was reused
+        session.adjustCounter("SMB connect time (micros)", TimeUnit.NANOSECONDS.toMicros(connectNanos), false);
+        session.adjustCounter("SMB session borrows", 1, false);
+        destination.selector.recordConnect(destination.hostname, connectNanos);
+        if (destination.breaker.recordSuccess(destination.hostname)) {
+            session.adjustCounter("Circuit breakers closed", 1, false);
+            getLogger().info("Closing circuit breaker of host {} after a successful connection", new Object[]{destination.hostname});
+        }
+    }
+
+    /**
+     * Opens the circuit breaker of the host once it failed often enough in a
+     * row. Errors which are not failures of the host itself are not counted.
+     */
+    private void connectFailed(final ProcessSession session, final Destination destination, final Throwable error) {
+        session.adjustCounter("SMB connection failures", 1, false);
+        if (!HostCircuitBreaker.isHostFailure(error)) {
+            destination.breaker.recordInconclusive(destination.hostname);
+            return;
+        }
+        if (destination.breaker.recordFailure(destination.hostname)) {
+            session.adjustCounter("Circuit breakers opened", 1, false);
+            getLogger().warn("Opening circuit breaker of host {} after {} consecutive connection failures, " +
+                "its flowfiles are left in the queue for the next {} ms", new Object[]{destination.hostname,
+                destination.breaker.getConsecutiveFailures(destination.hostname), destination.breaker.getBackOffMillis()});
+        }
+    }
+
+    /**
+     * Waits for the remaining writes of the destination, flushes them if
+     * requested and gives the session back to the pool.
+     *
+     * @return true if writes were lost with the session and the destination
+     *      moved to another host to write them again
+     */
+    private boolean finish(final ProcessContext context, final ProcessSession session, final WriteSettings settings,
+            final Destination destination, final ExecutorService executor) {
+        boolean sessionLost = false;
+        while (!destination.pendingWrites.isEmpty()) {
+            sessionLost |= completeWrite(session, settings, destination, destination.pendingWrites.poll());
+        }
+        sessionLost |= flushDeferred(session, settings, destination, executor);
+        if (destination.lease != null) {
+            if (sessionLost) {
+                destination.lease.invalidate();
+            }
+            destination.lease.close();
+            destination.lease = null;
+        }
+        if (destination.next < destination.flowFiles.size() && failOver(context, session, destination)) {
+            destination.connect(executor);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the given write and routes its flowfile accordingly. Files
+     * left open for a flush at the end of the batch are added to the deferred
+     * flushes instead of being routed.
+     *
+     * @return true if the write failed because the smb session was lost
+     */
+    private boolean completeWrite(final ProcessSession session, final WriteSettings settings, final Destination destination,
+            final PendingWrite pendingWrite) {
+        final ComponentLog logger = getLogger();
+        FlowFile flowFile = pendingWrite.flowFile;
+
+        WriteResult result = null;
+        Throwable failure = null;
+        try {
+            result = pendingWrite.write.get();
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            closeQuietly(pendingWrite.content);
+            destination.selector.writeFinished(destination.hostname);
+        }
 
+        final ResumableUpload upload = pendingWrite.upload;
+        if (failure != null) {
+            if (upload != null && upload.getConfirmedOffset() > 0) {
+                // the next attempt continues from here, even on another node
+                final Map<String, String> checkpoint = new HashMap<>();
+                checkpoint.put(RESUME_OFFSET_ATTRIBUTE, String.valueOf(upload.getConfirmedOffset()));
+                checkpoint.put(RESUME_CHECKSUM_ATTRIBUTE, Long.toHexString(upload.getConfirmedChecksum()));
+                flowFile = session.putAllAttributes(flowFile, checkpoint);
+            }
+            final boolean sessionLost = SmbSessionPool.isSessionLost(failure) || !destination.lease.isHealthy();
+            if (sessionLost && destination.hosts.size() > 1) {
+                // written again once the destination moved to another host
+                destination.flowFiles.add(flowFile);
+                logger.warn("Writing {} again on another host because the session to {} was lost: {}",
+                    new Object[]{flowFile, destination.hostname, failure});
+                return true;
+            }
+            flowFile = session.penalize(flowFile);
+            session.transfer(flowFile, REL_FAILURE);
+            session.adjustCounter("Write failures to " + destination, 1, false);
+            logger.error("Penalizing {} and routing to 'failure' because of error {}", new Object[]{flowFile, failure});
+            return sessionLost;
+        }
+
+        result.timings.report(session);
+        if (result.timings.open > 0) {
+            destination.selector.recordOpen(destination.hostname, result.timings.open);
+        }
+        if (upload != null) {
+            if (upload.getResumedOffset() > 0) {
+                session.adjustCounter("Uploads resumed", 1, false);
+                session.adjustCounter("Bytes not uploaded again", upload.getResumedOffset(), false);
+            }
+            flowFile = session.removeAllAttributes(flowFile, RESUME_ATTRIBUTES);
+        }
+        if (result.copiedOnServer) {
+            session.adjustCounter("Files copied on server", 1, false);
+            session.adjustCounter("Bytes copied on server", flowFile.getSize(), false);
+        }
+        if (result.outcome == WriteOutcome.WRITTEN) {
+            session.adjustCounter("Files written to " + destination, 1, false);
+            session.adjustCounter("Bytes written to " + destination, flowFile.getSize(), false);
+            if (settings.timingAttributes) {
+                final Map<String, String> attributes = new HashMap<>();
+                attributes.put(WRITE_MILLIS_ATTRIBUTE, String.valueOf(TimeUnit.NANOSECONDS.toMillis(result.timings.total())));
+                attributes.put(BYTES_ATTRIBUTE, String.valueOf(flowFile.getSize()));
+                flowFile = session.putAllAttributes(flowFile, attributes);
+            }
+        }
 
-                try (File f = share.openFile(
-                        fullPath,
-                        EnumSet.of(AccessMask.GENERIC_ALL),
-                        EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
-                        sharedAccess,
-                        createDisposition,
-                        EnumSet.of(SMB2CreateOptions.FILE_WRITE_THROUGH));
-                    OutputStream os = f.getOutputStream()) {
-                    
-                    session.exportTo(flowFile, os);
-            
+        switch (result.outcome) {
+            case EXISTS_IGNORED:
+                session.transfer(flowFile, REL_SUCCESS);
+                logger.info("Transferring {} to success because file with same name already exists", new Object[]{flowFile});
+                break;
+            case EXISTS_FAILED:
+                flowFile = session.penalize(flowFile);
+                logger.warn("Penalizing {} and routing to failure as configured because file with the same name already exists", new Object[]{flowFile});
+                session.transfer(flowFile, REL_FAILURE);
+                break;
+            default:
+                if (result.renamedTo != null) {
+                    logger.info("Wrote {} as {} because file with same name already exists", new Object[]{flowFile, result.renamedTo});
+                    flowFile = session.putAttribute(flowFile, CoreAttributes.FILENAME.key(), result.renamedTo);
+                }
+                if (result.openFile != null) {
+                    destination.deferredFlushes.add(new DeferredFlush(flowFile, result.openFile, result.writtenHash));
+                } else {
                     session.transfer(flowFile, REL_SUCCESS);
-                } catch (Exception e) {
-                    flowFile = session.penalize(flowFile);
-                    session.transfer(flowFile, REL_FAILURE);
-                    logger.error("Penalizing {} and routing to 'failure' because of error {}", new Object[]{flowFile, e});
                 }
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Flushes the files kept open by the writes of the batch, at the same
+     * time if concurrent writes are enabled, and routes their flowfiles once
+     * all of them have been flushed.
+     *
+     * @return true if a flush failed because the smb session was lost
+     */
+    private boolean flushDeferred(final ProcessSession session, final WriteSettings settings, final Destination destination,
+            final ExecutorService executor) {
+        final List<DeferredFlush> deferredFlushes = destination.deferredFlushes;
+        final ComponentLog logger = getLogger();
+        final List<FutureTask<Long>> flushes = new ArrayList<>();
+        for (final DeferredFlush deferredFlush : deferredFlushes) {
+            final FutureTask<Long> flush = new FutureTask<>(() -> {
+                final long start = System.nanoTime();
+                deferredFlush.file.flush();
+                return System.nanoTime() - start;
+            });
+            flushes.add(flush);
+            if (executor != null) {
+                executor.execute(flush);
+            } else {
+                flush.run();
+            }
+        }
+
+        final List<FlowFile> flushed = new ArrayList<>();
+        long flushNanos = 0;
+        boolean sessionLost = false;
+        for (int i = 0; i < deferredFlushes.size(); i++) {
+            final DeferredFlush deferredFlush = deferredFlushes.get(i);
+            Throwable failure = null;
+            try {
+                flushNanos += flushes.get(i).get();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            } finally {
+                closeQuietly(deferredFlush.file);
+            }
+
+            if (failure == null) {
+                if (deferredFlush.writtenHash != null) {
+                    recordHash(destination.lease, settings, deferredFlush.writtenHash);
+                }
+                flushed.add(deferredFlush.flowFile);
+            } else {
+                final boolean lost = SmbSessionPool.isSessionLost(failure) || !destination.lease.isHealthy();
+                sessionLost |= lost;
+                if (lost && destination.hosts.size() > 1) {
+                    // written again once the destination moved to another host
+                    destination.flowFiles.add(deferredFlush.flowFile);
+                    logger.warn("Writing {} again on another host because the session to {} was lost before it was flushed: {}",
+                        new Object[]{deferredFlush.flowFile, destination.hostname, failure});
+                    continue;
+                }
+                final FlowFile flowFile = session.penalize(deferredFlush.flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+                logger.error("Penalizing {} and routing to 'failure' because it could not be flushed: {}", new Object[]{flowFile, failure});
+            }
+        }
+        deferredFlushes.clear();
+        if (!flushed.isEmpty()) {
+            session.adjustCounter("SMB flush time (micros)", TimeUnit.NANOSECONDS.toMicros(flushNanos), false);
+        }
+        session.transfer(flushed, REL_SUCCESS);
+        return sessionLost;
+    }
+
+    /**
+     * Writes a single file to the share. Does not touch the process session so
+     * that it can run on any thread.
+     */
+    private WriteResult writeFile(final SmbShareLease pooledShare, final WriteSettings settings, final String directory,
+            final String filename, final InputStream content, final long size, final byte[] contentHash) throws IOException {
+        final WriteTimings timings = new WriteTimings();
+
+        // missing directory handling
+        long start = System.nanoTime();
+        if (settings.createDirs) {
+            settings.directoryCache.ensureExists(pooledShare, directory);
+        }
+        timings.directory = System.nanoTime() - start;
+
+        final boolean striped = settings.stripedWriter != null && size >= settings.stripeThreshold;
+        final Set<SMB2ShareAccess> sharedAccess = EnumSet.noneOf(SMB2ShareAccess.class);
+        sharedAccess.addAll(settings.sharedAccess);
+        if (striped) {
+            // the other stripes open the same file for writing
+            sharedAccess.add(SMB2ShareAccess.FILE_SHARE_WRITE);
+        }
+
+        start = System.nanoTime();
+        final OpenedTarget target = openResolvingConflict(pooledShare, settings, directory, filename, sharedAccess);
+        timings.open = System.nanoTime() - start;
+        if (target.file == null) {
+            return new WriteResult(target.outcome, null, null, null, false, timings);
+        }
+        final File file = target.file;
+        final String targetName = target.name;
+        final String fullPath = directory + "\\" + targetName;
+
+        // unless known already, the hash is taken while the content passes by, so it is not read twice
+        final MessageDigest digest = contentHash == null && settings.contentHashCache != null ? ContentHashCache.newDigest() : null;
+        final InputStream data = digest != null ? new DigestInputStream(content, digest) : content;
+
+        boolean keepOpen = false;
+        boolean copied = false;
+        try {
+            start = System.nanoTime();
+            final PipelinedFileWriter writer = settings.pipelinedWriter;
+            if (contentHash != null && copyOnServer(pooledShare, settings.copySourceCache, contentHash, fullPath, file, size)) {
+                copied = true;
+            } else if (striped) {
+                writeStriped(pooledShare, settings, fullPath, file, data, size);
+            } else if (writer != null && size > writer.getChunkSize(pooledShare.getConnection())) {
+                // large files are written as a pipeline of chunks, small ones in a single request anyway
+                writer.write(file, data, 0, writer.getChunkSize(pooledShare.getConnection()));
+            } else {
+                try (OutputStream os = file.getOutputStream()) {
+                    StreamUtils.copy(data, os);
+                }
+            }
+
+            timings.write = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            if (settings.durability.equals(DURABILITY_FLUSH_ON_CLOSE)) {
+                file.flush();
+            } else if (settings.durability.equals(DURABILITY_FLUSH_PER_BATCH)) {
+                keepOpen = true;
+            }
+            timings.flush = System.nanoTime() - start;
+        } finally {
+            if (!keepOpen) {
+                start = System.nanoTime();
+                file.close();
+                timings.close = System.nanoTime() - start;
+            }
+        }
+
+        // many servers only settle the last write time on flush or close, so it is read once the file is closed
+        final byte[] hash = contentHash != null ? contentHash : digest != null ? digest.digest() : null;
+        final WrittenHash writtenHash = hash != null ? new WrittenHash(fullPath, size, hash) : null;
+        if (writtenHash != null && !keepOpen) {
+            recordHash(pooledShare, settings, writtenHash);
+        }
+        return new WriteResult(WriteOutcome.WRITTEN, targetName.equals(filename) ? null : targetName, keepOpen ? file : null,
+            keepOpen ? writtenHash : null, copied, timings);
+    }
+
+    /**
+     * Writes a single file under its temporary name and renames it to its
+     * final name once all of it has been written. Continues the partial file
+     * of an earlier attempt if it passes the checks of the upload, and leaves
+     * the partial file in place if the write fails. Does not touch the process
+     * session so that it can run on any thread.
+     */
+    private WriteResult writeResumable(final SmbShareLease pooledShare, final WriteSettings settings, final String directory,
+            final String filename, final InputStream content, final long size, final ResumableUpload upload) throws IOException {
+        final WriteTimings timings = new WriteTimings();
+
+        long start = System.nanoTime();
+        if (settings.createDirs) {
+            settings.directoryCache.ensureExists(pooledShare, directory);
+        }
+        timings.directory = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final String temporaryPath = directory + "\\" + upload.getTemporaryName();
+        final File file = openTarget(pooledShare, settings, directory, temporaryPath, settings.sharedAccess,
+            SMB2CreateDisposition.FILE_OPEN_IF);
+        timings.open = System.nanoTime() - start;
+
+        try {
+            start = System.nanoTime();
+            final long existingLength = file.getFileInformation(FileStandardInformation.class).getEndOfFile();
+            final long offset = upload.resume(file, existingLength);
+            if (offset > 0) {
+                getLogger().info("Resuming upload of {} at offset {}", new Object[]{temporaryPath, offset});
+                StreamUtils.skip(content, offset);
+            }
+            final PipelinedFileWriter writer = settings.pipelinedWriter;
+            writer.write(file, content, offset, writer.getChunkSize(pooledShare.getConnection()), upload);
+            if (existingLength > size) {
+                // left over from an attempt which was not continued
+                file.setLength(size);
+            }
+            timings.write = System.nanoTime() - start;
+
+            // the final name must not show up before the data is on disk
+            start = System.nanoTime();
+            if (!settings.durability.equals(DURABILITY_WRITE_THROUGH)) {
+                file.flush();
+            }
+            timings.flush = System.nanoTime() - start;
+
+            final String targetName = renameResolvingConflict(settings, file, directory, filename);
+            if (targetName == null) {
+                file.deleteOnClose();
+                return new WriteResult(settings.conflictResolution.equals(IGNORE_RESOLUTION)
+                    ? WriteOutcome.EXISTS_IGNORED
+                    : WriteOutcome.EXISTS_FAILED, null, null, null, false, timings);
+            }
+            return new WriteResult(WriteOutcome.WRITTEN, targetName.equals(filename) ? null : targetName, null, null, false, timings);
+        } finally {
+            start = System.nanoTime();
+            closeQuietly(file);
+            timings.close = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Renames the written file to its final name, resolving a conflict with an
+     * existing file of the same name as configured.
+     *
+     * @return the name the file was given, or null if it could not be renamed
+     *      because of a conflict
+     */
+    private static String renameResolvingConflict(final WriteSettings settings, final File file, final String directory,
+            final String filename) throws IOException {
+        final boolean replace = settings.conflictResolution.equals(REPLACE_RESOLUTION)
+            || settings.conflictResolution.equals(SKIP_IDENTICAL_RESOLUTION);
+
+        String targetName = filename;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                file.rename(directory + "\\" + targetName, replace);
+                return targetName;
+            } catch (SMBApiException e) {
+                if (e.getStatus() != NtStatus.STATUS_OBJECT_NAME_COLLISION) {
+                    throw e;
+                }
+                if (!settings.conflictResolution.equals(RENAME_RESOLUTION)) {
+                    return null;
+                }
+                if (attempt > MAX_RENAME_ATTEMPTS) {
+                    throw new IOException("Could not find a free name for " + filename + " in " + directory
+                        + " after " + MAX_RENAME_ATTEMPTS + " attempts", e);
+                }
+                targetName = uniqueName(filename, attempt);
+            }
+        }
+    }
+
+    /**
+     * Records the hash of a file just written and closed in the caches,
+     * together with its last write time so that a later change of the file is
+     * noticed.
+     */
+    private void recordHash(final SmbShareLease pooledShare, final WriteSettings settings, final WrittenHash written) {
+        try {
+            final long lastWriteTime = pooledShare.getShare().getFileInformation(written.path, FileBasicInformation.class)
+                .getLastWriteTime().toEpochMillis();
+            if (settings.contentHashCache != null) {
+                settings.contentHashCache.put(pooledShare, written.path, written.size, lastWriteTime, written.hash);
+            }
+            if (settings.copySourceCache != null) {
+                settings.copySourceCache.put(pooledShare, written.hash, written.path, written.size, lastWriteTime);
+            }
+        } catch (Exception e) {
+            // the file is only written again instead of being skipped or copied next time
+            getLogger().debug("Could not record the content hash of {} because of error {}", new Object[]{written.path, e});
+        }
+    }
+
+    /**
+     * Fills the target with a copy of a file of the same content on the same
+     * share, made by the server without the data crossing the network.
+     *
+     * @return false if no copy source is known or the copy failed, in which
+     *      case the content has to be uploaded
+     */
+    private boolean copyOnServer(final SmbShareLease pooledShare, final CopySourceCache copySourceCache, final byte[] hash,
+            final String fullPath, final File target, final long size) {
+        final CopySource source = copySourceCache.find(pooledShare, hash, size);
+        if (source == null || source.path.equalsIgnoreCase(fullPath)) {
+            // a file replaced by itself was truncated when the target was opened
+            return false;
+        }
+
+        try (File sourceFile = pooledShare.getShare().openFile(
+                source.path,
+                EnumSet.of(AccessMask.GENERIC_READ),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
+                SMB2CreateDisposition.FILE_OPEN,
+                EnumSet.noneOf(SMB2CreateOptions.class))) {
+            final FileAllInformation information = sourceFile.getFileInformation();
+            if (information.getStandardInformation().getEndOfFile() != size
+                    || information.getBasicInformation().getLastWriteTime().toEpochMillis() != source.lastWriteTime) {
+                getLogger().debug("Not copying {} to {} because it changed since it was written", new Object[]{source.path, fullPath});
+                copySourceCache.invalidate(pooledShare, hash, source);
+                return false;
             }
+            // requests a resume key for the source and copies it in chunks on the server
+            sourceFile.remoteCopyTo(target);
+            return true;
         } catch (Exception e) {
-            session.transfer(flowFiles, REL_FAILURE);
-            logger.error("Could not establish smb connection because of error {}", new Object[]{e});
+            getLogger().debug("Uploading {} because it could not be copied from {}: {}", new Object[]{fullPath, source.path, e});
+            copySourceCache.invalidate(pooledShare, hash, source);
+            return false;
+        }
+    }
+
+    /**
+     * Opens the file to write, resolving a conflict with an existing file of
+     * the same name as configured.
+     */
+    private OpenedTarget openResolvingConflict(final SmbShareLease pooledShare, final WriteSettings settings,
+            final String directory, final String filename, final Set<SMB2ShareAccess> sharedAccess) throws IOException {
+        // replace overwrites in place, the other strategies only create the file
+        // if it does not exist yet and learn about a conflict from the create itself
+        final SMB2CreateDisposition createDisposition = settings.conflictResolution.equals(REPLACE_RESOLUTION)
+                || settings.conflictResolution.equals(SKIP_IDENTICAL_RESOLUTION)
+            ? SMB2CreateDisposition.FILE_OVERWRITE_IF
+            : SMB2CreateDisposition.FILE_CREATE;
+
+        String targetName = filename;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final File file = openTarget(pooledShare, settings, directory, directory + "\\" + targetName, sharedAccess, createDisposition);
+                return new OpenedTarget(file, targetName, WriteOutcome.WRITTEN);
+            } catch (SMBApiException e) {
+                if (e.getStatus() != NtStatus.STATUS_OBJECT_NAME_COLLISION) {
+                    throw e;
+                }
+                switch (settings.conflictResolution) {
+                    case IGNORE_RESOLUTION:
+                        return new OpenedTarget(null, filename, WriteOutcome.EXISTS_IGNORED);
+                    case RENAME_RESOLUTION:
+                        if (attempt > MAX_RENAME_ATTEMPTS) {
+                            throw new IOException("Could not find a free name for " + filename + " in " + directory
+                                + " after " + MAX_RENAME_ATTEMPTS + " attempts", e);
+                        }
+                        targetName = uniqueName(filename, attempt);
+                        break;
+                    default:
+                        return new OpenedTarget(null, filename, WriteOutcome.EXISTS_FAILED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the target file, creating its directory again if it was removed
+     * since it was cached.
+     */
+    private File openTarget(final SmbShareLease pooledShare, final WriteSettings settings, final String directory,
+            final String fullPath, final Set<SMB2ShareAccess> sharedAccess, final SMB2CreateDisposition createDisposition) {
+        final DiskShare share = pooledShare.getShare();
+        try {
+            return openFile(share, fullPath, sharedAccess, createDisposition, getCreateOptions(settings));
+        } catch (SMBApiException e) {
+            if (!settings.createDirs || !DirectoryCache.isPathNotFound(e)) {
+                throw e;
+            }
+            getLogger().debug("Creating folder {} again", new Object[]{directory});
+            settings.directoryCache.invalidate(pooledShare, directory);
+            settings.directoryCache.ensureExists(pooledShare, directory);
+            return openFile(share, fullPath, sharedAccess, createDisposition, getCreateOptions(settings));
+        }
+    }
+
+    /**
+     * Returns the filename with the given numeric suffix inserted before its
+     * extension, e.g. report_2.csv for report.csv.
+     */
+    static String uniqueName(final String filename, final int suffix) {
+        final int dot = filename.lastIndexOf('.');
+        if (dot <= 0) {
+            return filename + "_" + suffix;
+        }
+        return filename.substring(0, dot) + "_" + suffix + filename.substring(dot);
+    }
+
+    /**
+     * Writes the file through one handle per stripe, each opened over its own
+     * connection. If any stripe fails, the partially written file is deleted
+     * when the primary handle is closed.
+     */
+    private void writeStriped(final SmbShareLease pooledShare, final WriteSettings settings, final String fullPath,
+            final File primary, final InputStream content, final long size) throws IOException {
+        final List<SmbShareLease> stripeLeases = new ArrayList<>();
+        final List<File> stripeFiles = new ArrayList<>();
+        stripeFiles.add(primary);
+        boolean written = false;
+        try {
+            primary.setLength(size);
+            for (int i = 1; i < settings.stripes; i++) {
+                final SmbShareLease stripeLease = borrowShare(pooledShare.getHostname(), pooledShare.getShareName(), i);
+                stripeLeases.add(stripeLease);
+                stripeFiles.add(stripeLease.getShare().openFile(
+                    fullPath,
+                    EnumSet.of(AccessMask.GENERIC_WRITE),
+                    EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                    EnumSet.allOf(SMB2ShareAccess.class),
+                    SMB2CreateDisposition.FILE_OPEN,
+                    getCreateOptions(settings)));
+            }
+
+            final StripedFileWriter writer = settings.stripedWriter;
+            writer.write(stripeFiles, content, PipelinedFileWriter.capToNegotiated(writer.getChunkSize(), pooledShare.getConnection()));
+            if (!settings.durability.equals(DURABILITY_WRITE_THROUGH)) {
+                // the primary handle is flushed according to the durability,
+                // but the data of the other stripes went through their own handles
+                for (final File stripeFile : stripeFiles.subList(1, stripeFiles.size())) {
+                    stripeFile.flush();
+                }
+            }
+            written = true;
+        } finally {
+            for (final File stripeFile : stripeFiles.subList(1, stripeFiles.size())) {
+                closeQuietly(stripeFile);
+            }
+            for (final SmbShareLease stripeLease : stripeLeases) {
+                if (!written && !stripeLease.isHealthy()) {
+                    stripeLease.invalidate();
+                }
+                stripeLease.close();
+            }
+            if (!written) {
+                try {
+                    primary.deleteOnClose();
+                } catch (Exception e) {
+                    getLogger().warn("Could not remove partially written file {} because of error {}", new Object[]{fullPath, e});
+                }
+            }
+        }
+    }
+
+    private static File openFile(final DiskShare share, final String fullPath, final Set<SMB2ShareAccess> sharedAccess,
+            final SMB2CreateDisposition createDisposition, final Set<SMB2CreateOptions> createOptions) {
+        return share.openFile(
+            fullPath,
+            EnumSet.of(AccessMask.GENERIC_ALL),
+            EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+            sharedAccess,
+            createDisposition,
+            createOptions);
+    }
+
+    private static Set<SMB2CreateOptions> getCreateOptions(final WriteSettings settings) {
+        if (settings.durability.equals(DURABILITY_WRITE_THROUGH)) {
+            return EnumSet.of(SMB2CreateOptions.FILE_WRITE_THROUGH);
+        }
+        return EnumSet.noneOf(SMB2CreateOptions.class);
+    }
+
+    private static Set<SMB2ShareAccess> getSharedAccess(final String shareAccessStrategy) {
+        switch (shareAccessStrategy) {
+            case SHARE_ACCESS_READ:
+                return EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ);
+            case SHARE_ACCESS_READDELETE:
+                return EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_DELETE);
+            case SHARE_ACCESS_READWRITEDELETE:
+                return EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_WRITE, SMB2ShareAccess.FILE_SHARE_DELETE);
+            default:
+                return Collections.<SMB2ShareAccess>emptySet();
+        }
+    }
+
+    /**
+     * Settings of the current batch, shared by all of its writes.
+     */
+    private static final class WriteSettings {
+        private final boolean createDirs;
+        private final DirectoryCache directoryCache;
+        private final String conflictResolution;
+        private final String durability;
+        private final Set<SMB2ShareAccess> sharedAccess;
+        private final boolean timingAttributes;
+        private final PipelinedFileWriter pipelinedWriter;
+        private final StripedFileWriter stripedWriter;
+        private final int stripes;
+        private final long stripeThreshold;
+        private final String archiveFormat;
+        private final boolean skipIdentical;
+        private final ContentHashCache contentHashCache;
+        private final CopySourceCache copySourceCache;
+        private final long copyThreshold;
+        private final long resumableThreshold;
+
+        private WriteSettings(final ProcessContext context, final DirectoryCache directoryCache, final PipelinedFileWriter pipelinedWriter,
+                final StripedFileWriter stripedWriter, final ContentHashCache contentHashCache, final CopySourceCache copySourceCache) {
+            this.createDirs = context.getProperty(CREATE_DIRS).asBoolean();
+            this.directoryCache = directoryCache;
+            this.conflictResolution = context.getProperty(CONFLICT_RESOLUTION).getValue();
+            this.durability = context.getProperty(DURABILITY).getValue();
+            this.sharedAccess = getSharedAccess(context.getProperty(SHARE_ACCESS).getValue());
+            this.timingAttributes = context.getProperty(TIMING_ATTRIBUTES).asBoolean();
+            this.pipelinedWriter = pipelinedWriter;
+            this.stripedWriter = stripedWriter;
+            this.stripes = context.getProperty(PARALLEL_STRIPES).asInteger();
+            this.stripeThreshold = context.getProperty(STRIPE_THRESHOLD).asDataSize(DataUnit.B).longValue();
+            this.archiveFormat = context.getProperty(ARCHIVE_FORMAT).getValue();
+            this.skipIdentical = conflictResolution.equals(SKIP_IDENTICAL_RESOLUTION);
+            this.contentHashCache = contentHashCache;
+            this.copySourceCache = copySourceCache;
+            this.copyThreshold = context.getProperty(SERVER_COPY_THRESHOLD).asDataSize(DataUnit.B).longValue();
+            this.resumableThreshold = context.getProperty(RESUMABLE_UPLOAD_THRESHOLD).isSet()
+                ? context.getProperty(RESUMABLE_UPLOAD_THRESHOLD).asDataSize(DataUnit.B).longValue()
+                : -1;
+        }
+    }
+
+    private enum WriteOutcome {
+        WRITTEN,
+        EXISTS_IGNORED,
+        EXISTS_FAILED
+    }
+
+    private static final class RemoteFile {
+        private final long size;
+        private final long lastWriteTime;
+
+        private RemoteFile(final long size, final long lastWriteTime) {
+            this.size = size;
+            this.lastWriteTime = lastWriteTime;
+        }
+    }
+
+    private static final class OpenedTarget {
+        private final File file;
+        private final String name;
+        private final WriteOutcome outcome;
+
+        private OpenedTarget(final File file, final String name, final WriteOutcome outcome) {
+            this.file = file;
+            this.name = name;
+            this.outcome = outcome;
+        }
+    }
+
+    private static final class WriteResult {
+        private final WriteOutcome outcome;
+        private final String renamedTo;
+        private final File openFile;
+        private final WrittenHash writtenHash;
+        private final boolean copiedOnServer;
+        private final WriteTimings timings;
+
+        private WriteResult(final WriteOutcome outcome, final String renamedTo, final File openFile, final WrittenHash writtenHash,
+                final boolean copiedOnServer, final WriteTimings timings) {
+            this.outcome = outcome;
+            this.renamedTo = renamedTo;
+            this.openFile = openFile;
+            this.writtenHash = writtenHash;
+            this.copiedOnServer = copiedOnServer;
+            this.timings = timings;
+        }
+    }
+
+    /**
+     * Time spent in the phases of a single write, in nanoseconds.
+     */
+    private static final class WriteTimings {
+        private long directory;
+        private long open;
+        private long write;
+        private long flush;
+        private long close;
+
+        private long total() {
+            return directory + open + write + flush + close;
+        }
+
+        private void report(final ProcessSession session) {
+            session.adjustCounter("SMB directory time (micros)", TimeUnit.NANOSECONDS.toMicros(directory), false);
+            session.adjustCounter("SMB open time (micros)", TimeUnit.NANOSECONDS.toMicros(open), false);
+            session.adjustCounter("SMB write time (micros)", TimeUnit.NANOSECONDS.toMicros(write), false);
+            session.adjustCounter("SMB flush time (micros)", TimeUnit.NANOSECONDS.toMicros(flush), false);
+            session.adjustCounter("SMB close time (micros)", TimeUnit.NANOSECONDS.toMicros(close), false);
+            session.adjustCounter("SMB writes", 1, false);
+
+            // a coarse histogram of the whole write
+            final long millis = TimeUnit.NANOSECONDS.toMillis(total());
+            if (millis < 10) {
+                session.adjustCounter("SMB writes under 10 ms", 1, false);
+            } else if (millis < 100) {
+                session.adjustCounter("SMB writes of 10 to 100 ms", 1, false);
+            } else if (millis < 1000) {
+                session.adjustCounter("SMB writes of 100 ms to 1 s", 1, false);
+            } else {
+                session.adjustCounter("SMB writes of 1 s or more", 1, false);
+            }
+        }
+    }
+
+    /**
+     * Accepts flowfiles up to the batch size and the maximum archive size,
+     * but always at least one.
+     */
+    private static final class ArchiveBinFilter implements FlowFileFilter {
+        private final int maxCount;
+        private final long maxSize;
+        private int count = 0;
+        private long size = 0;
+        private boolean full = false;
+
+        private ArchiveBinFilter(final int maxCount, final long maxSize) {
+            this.maxCount = maxCount;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public FlowFileFilterResult filter(final FlowFile flowFile) {
+            if (count > 0 && size + flowFile.getSize() > maxSize) {
+                full = true;
+                return FlowFileFilterResult.REJECT_AND_TERMINATE;
+            }
+            count++;
+            size += flowFile.getSize();
+            if (count >= maxCount || size >= maxSize) {
+                full = true;
+                return FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+            }
+            return FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+        }
+    }
+
+    private static final class DeferredFlush {
+        private final FlowFile flowFile;
+        private final File file;
+        private final WrittenHash writtenHash;
+
+        private DeferredFlush(final FlowFile flowFile, final File file, final WrittenHash writtenHash) {
+            this.flowFile = flowFile;
+            this.file = file;
+            this.writtenHash = writtenHash;
+        }
+    }
+
+    /**
+     * The content hash of a written file, to be recorded once the file has
+     * been closed.
+     */
+    private static final class WrittenHash {
+        private final String path;
+        private final long size;
+        private final byte[] hash;
+
+        private WrittenHash(final String path, final long size, final byte[] hash) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The files of a batch going to the same host and share, and the state
+     * of writing them over one session.
+     */
+    private final class Destination {
+        private final List<String> hosts;
+        private final String shareName;
+        private final HostCircuitBreaker breaker;
+        private final HostSelector selector;
+        private final Set<String> failedHosts = new HashSet<>();
+        private final List<FlowFile> flowFiles = new ArrayList<>();
+        private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        private final List<DeferredFlush> deferredFlushes = new ArrayList<>();
+        private final Map<String, Map<String, RemoteFile>> listings = new HashMap<>();
+        private int next = 0;
+        private FutureTask<SmbShareLease> connecting = null;
+        private long connectNanos = 0;
+        private SmbShareLease lease = null;
+        private String hostname;
+
+        private Destination(final List<String> hosts, final String shareName, final HostCircuitBreaker breaker,
+                final HostSelector selector) {
+            this.hosts = hosts;
+            this.shareName = shareName;
+            this.breaker = breaker;
+            this.selector = selector;
+            this.hostname = hosts.get(0);
+        }
+
+        private void connect(final ExecutorService executor) {
+            final String host = hostname;
+            connecting = new FutureTask<>(() -> {
+                final long start = System.nanoTime();
+                final SmbShareLease borrowed = borrowShare(host, shareName);
+                connectNanos = System.nanoTime() - start;
+                return borrowed;
+            });
+            if (executor != null) {
+                executor.execute(connecting);
+            } else {
+                connecting.run();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "\\\\" + hostname + "\\" + shareName;
+        }
+
+        /**
+         * The files of the directory, listed once per batch.
+         */
+        private Map<String, RemoteFile> listing(final String directory) {
+            final String key = directory.toLowerCase();
+            Map<String, RemoteFile> listing = listings.get(key);
+            if (listing == null) {
+                listing = listDirectory(lease.getShare(), directory);
+                listings.put(key, listing);
+            }
+            return listing;
+        }
+
+        private List<FlowFile> remaining() {
+            final List<FlowFile> remaining = new ArrayList<>(flowFiles.subList(next, flowFiles.size()));
+            next = flowFiles.size();
+            return remaining;
+        }
+
+        /**
+         * Releases everything still held without touching the process session.
+         */
+        private void abandon() {
+            for (final PendingWrite pendingWrite : pendingWrites) {
+                selector.writeFinished(hostname);
+                try {
+                    final WriteResult result = pendingWrite.write.get();
+                    if (result.openFile != null) {
+                        closeQuietly(result.openFile);
+                    }
+                } catch (Exception e) {
+                    // the flowfile goes back to the queue on rollback
+                }
+                closeQuietly(pendingWrite.content);
+            }
+            pendingWrites.clear();
+            for (final DeferredFlush deferredFlush : deferredFlushes) {
+                closeQuietly(deferredFlush.file);
+            }
+            deferredFlushes.clear();
+            if (lease == null && connecting != null) {
+                // the breaker must learn the outcome in case this was its probe
+                try {
+                    lease = connecting.get();
+                    breaker.recordSuccess(hostname);
+                } catch (Exception e) {
+                    breaker.recordFailure(hostname);
+                }
+            }
+            if (lease != null) {
+                lease.close();
+                lease = null;
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        private final FlowFile flowFile;
+        private final InputStream content;
+        private final Future<WriteResult> write;
+        private final ResumableUpload upload;
+
+        private PendingWrite(final FlowFile flowFile, final InputStream content, final Future<WriteResult> write,
+                final ResumableUpload upload) {
+            this.flowFile = flowFile;
+            this.content = content;
+            this.write = write;
+            this.upload = upload;
         }
-        
     }
 }
@@ -0,0 +1,581 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.record.path.RecordPath;
+import org.apache.nifi.record.path.validation.RecordPathValidator;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.smbj.share.File;
+import com.roche.nifi.services.smb.SmbShareLease;
+
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@Tags({"samba, smb, cifs, files, put, record, partition"})
+@CapabilityDescription("Streams the records of a FlowFile into files on a samba network location, partitioned into " +
+    "directories and files by the value of a record path. Every record is read, written to the file of its partition " +
+    "and let go before the next one is read, so neither the records nor the files are held in memory, and no " +
+    "intermediate FlowFiles are created. A FlowFile is only routed to success once all of its files are complete; " +
+    "otherwise the files written for it are removed again.")
+@SeeAlso({PutSmbFiles.class})
+@WritesAttributes({@WritesAttribute(attribute="record.count", description="The number of records written."),
+    @WritesAttribute(attribute="smb.file.count", description="The number of remote files the records were written to.")})
+public class PutSmbRecord extends AbstractSmbProcessor {
+    public static final String PARTITION_VARIABLE = "smb.partition";
+    public static final String FILE_INDEX_VARIABLE = "smb.file.index";
+
+    public static final String RECORD_COUNT_ATTRIBUTE = "record.count";
+    public static final String FILE_COUNT_ATTRIBUTE = "smb.file.count";
+
+    private static final String INVALID_NAME_CHARACTERS = ":*?\"<>|";
+
+    public static final PropertyDescriptor HOSTNAME = new PropertyDescriptor.Builder()
+            .name("Hostname")
+            .description("The network host to which files should be written. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+    public static final PropertyDescriptor SHARE = new PropertyDescriptor.Builder()
+            .name("Share")
+            .description("The network share to which files should be written. You may use expression language.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+    public static final PropertyDescriptor DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Directory")
+            .description("The network folder to which the files of a partition should be written. Besides the attributes " +
+                "of the FlowFile, expression language may refer to ${" + PARTITION_VARIABLE + "}, the partition of the file, " +
+                "and ${" + FILE_INDEX_VARIABLE + "}, the number of files of the same partition written before it for the FlowFile.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${" + PARTITION_VARIABLE + "}")
+            .build();
+    public static final PropertyDescriptor FILENAME = new PropertyDescriptor.Builder()
+            .name("Filename")
+            .description("The name of a file, with the same variables as the directory. Every file written for a FlowFile " +
+                "must get a name of its own, so the name has to include ${" + FILE_INDEX_VARIABLE + "} whenever a partition " +
+                "may be written to more than one file.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${uuid}-${" + FILE_INDEX_VARIABLE + "}")
+            .build();
+    public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .name("Record Reader")
+            .description("The record reader used to read the incoming FlowFiles.")
+            .required(true)
+            .identifiesControllerService(RecordReaderFactory.class)
+            .build();
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("Record Writer")
+            .description("The record writer used to write the remote files. Every file is a record set of its own.")
+            .required(true)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+    public static final PropertyDescriptor PARTITION_RECORD_PATH = new PropertyDescriptor.Builder()
+            .name("Partition Record Path")
+            .description("The record path whose value is the partition of a record. If it selects several fields, their values " +
+                "are joined with backslashes, so that e.g. a site and a date become a folder per site with a folder per date. " +
+                "Slashes within a value create folders as well, while characters not allowed in names are replaced by " +
+                "underscores and '.' or '..' are dropped. A record without a value belongs to the partition with an empty name. " +
+                "If not set, all records belong to that partition.")
+            .required(false)
+            .addValidator(new RecordPathValidator())
+            .build();
+    public static final PropertyDescriptor CREATE_DIRS = new PropertyDescriptor.Builder()
+            .name("Create Missing Directories")
+            .description("If true, then missing destination directories will be created. If false, flowfiles are penalized and sent to failure.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor CONFLICT_RESOLUTION = new PropertyDescriptor.Builder()
+            .name("Conflict Resolution Strategy")
+            .description("Indicates what should happen when a file with the same name already exists. " +
+                "If '" + PutSmbFiles.FAIL_RESOLUTION + "', the FlowFile is routed to failure.")
+            .required(true)
+            .defaultValue(PutSmbFiles.REPLACE_RESOLUTION)
+            .allowableValues(PutSmbFiles.REPLACE_RESOLUTION, PutSmbFiles.FAIL_RESOLUTION)
+            .build();
+    public static final PropertyDescriptor MAX_OPEN_FILES = new PropertyDescriptor.Builder()
+            .name("Max Open Files")
+            .description("The maximum number of remote files a concurrent task keeps open at the same time. When a record " +
+                "belongs to a partition without an open file and the limit is reached, the file that was written to least " +
+                "recently is completed and closed, and the next record of its partition starts a new file. Every open file " +
+                "holds up to the write pipeline depth of chunks in memory.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .build();
+    public static final PropertyDescriptor MAX_RECORDS_PER_FILE = new PropertyDescriptor.Builder()
+            .name("Max Records Per File")
+            .description("The number of records after which a file is completed and the next record of its partition " +
+                "starts a new file. If not set, the number of records is not limited.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_FILE_SIZE = new PropertyDescriptor.Builder()
+            .name("Max File Size")
+            .description("The size after which a file is completed and the next record of its partition starts a new file. " +
+                "The size is checked after every record, as far as the record writer has passed it on, so a file may " +
+                "exceed it by a record and what the writer buffers. If not set, the size is not limited.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor DURABILITY = new PropertyDescriptor.Builder()
+            .name("Durability")
+            .description("When written data has to be on the server's disk. " +
+                "'" + PutSmbFiles.DURABILITY_WRITE_THROUGH + "' makes the server commit every write request before acknowledging it. " +
+                "'" + PutSmbFiles.DURABILITY_FLUSH_ON_CLOSE + "' writes through the server's cache and flushes each file before closing it.")
+            .required(true)
+            .defaultValue(PutSmbFiles.DURABILITY_WRITE_THROUGH)
+            .allowableValues(PutSmbFiles.DURABILITY_WRITE_THROUGH, PutSmbFiles.DURABILITY_FLUSH_ON_CLOSE)
+            .build();
+    public static final PropertyDescriptor WRITE_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("Write Chunk Size")
+            .description("The size of a single write request. The maximum write size negotiated with the server " +
+                "is used instead if it is smaller.")
+            .required(true)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(4096, 16 * 1024 * 1024))
+            .defaultValue("1 MB")
+            .build();
+    public static final PropertyDescriptor WRITE_PIPELINE_DEPTH = new PropertyDescriptor.Builder()
+            .name("Write Pipeline Depth")
+            .description("The number of write requests kept in flight per open file. Higher values keep high latency " +
+                "links busy at the cost of one chunk of memory per request.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("2")
+            .build();
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles whose records have all been written are transferred to this relationship")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles whose records could not be read or written are transferred to this relationship")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile DirectoryCache directoryCache = null;
+
+    private volatile PipelinedFileWriter pipelinedWriter = null;
+
+    private volatile RecordPath partitionPath = null;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(CONNECTION_POOL);
+        descriptors.add(HOSTNAME);
+        descriptors.add(SHARE);
+        descriptors.add(DIRECTORY);
+        descriptors.add(FILENAME);
+        descriptors.add(DOMAIN);
+        descriptors.add(USERNAME);
+        descriptors.add(PASSWORD);
+        descriptors.add(RECORD_READER);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(PARTITION_RECORD_PATH);
+        descriptors.add(CREATE_DIRS);
+        descriptors.add(CONFLICT_RESOLUTION);
+        descriptors.add(MAX_OPEN_FILES);
+        descriptors.add(MAX_RECORDS_PER_FILE);
+        descriptors.add(MAX_FILE_SIZE);
+        descriptors.add(DURABILITY);
+        descriptors.add(WRITE_CHUNK_SIZE);
+        descriptors.add(WRITE_PIPELINE_DEPTH);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        // same as the defaults of PutSmbFiles, which has to remember far more directories per batch
+        directoryCache = new DirectoryCache(1000, TimeUnit.MINUTES.toMillis(5));
+        partitionPath = context.getProperty(PARTITION_RECORD_PATH).isSet()
+            ? RecordPath.compile(context.getProperty(PARTITION_RECORD_PATH).getValue())
+            : null;
+        pipelinedWriter = new PipelinedFileWriter(
+            context.getProperty(WRITE_CHUNK_SIZE).asDataSize(DataUnit.B).intValue(),
+            context.getProperty(WRITE_PIPELINE_DEPTH).asInteger(),
+            context.getProperty(MAX_OPEN_FILES).asInteger() * context.getMaxConcurrentTasks());
+
+        // one idle session per concurrent task, every FlowFile is written over a single session
+        openSessionPool(context, context.getMaxConcurrentTasks(), TimeUnit.MINUTES.toMillis(5), 0);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        directoryCache = null;
+        partitionPath = null;
+        pipelinedWriter = null;
+        closeSessionPool();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        final ComponentLog logger = getLogger();
+        final String hostname = context.getProperty(HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+        final String shareName = context.getProperty(SHARE).evaluateAttributeExpressions(flowFile).getValue();
+        final String destination = "\\\\" + hostname + "\\" + shareName;
+
+        final SmbShareLease lease;
+        try {
+            lease = borrowShare(hostname, shareName);
+        } catch (Exception e) {
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            logger.error("Penalizing {} and routing to 'failure' because no smb connection to {} could be established: {}",
+                new Object[]{flowFile, hostname, e});
+            context.yield();
+            return;
+        }
+
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        final RecordPath partitionPath = this.partitionPath;
+
+        final PartitionedFiles files = new PartitionedFiles(context, flowFile, lease, writerFactory);
+        long records = 0;
+        try (final InputStream in = session.read(flowFile);
+             final RecordReader reader = readerFactory.createRecordReader(flowFile, in, logger)) {
+            files.schema = writerFactory.getSchema(flowFile.getAttributes(), reader.getSchema());
+            Record record;
+            while ((record = reader.nextRecord()) != null) {
+                files.write(partition(partitionPath, record), record);
+                records++;
+            }
+            files.completeAll();
+        } catch (Exception e) {
+            files.abandon();
+            if (SmbSessionPool.isSessionLost(e) || !lease.isHealthy()) {
+                lease.invalidate();
+            }
+            lease.close();
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            session.adjustCounter("Write failures to " + destination, 1, false);
+            logger.error("Penalizing {} and routing to 'failure' because its records could not be written to {}: {}",
+                new Object[]{flowFile, destination, e});
+            return;
+        }
+        if (!lease.isHealthy()) {
+            lease.invalidate();
+        }
+        lease.close();
+
+        long bytes = 0;
+        for (final PartitionFile file : files.completed) {
+            bytes += file.out.getBytesWritten();
+            session.getProvenanceReporter().send(flowFile, "smb://" + hostname + "/" + shareName + "/" + file.path.replace('\\', '/'));
+        }
+        session.adjustCounter("Records written to " + destination, records, false);
+        session.adjustCounter("Files written to " + destination, files.completed.size(), false);
+        session.adjustCounter("Bytes written to " + destination, bytes, false);
+        if (files.evictions > 0) {
+            session.adjustCounter("Files closed for the open file limit", files.evictions, false);
+        }
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(RECORD_COUNT_ATTRIBUTE, String.valueOf(records));
+        attributes.put(FILE_COUNT_ATTRIBUTE, String.valueOf(files.completed.size()));
+        session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+    }
+
+    /**
+     * @return the partition of the record as a relative path, empty if the
+     *      record has none
+     */
+    static String partition(final RecordPath partitionPath, final Record record) {
+        if (partitionPath == null) {
+            return "";
+        }
+        final StringBuilder partition = new StringBuilder();
+        partitionPath.evaluate(record).getSelectedFields().forEach(field -> {
+            final Object value = field.getValue();
+            if (value == null) {
+                return;
+            }
+            for (final String segment : value.toString().split("[\\\\/]")) {
+                final String sanitized = sanitize(segment.trim());
+                if (sanitized.isEmpty() || sanitized.equals(".") || sanitized.equals("..")) {
+                    continue;
+                }
+                if (partition.length() > 0) {
+                    partition.append('\\');
+                }
+                partition.append(sanitized);
+            }
+        });
+        return partition.toString();
+    }
+
+    private static String sanitize(final String name) {
+        final StringBuilder sanitized = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            sanitized.append(c < 0x20 || INVALID_NAME_CHARACTERS.indexOf(c) >= 0 ? '_' : c);
+        }
+        return sanitized.toString();
+    }
+
+    /**
+     * The remote files written for a single FlowFile. At most the maximum
+     * number of them are open at a time, the least recently written one is
+     * completed to make room for another.
+     */
+    private final class PartitionedFiles {
+        private final ProcessContext context;
+        private final FlowFile flowFile;
+        private final SmbShareLease lease;
+        private final int maxOpenFiles;
+        private final long maxRecords;
+        private final long maxBytes;
+        private final boolean writeThrough;
+        private final Map<String, PartitionFile> open = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Integer> fileCounts = new HashMap<>();
+        private final Set<String> paths = new HashSet<>();
+        private final List<PartitionFile> completed = new ArrayList<>();
+        private final RecordSetWriterFactory writerFactory;
+        private RecordSchema schema;
+        private int evictions = 0;
+
+        private PartitionedFiles(final ProcessContext context, final FlowFile flowFile, final SmbShareLease lease,
+                final RecordSetWriterFactory writerFactory) {
+            this.context = context;
+            this.flowFile = flowFile;
+            this.lease = lease;
+            this.writerFactory = writerFactory;
+            this.maxOpenFiles = context.getProperty(MAX_OPEN_FILES).asInteger();
+            this.maxRecords = context.getProperty(MAX_RECORDS_PER_FILE).isSet() ? context.getProperty(MAX_RECORDS_PER_FILE).asInteger() : 0;
+            this.maxBytes = context.getProperty(MAX_FILE_SIZE).isSet() ? context.getProperty(MAX_FILE_SIZE).asDataSize(DataUnit.B).longValue() : 0;
+            this.writeThrough = context.getProperty(DURABILITY).getValue().equals(PutSmbFiles.DURABILITY_WRITE_THROUGH);
+        }
+
+        private void write(final String partition, final Record record) throws IOException, SchemaNotFoundException {
+            PartitionFile file = open.get(partition);
+            if (file == null) {
+                if (open.size() >= maxOpenFiles) {
+                    final Iterator<PartitionFile> eldest = open.values().iterator();
+                    final PartitionFile evicted = eldest.next();
+                    eldest.remove();
+                    complete(evicted);
+                    evictions++;
+                }
+                file = open(partition);
+                open.put(partition, file);
+            }
+            file.writer.write(record);
+            file.records++;
+            if ((maxRecords > 0 && file.records >= maxRecords) || (maxBytes > 0 && file.out.getBytesWritten() >= maxBytes)) {
+                open.remove(partition);
+                complete(file);
+            }
+        }
+
+        private PartitionFile open(final String partition) throws IOException, SchemaNotFoundException {
+            final int index = fileCounts.merge(partition, 1, Integer::sum) - 1;
+            final Map<String, String> variables = new HashMap<>();
+            variables.put(PARTITION_VARIABLE, partition);
+            variables.put(FILE_INDEX_VARIABLE, String.valueOf(index));
+            final String directory = normalize(context.getProperty(DIRECTORY).evaluateAttributeExpressions(flowFile, variables).getValue());
+            final String filename = context.getProperty(FILENAME).evaluateAttributeExpressions(flowFile, variables).getValue();
+            final String path = directory.isEmpty() ? filename : directory + "\\" + filename;
+            if (!paths.add(path.toLowerCase())) {
+                throw new ProcessException("More than one file of the FlowFile would be written to " + path
+                    + ", the filename has to tell partitions and rotated files apart");
+            }
+
+            if (context.getProperty(CREATE_DIRS).asBoolean()) {
+                directoryCache.ensureExists(lease, directory);
+            }
+            final File handle = lease.getShare().openFile(
+                path,
+                EnumSet.of(AccessMask.GENERIC_WRITE, AccessMask.DELETE),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                Collections.<SMB2ShareAccess>emptySet(),
+                context.getProperty(CONFLICT_RESOLUTION).getValue().equals(PutSmbFiles.FAIL_RESOLUTION)
+                    ? SMB2CreateDisposition.FILE_CREATE
+                    : SMB2CreateDisposition.FILE_OVERWRITE_IF,
+                writeThrough ? EnumSet.of(SMB2CreateOptions.FILE_WRITE_THROUGH) : EnumSet.noneOf(SMB2CreateOptions.class));
+            final PartitionFile file = new PartitionFile(path, handle);
+            try {
+                file.out = new ByteCountingOutputStream(pipelinedWriter.openStream(handle, pipelinedWriter.getChunkSize(lease.getConnection())));
+                file.writer = writerFactory.createWriter(getLogger(), schema, file.out);
+                file.writer.beginRecordSet();
+            } catch (IOException | SchemaNotFoundException | RuntimeException e) {
+                discard(file);
+                throw e;
+            }
+            return file;
+        }
+
+        /**
+         * Finishes the record set of the file, waits for all of its writes
+         * and closes it.
+         */
+        private void complete(final PartitionFile file) throws IOException {
+            try {
+                file.writer.finishRecordSet();
+                file.writer.close();
+                // closing again is a no-op unless the writer left the stream open
+                file.out.close();
+                if (!writeThrough) {
+                    file.handle.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                discard(file);
+                throw e;
+            }
+            file.handle.close();
+            completed.add(file);
+        }
+
+        private void completeAll() throws IOException {
+            final Iterator<PartitionFile> files = open.values().iterator();
+            while (files.hasNext()) {
+                final PartitionFile file = files.next();
+                files.remove();
+                complete(file);
+            }
+        }
+
+        /**
+         * Removes every file written so far, so that the FlowFile can be
+         * written again from its start.
+         */
+        private void abandon() {
+            for (final PartitionFile file : open.values()) {
+                discard(file);
+            }
+            open.clear();
+            for (final PartitionFile file : completed) {
+                try {
+                    final File handle = lease.getShare().openFile(
+                        file.path,
+                        EnumSet.of(AccessMask.DELETE),
+                        EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                        EnumSet.of(SMB2ShareAccess.FILE_SHARE_DELETE),
+                        SMB2CreateDisposition.FILE_OPEN,
+                        EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE));
+                    handle.deleteOnClose();
+                    handle.close();
+                } catch (Exception e) {
+                    getLogger().warn("Could not remove {} written for {} because of error {}", new Object[]{file.path, flowFile, e});
+                }
+            }
+            completed.clear();
+        }
+
+        private void discard(final PartitionFile file) {
+            if (file.writer != null) {
+                closeQuietly(file.writer);
+            }
+            if (file.out != null) {
+                closeQuietly(file.out);
+            }
+            try {
+                file.handle.deleteOnClose();
+            } catch (Exception e) {
+                getLogger().warn("Could not remove partially written {} because of error {}", new Object[]{file.path, e});
+            }
+            closeQuietly(file.handle);
+        }
+    }
+
+    private static final class PartitionFile {
+        private final String path;
+        private final File handle;
+        private ByteCountingOutputStream out;
+        private RecordSetWriter writer;
+        private long records = 0;
+
+        private PartitionFile(final String path, final File handle) {
+            this.path = path;
+            this.handle = handle;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.util.zip.CRC32;
+
+import com.hierynomus.smbj.share.File;
+
+/**
+ * Tracks the progress of an upload to a temporary file, so that a later
+ * attempt with the same content can continue where this one stopped.
+ *
+ * The checkpoint of an attempt is the offset up to which the server confirmed
+ * every write, together with a checksum of the last bytes before it. A
+ * partial file is only continued if it is at least as long as the checkpoint
+ * offset and still ends with the same bytes there, as data the server
+ * confirmed may still be lost, or the file changed by someone else.
+ *
+ * Every attempt has an instance of its own, used by a single write at a time.
+ */
+class ResumableUpload implements PipelinedFileWriter.ChunkListener {
+
+    static final int TAIL_SIZE = 64 * 1024;
+
+    private final String temporaryName;
+    private final long checkpointOffset;
+    private final long checkpointChecksum;
+
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private int tailLength = 0;
+    private long confirmedOffset = 0;
+    private long resumedOffset = 0;
+
+    ResumableUpload(final String temporaryName, final long checkpointOffset, final long checkpointChecksum) {
+        this.temporaryName = temporaryName;
+        this.checkpointOffset = checkpointOffset;
+        this.checkpointChecksum = checkpointChecksum;
+    }
+
+    /**
+     * @return the upload, continuing from the given checkpoint attributes if
+     *      both of them are present and valid
+     */
+    static ResumableUpload fromCheckpoint(final String temporaryName, final String offset, final String checksum) {
+        if (offset == null || checksum == null) {
+            return new ResumableUpload(temporaryName, 0, 0);
+        }
+        try {
+            return new ResumableUpload(temporaryName, Long.parseLong(offset), Long.parseLong(checksum, 16));
+        } catch (NumberFormatException e) {
+            return new ResumableUpload(temporaryName, 0, 0);
+        }
+    }
+
+    String getTemporaryName() {
+        return temporaryName;
+    }
+
+    /**
+     * Checks the partial file left by an earlier attempt against the
+     * checkpoint.
+     *
+     * @param length the current length of the partial file
+     * @return the offset to continue from, or 0 if the file has to be written
+     *      from its start
+     */
+    long resume(final File file, final long length) {
+        if (checkpointOffset <= 0 || length < checkpointOffset) {
+            return 0;
+        }
+        final int n = (int) Math.min(TAIL_SIZE, checkpointOffset);
+        final byte[] remote = new byte[n];
+        for (int filled = 0; filled < n; ) {
+            final int read = file.read(remote, checkpointOffset - n + filled, filled, n - filled);
+            if (read <= 0) {
+                return 0;
+            }
+            filled += read;
+        }
+        if (checksum(remote, n) != checkpointChecksum) {
+            return 0;
+        }
+
+        System.arraycopy(remote, 0, tail, 0, n);
+        tailLength = n;
+        confirmedOffset = checkpointOffset;
+        resumedOffset = checkpointOffset;
+        return checkpointOffset;
+    }
+
+    @Override
+    public void confirmed(final long offset, final byte[] buffer, final int length) {
+        if (length >= TAIL_SIZE) {
+            System.arraycopy(buffer, length - TAIL_SIZE, tail, 0, TAIL_SIZE);
+            tailLength = TAIL_SIZE;
+        } else {
+            // keep as much of the earlier tail as still fits before the chunk
+            final int kept = Math.min(tailLength, TAIL_SIZE - length);
+            System.arraycopy(tail, tailLength - kept, tail, 0, kept);
+            System.arraycopy(buffer, 0, tail, kept, length);
+            tailLength = kept + length;
+        }
+        confirmedOffset = offset + length;
+    }
+
+    /**
+     * @return the offset up to which the server confirmed every write, 0 if
+     *      it confirmed none
+     */
+    long getConfirmedOffset() {
+        return confirmedOffset;
+    }
+
+    /**
+     * @return the checksum of the last bytes before the confirmed offset
+     */
+    long getConfirmedChecksum() {
+        return checksum(tail, tailLength);
+    }
+
+    /**
+     * @return the offset this attempt continued from, 0 if it started over
+     */
+    long getResumedOffset() {
+        return resumedOffset;
+    }
+
+    private static long checksum(final byte[] data, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+}
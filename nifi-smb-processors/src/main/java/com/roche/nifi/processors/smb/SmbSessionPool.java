@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import com.roche.nifi.services.smb.SmbShareLease;
+
+/**
+ * Keeps authenticated SMB sessions and their share handles open between
+ * processor invocations, so the connect/authenticate/connectShare handshake
+ * is only paid when no healthy idle handle is available.
+ *
+ * Idle handles are kept per host and share. They are checked on borrow and
+ * evicted once they have been idle longer than the idle timeout, on borrow
+ * or, if a keep-alive interval is given, by the background task which also
+ * probes them so the server does not drop them. If a maximum number of active handles per share is given,
+ * borrowers wait for a handle to be returned once that limit is reached.
+ *
+ * smbj shares one TCP connection per host within a client. Callers that need
+ * several independent connections to the same host borrow with a connection
+ * index above 0, which is served by a separate client from the client factory.
+ */
+public class SmbSessionPool implements Closeable {
+
+    private final SMBClient smbClient;
+    private final Supplier<SMBClient> clientFactory;
+    private final Map<Integer, SMBClient> extraClients = new HashMap<>();
+    private final AuthenticationContext authenticationContext;
+    private final int maxActivePerShare;
+    private final long maxWaitMillis;
+    private final int maxIdlePerShare;
+    private final long idleTimeoutMillis;
+    private final Map<String, Deque<PooledShare>> idleShares = new HashMap<>();
+    private final Map<String, Semaphore> activePermits = new HashMap<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private final ScheduledExecutorService keepAliveExecutor;
+    private boolean closed = false;
+
+    public SmbSessionPool(final SMBClient smbClient, final Supplier<SMBClient> clientFactory,
+            final AuthenticationContext authenticationContext,
+            final int maxIdlePerShare, final long idleTimeoutMillis, final long keepAliveMillis) {
+        this(smbClient, clientFactory, authenticationContext, 0, 0, maxIdlePerShare, idleTimeoutMillis, keepAliveMillis);
+    }
+
+    public SmbSessionPool(final SMBClient smbClient, final Supplier<SMBClient> clientFactory,
+            final AuthenticationContext authenticationContext,
+            final int maxActivePerShare, final long maxWaitMillis,
+            final int maxIdlePerShare, final long idleTimeoutMillis, final long keepAliveMillis) {
+        this.smbClient = smbClient;
+        this.clientFactory = clientFactory;
+        this.authenticationContext = authenticationContext;
+        this.maxActivePerShare = maxActivePerShare;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxIdlePerShare = maxIdlePerShare;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        if (keepAliveMillis > 0) {
+            keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "SMB Session Keep-Alive");
+                thread.setDaemon(true);
+                return thread;
+            });
+            keepAliveExecutor.scheduleWithFixedDelay(this::maintain, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+        } else {
+            keepAliveExecutor = null;
+        }
+    }
+
+    /**
+     * Returns a healthy share handle for the given host and share, reusing an
+     * idle one if possible. The caller must close the returned handle to give
+     * it back to the pool, or invalidate it first if it turned out to be broken.
+     */
+    public PooledShare borrow(final String hostname, final String shareName) throws IOException {
+        return borrow(hostname, shareName, 0);
+    }
+
+    /**
+     * Same as {@link #borrow(String, String)}, but over the given one of several
+     * independent TCP connections to the host.
+     */
+    public PooledShare borrow(final String hostname, final String shareName, final int connectionIndex) throws IOException {
+        final String key = key(hostname, shareName, connectionIndex);
+        final Semaphore permit = acquirePermit(key);
+        try {
+            PooledShare pooled;
+            while ((pooled = pollIdle(key)) != null) {
+                if (!pooled.isExpired(System.currentTimeMillis()) && pooled.isHealthy()) {
+                    break;
+                }
+                pooled.destroy();
+            }
+            if (pooled == null) {
+                pooled = open(hostname, shareName, connectionIndex);
+            }
+            pooled.lend(permit);
+            return pooled;
+        } catch (IOException | RuntimeException e) {
+            if (permit != null) {
+                permit.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Evicts idle handles which exceeded the idle timeout and sends a cheap
+     * request over the remaining ones so the server keeps the session alive.
+     * Only the handle being probed is taken out of the pool, so the others
+     * can still be borrowed meanwhile.
+     */
+    void maintain() {
+        final List<PooledShare> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (final Deque<PooledShare> idle : idleShares.values()) {
+                candidates.addAll(idle);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        for (final PooledShare pooled : candidates) {
+            if (!takeIdle(pooled)) {
+                // borrowed in the meantime
+                continue;
+            }
+            if (pooled.isExpired(now) || !pooled.isHealthy() || !pooled.keepAlive()) {
+                pooled.destroy();
+            } else {
+                restoreIdle(pooled);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        final List<PooledShare> toDestroy = new ArrayList<>();
+        final List<Connection> toClose;
+        final List<SMBClient> clientsToClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final Deque<PooledShare> idle : idleShares.values()) {
+                toDestroy.addAll(idle);
+            }
+            idleShares.clear();
+            toClose = new ArrayList<>(connections);
+            connections.clear();
+            clientsToClose = new ArrayList<>(extraClients.values());
+            extraClients.clear();
+        }
+
+        if (keepAliveExecutor != null) {
+            keepAliveExecutor.shutdownNow();
+        }
+        for (final PooledShare pooled : toDestroy) {
+            pooled.destroy();
+        }
+        for (final Connection connection : toClose) {
+            closeQuietly(connection);
+        }
+        for (final SMBClient client : clientsToClose) {
+            if (client != smbClient) {
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /**
+     * Tells whether the given error means the server dropped the session or
+     * the connection beneath it, in which case the handle must not be reused.
+     */
+    public static boolean isSessionLost(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransportException) {
+                return true;
+            }
+            if (cause instanceof SMBApiException) {
+                final NtStatus status = ((SMBApiException) cause).getStatus();
+                return status == NtStatus.STATUS_NETWORK_NAME_DELETED
+                    || status == NtStatus.STATUS_USER_SESSION_DELETED;
+            }
+        }
+        return false;
+    }
+
+    private PooledShare open(final String hostname, final String shareName, final int connectionIndex) throws IOException {
+        final SMBClient client;
+        synchronized (this) {
+            client = connectionIndex == 0 ? smbClient : extraClients.computeIfAbsent(connectionIndex, i -> clientFactory.get());
+        }
+
+        final Connection connection = client.connect(hostname);
+        final boolean newConnection;
+        synchronized (this) {
+            // connections dropped since are replaced by the one just made
+            connections.removeIf(tracked -> !tracked.isConnected());
+            newConnection = !connections.contains(connection);
+            if (newConnection) {
+                connections.add(connection);
+            }
+        }
+
+        final Session session;
+        try {
+            session = connection.authenticate(authenticationContext);
+        } catch (RuntimeException e) {
+            if (newConnection) {
+                forget(connection);
+                closeQuietly(connection);
+            }
+            throw e;
+        }
+        try {
+            final DiskShare share = (DiskShare) session.connectShare(shareName);
+            return new PooledShare(key(hostname, shareName, connectionIndex), hostname, shareName, connection, session, share);
+        } catch (RuntimeException e) {
+            closeQuietly(session);
+            throw e;
+        }
+    }
+
+    private Semaphore acquirePermit(final String key) throws IOException {
+        if (maxActivePerShare <= 0) {
+            return null;
+        }
+
+        final Semaphore permit;
+        synchronized (this) {
+            permit = activePermits.computeIfAbsent(key, k -> new Semaphore(maxActivePerShare, true));
+        }
+        try {
+            if (!permit.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out after " + maxWaitMillis + " ms waiting for one of the "
+                    + maxActivePerShare + " connections to " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + key, e);
+        }
+        return permit;
+    }
+
+    private synchronized void forget(final Connection connection) {
+        connections.remove(connection);
+    }
+
+    private synchronized PooledShare pollIdle(final String key) {
+        final Deque<PooledShare> idle = idleShares.get(key);
+        return idle == null ? null : idle.pollFirst();
+    }
+
+    private synchronized boolean takeIdle(final PooledShare pooled) {
+        final Deque<PooledShare> idle = idleShares.get(pooled.key);
+        return idle != null && idle.remove(pooled);
+    }
+
+    /**
+     * Puts a probed handle back behind the ones used more recently, so it
+     * keeps its place towards the idle timeout.
+     */
+    private void restoreIdle(final PooledShare pooled) {
+        synchronized (this) {
+            if (!closed) {
+                final Deque<PooledShare> idle = idleShares.computeIfAbsent(pooled.key, k -> new ArrayDeque<>());
+                if (idle.size() < maxIdlePerShare) {
+                    idle.offerLast(pooled);
+                    return;
+                }
+            }
+        }
+        pooled.destroy();
+    }
+
+    private void release(final PooledShare pooled) {
+        if (pooled.invalid) {
+            pooled.destroy();
+            return;
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+        returnIdle(pooled);
+    }
+
+    private void returnIdle(final PooledShare pooled) {
+        synchronized (this) {
+            if (!closed) {
+                final Deque<PooledShare> idle = idleShares.computeIfAbsent(pooled.key, k -> new ArrayDeque<>());
+                if (idle.size() < maxIdlePerShare) {
+                    idle.offerFirst(pooled);
+                    return;
+                }
+            }
+        }
+        pooled.destroy();
+    }
+
+    private static String key(final String hostname, final String shareName, final int connectionIndex) {
+        final String key = hostname.toLowerCase() + "\\" + shareName.toLowerCase();
+        return connectionIndex == 0 ? key : key + "#" + connectionIndex;
+    }
+
+    private static void closeQuietly(final AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing left to do with a handle that cannot be closed
+        }
+    }
+
+    /**
+     * An authenticated share handle kept by the pool.
+     */
+    public class PooledShare implements SmbShareLease {
+        private final String key;
+        private final String hostname;
+        private final String shareName;
+        private final Connection connection;
+        private final Session session;
+        private final DiskShare share;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean invalid = false;
+        private boolean onLoan = false;
+        private Semaphore permit = null;
+
+        private PooledShare(final String key, final String hostname, final String shareName,
+                final Connection connection, final Session session, final DiskShare share) {
+            this.key = key;
+            this.hostname = hostname;
+            this.shareName = shareName;
+            this.connection = connection;
+            this.session = session;
+            this.share = share;
+        }
+
+        @Override
+        public DiskShare getShare() {
+            return share;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public String getHostname() {
+            return hostname;
+        }
+
+        @Override
+        public String getShareName() {
+            return shareName;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return !invalid && connection.isConnected() && share.isConnected();
+        }
+
+        @Override
+        public void invalidate() {
+            invalid = true;
+        }
+
+        @Override
+        public void close() {
+            if (!onLoan) {
+                return;
+            }
+            onLoan = false;
+            final Semaphore heldPermit = permit;
+            permit = null;
+            release(this);
+            if (heldPermit != null) {
+                heldPermit.release();
+            }
+        }
+
+        private void lend(final Semaphore permit) {
+            this.onLoan = true;
+            this.permit = permit;
+        }
+
+        private boolean isExpired(final long now) {
+            return now - lastUsed > idleTimeoutMillis;
+        }
+
+        private boolean keepAlive() {
+            try {
+                share.folderExists("");
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        private void destroy() {
+            closeQuietly(share);
+            closeQuietly(session);
+            if (!connection.isConnected()) {
+                forget(connection);
+                closeQuietly(connection);
+            }
+        }
+    }
+}
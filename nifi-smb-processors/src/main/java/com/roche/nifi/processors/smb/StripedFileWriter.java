@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.hierynomus.smbj.share.File;
+
+/**
+ * Writes content to one remote file through several handles opened over
+ * separate connections, so that a single file is not limited to the
+ * throughput of a single TCP connection.
+ *
+ * The content is read once, sequentially, and cut into chunks which are
+ * handed to the stripes in turn. Every stripe writes its chunks at their own
+ * offsets, so the stripes always write disjoint byte ranges.
+ */
+class StripedFileWriter {
+
+    private static final Chunk END = new Chunk(null, 0, 0);
+    private static final long ABORT_TIMEOUT_MILLIS = 30_000;
+
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final int queueDepth;
+
+    StripedFileWriter(final ExecutorService executor, final int chunkSize, final int queueDepth) {
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.queueDepth = queueDepth;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Copies the content to the file, one handle per stripe. Returns only once
+     * every stripe has written all its chunks.
+     *
+     * @return the number of bytes written
+     */
+    long write(final List<File> stripes, final InputStream content, final int writeSize) throws IOException {
+        final int stripeCount = stripes.size();
+        final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(stripeCount * (queueDepth + 1) + 1);
+        final List<BlockingQueue<Chunk>> queues = new ArrayList<>(stripeCount);
+        final List<Future<?>> writers = new ArrayList<>(stripeCount);
+        for (final File stripe : stripes) {
+            final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(queueDepth);
+            queues.add(queue);
+            writers.add(executor.submit(() -> {
+                writeStripe(stripe, queue, freeBuffers);
+                return null;
+            }));
+        }
+
+        long offset = 0;
+        try {
+            for (int next = 0; ; next = (next + 1) % stripeCount) {
+                byte[] buffer = freeBuffers.poll();
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+                final int length = PipelinedFileWriter.readChunk(content, buffer, writeSize);
+                if (length <= 0) {
+                    break;
+                }
+
+                handOver(queues.get(next), writers.get(next), new Chunk(buffer, offset, length));
+                offset += length;
+                if (length < writeSize) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(queues, writers, e);
+            throw e;
+        }
+
+        for (int i = 0; i < stripeCount; i++) {
+            if (!writers.get(i).isDone()) {
+                try {
+                    handOver(queues.get(i), writers.get(i), END);
+                } catch (IOException e) {
+                    writers.get(i).cancel(true);
+                }
+            }
+        }
+        for (final Future<?> writer : writers) {
+            awaitStripe(writer);
+        }
+        return offset;
+    }
+
+    /**
+     * Stops the stripe writers once the content could not be read or handed
+     * over and waits for them, so that none is still writing when the caller
+     * closes the handles. Writers which do not stop in time are cancelled, and
+     * the failures of the stripes are added to the given one.
+     */
+    private static void abort(final List<BlockingQueue<Chunk>> queues, final List<Future<?>> writers, final Exception failure) {
+        for (int i = 0; i < writers.size(); i++) {
+            final BlockingQueue<Chunk> queue = queues.get(i);
+            // the chunks still queued are not written anymore
+            queue.clear();
+            if (!queue.offer(END)) {
+                writers.get(i).cancel(true);
+            }
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ABORT_TIMEOUT_MILLIS);
+        for (final Future<?> writer : writers) {
+            try {
+                writer.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() != failure) {
+                    failure.addSuppressed(e.getCause());
+                }
+            } catch (TimeoutException | CancellationException e) {
+                writer.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writer.cancel(true);
+            }
+        }
+    }
+
+    private static void writeStripe(final File stripe, final BlockingQueue<Chunk> queue,
+            final BlockingQueue<byte[]> freeBuffers) throws InterruptedException {
+        Chunk chunk;
+        while ((chunk = queue.take()) != END) {
+            int written = 0;
+            while (written < chunk.length) {
+                written += stripe.write(chunk.buffer, chunk.offset + written, written, chunk.length - written);
+            }
+            freeBuffers.offer(chunk.buffer);
+        }
+    }
+
+    /**
+     * Queues the chunk for a stripe, giving up if that stripe's writer has failed.
+     */
+    private static void handOver(final BlockingQueue<Chunk> queue, final Future<?> writer, final Chunk chunk) throws IOException {
+        try {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    awaitStripe(writer);
+                    throw new IOException("Stripe writer stopped before all chunks were written");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over a chunk to a stripe writer");
+        }
+    }
+
+    private static void awaitStripe(final Future<?> writer) throws IOException {
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a stripe writer");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Stripe writer failed", cause);
+        }
+    }
+
+    private static final class Chunk {
+        private final byte[] buffer;
+        private final long offset;
+        private final int length;
+
+        private Chunk(final byte[] buffer, final long offset, final int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.services.smb;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.ControllerServiceInitializationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.roche.nifi.processors.smb.SmbSessionPool;
+
+@Tags({"samba, smb, cifs, connection, pool"})
+@CapabilityDescription("Owns a single SMB client and a bounded pool of authenticated sessions per host and share, " +
+    "so that all processors referencing this service share the same connections and credentials.")
+public class SmbConnectionPoolService extends AbstractControllerService implements SmbConnectionPool {
+
+    public static final PropertyDescriptor DOMAIN = new PropertyDescriptor.Builder()
+            .name("Domain")
+            .description("The domain use for authentication")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor USERNAME = new PropertyDescriptor.Builder()
+            .name("Username")
+            .description("The username use for authentication")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor PASSWORD = new PropertyDescriptor.Builder()
+            .name("Password")
+            .description("The password use for authentication")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .sensitive(true)
+            .build();
+    public static final PropertyDescriptor MAX_CONNECTIONS_PER_SHARE = new PropertyDescriptor.Builder()
+            .name("Max Connections Per Share")
+            .description("The maximum number of sessions that may be borrowed at the same time for a single host and share. " +
+                "Set to 0 for no limit.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("8")
+            .build();
+    public static final PropertyDescriptor MAX_WAIT_TIME = new PropertyDescriptor.Builder()
+            .name("Max Wait Time")
+            .description("How long a processor waits for a session when the limit for a share has been reached before it fails.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+    public static final PropertyDescriptor MAX_IDLE_SESSIONS = new PropertyDescriptor.Builder()
+            .name("Max Idle Sessions")
+            .description("The maximum number of unused sessions kept open for a single host and share.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("8")
+            .build();
+    public static final PropertyDescriptor IDLE_SESSION_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Idle Session Timeout")
+            .description("How long an unused session is kept open before it is closed.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .build();
+    public static final PropertyDescriptor KEEP_ALIVE_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Keep-Alive Interval")
+            .description("How often idle sessions are probed so that the server does not drop them. " +
+                "Idle sessions are also evicted at this interval. Set to 0 sec to disable.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 sec")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private SMBClient smbClient = null;
+
+    private Supplier<SMBClient> smbClientFactory = null;
+
+    private volatile SmbSessionPool sessionPool = null;
+
+    @Override
+    protected void init(final ControllerServiceInitializationContext context) throws InitializationException {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(DOMAIN);
+        descriptors.add(USERNAME);
+        descriptors.add(PASSWORD);
+        descriptors.add(MAX_CONNECTIONS_PER_SHARE);
+        descriptors.add(MAX_WAIT_TIME);
+        descriptors.add(MAX_IDLE_SESSIONS);
+        descriptors.add(IDLE_SESSION_TIMEOUT);
+        descriptors.add(KEEP_ALIVE_INTERVAL);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        if (this.smbClient == null) {
+            initSmbClient();
+        }
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    public void initSmbClient() {
+        initSmbClient(new SMBClient());
+        this.smbClientFactory = SMBClient::new;
+    }
+
+    /**
+     * Uses the given client for all connections, including those borrowed with a
+     * connection index which otherwise get a client of their own.
+     */
+    public void initSmbClient(SMBClient smbClient) {
+        this.smbClient = smbClient;
+        this.smbClientFactory = () -> smbClient;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        final String domain = context.getProperty(DOMAIN).getValue();
+        final String username = context.getProperty(USERNAME).getValue();
+        String password = context.getProperty(PASSWORD).getValue();
+
+        AuthenticationContext ac = null;
+        if (username != null) {
+            if (password == null) {
+                password = "";
+            }
+            ac = new AuthenticationContext(
+                username,
+                password.toCharArray(),
+                domain);
+        } else {
+            ac = AuthenticationContext.anonymous();
+        }
+
+        sessionPool = new SmbSessionPool(
+            smbClient,
+            smbClientFactory,
+            ac,
+            context.getProperty(MAX_CONNECTIONS_PER_SHARE).asInteger(),
+            context.getProperty(MAX_WAIT_TIME).asTimePeriod(TimeUnit.MILLISECONDS),
+            context.getProperty(MAX_IDLE_SESSIONS).asInteger(),
+            context.getProperty(IDLE_SESSION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+            context.getProperty(KEEP_ALIVE_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
+        }
+    }
+
+    @Override
+    public SmbShareLease borrow(final String hostname, final String shareName) throws IOException {
+        return borrow(hostname, shareName, 0);
+    }
+
+    @Override
+    public SmbShareLease borrow(final String hostname, final String shareName, final int connectionIndex) throws IOException {
+        final SmbSessionPool pool = sessionPool;
+        if (pool == null) {
+            throw new IOException("SMB connection pool is not enabled");
+        }
+        return pool.borrow(hostname, shareName, connectionIndex);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class FetchSmbTest {
+
+    private static final String SHARE = "share";
+
+    private TestRunner testRunner;
+    private InMemorySmbServer server;
+
+    @Before
+    public void init() {
+        server = new InMemorySmbServer();
+        testRunner = TestRunners.newTestRunner(FetchSmb.class);
+        ((FetchSmb) testRunner.getProcessor()).initSmbClient(server.newClient());
+    }
+
+    @After
+    public void close() {
+        server.close();
+    }
+
+    /**
+     * Enqueues a flowfile as emitted by ListSmb.
+     */
+    private void enqueueListed(final String directory, final String filename) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(ListSmb.HOSTNAME_ATTRIBUTE, "host");
+        attributes.put(ListSmb.SHARE_ATTRIBUTE, SHARE);
+        attributes.put(ListSmb.PATH_ATTRIBUTE, directory);
+        attributes.put("filename", filename);
+        testRunner.enqueue(new byte[0], attributes);
+    }
+
+    @Test
+    public void testFetch() {
+        server.addFile(SHARE, "in\\a.txt", "content".getBytes(), 0);
+        enqueueListed("in", "a.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(FetchSmb.REL_SUCCESS).get(0).assertContentEquals("content");
+        assertEquals(Long.valueOf(7), testRunner.getCounterValue("Bytes fetched"));
+        assertEquals("content".length(), server.getFileSize(SHARE, "in\\a.txt"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testFetchFromRootOfShare() {
+        server.addFile(SHARE, "a.txt", "content".getBytes(), 0);
+        enqueueListed("", "a.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(FetchSmb.REL_SUCCESS).get(0).assertContentEquals("content");
+    }
+
+    @Test
+    public void testFetchPipelined() {
+        final byte[] content = InMemorySmbServer.content(3 * 1024 * 1024 + 17, 0);
+        server.withMaxReadSize(64 * 1024).addFile(SHARE, "in\\large.bin", content, 0);
+        enqueueListed("in", "large.bin");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(FetchSmb.REL_SUCCESS).get(0).assertContentEquals(content);
+    }
+
+    @Test
+    public void testFetchParallelRanges() {
+        final byte[] content = InMemorySmbServer.content(2 * 1024 * 1024 + 5, 0);
+        server.withMaxReadSize(64 * 1024).addFile(SHARE, "in\\large.bin", content, 0);
+        testRunner.setProperty(FetchSmb.PARALLEL_RANGES, "3");
+        testRunner.setProperty(FetchSmb.RANGE_THRESHOLD, "1 MB");
+        enqueueListed("in", "large.bin");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(FetchSmb.REL_SUCCESS).get(0).assertContentEquals(content);
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testNotFound() {
+        enqueueListed("in", "missing.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_NOT_FOUND, 1);
+    }
+
+    @Test
+    public void testDeleteOnCompletion() {
+        server.addFile(SHARE, "in\\a.txt", "content".getBytes(), 0);
+        testRunner.setProperty(FetchSmb.COMPLETION_STRATEGY, FetchSmb.COMPLETION_DELETE);
+        enqueueListed("in", "a.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        assertEquals(-1, server.getFileSize(SHARE, "in\\a.txt"));
+    }
+
+    @Test
+    public void testMoveOnCompletion() {
+        server.addFile(SHARE, "in\\a.txt", "content".getBytes(), 0);
+        server.addFile(SHARE, "done\\other.txt", new byte[0], 0);
+        testRunner.setProperty(FetchSmb.COMPLETION_STRATEGY, FetchSmb.COMPLETION_MOVE);
+        testRunner.setProperty(FetchSmb.MOVE_DESTINATION, "done");
+        enqueueListed("in", "a.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        assertEquals(-1, server.getFileSize(SHARE, "in\\a.txt"));
+        assertArrayEquals("content".getBytes(), server.getFileContent(SHARE, "done\\a.txt"));
+    }
+
+    @Test
+    public void testFailedCompletionStillSucceeds() {
+        server.addFile(SHARE, "in\\a.txt", "content".getBytes(), 0);
+        testRunner.setProperty(FetchSmb.COMPLETION_STRATEGY, FetchSmb.COMPLETION_MOVE);
+        testRunner.setProperty(FetchSmb.MOVE_DESTINATION, "missing");
+        enqueueListed("in", "a.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(FetchSmb.REL_SUCCESS).get(0);
+        flowFile.assertContentEquals("content");
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Completion failures"));
+        assertEquals("content".length(), server.getFileSize(SHARE, "in\\a.txt"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testTruncatedFileFailsWithoutCompletion() {
+        server.addFile(SHARE, "in\\a.txt", "content".getBytes(), 0).truncateAfterSizeQuery(SHARE, "in\\a.txt", 3);
+        testRunner.setProperty(FetchSmb.COMPLETION_STRATEGY, FetchSmb.COMPLETION_DELETE);
+        enqueueListed("in", "a.txt");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(FetchSmb.REL_FAILURE, 1);
+        assertEquals(3, server.getFileSize(SHARE, "in\\a.txt"));
+        assertNull(testRunner.getCounterValue("Files fetched"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testMoveRequiresDestination() {
+        testRunner.setProperty(FetchSmb.COMPLETION_STRATEGY, FetchSmb.COMPLETION_MOVE);
+        testRunner.assertNotValid();
+        testRunner.setProperty(FetchSmb.MOVE_DESTINATION, "done");
+        testRunner.assertValid();
+    }
+}
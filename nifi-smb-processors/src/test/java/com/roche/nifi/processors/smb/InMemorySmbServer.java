@@ -0,0 +1,1058 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mockito.stubbing.Answer;
+
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2Header;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.Directory;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+/**
+ * An SMB server stand-in for tests and benchmarks. It keeps the files of
+ * its shares in memory and delays every request by the configured latency and
+ * bandwidth. Clients are smbj mocks answering from the in-memory shares, so the
+ * processor runs its real code paths without a network.
+ *
+ * Faults can be injected at random: latency spikes on any request, connections
+ * dropped in the middle of a write, failed authentications and full disks.
+ * A dropped connection fails every further request made over it, and the
+ * server releases its sessions and open files, like a real server would.
+ *
+ * Every hostname reaches the same shares, like several heads serving one
+ * namespace. Single hosts can be taken down or given additional latency.
+ *
+ * Only the operations used by the processors are supported. Paths are case
+ * insensitive, and a file is only created if its directory exists. The last
+ * write time of a file is the time of its last write, or the one it was
+ * added with.
+ */
+public class InMemorySmbServer implements Closeable {
+
+    public enum Fault {
+        LATENCY_SPIKE,
+        CONNECTION_DROP,
+        AUTHENTICATION_FAILURE,
+        DISK_FULL
+    }
+
+    private static final int DIRECTORY_PAGE_SIZE = 100;
+    private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+
+    private volatile long latencyNanos = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile int maxWriteSize = 1024 * 1024;
+    private volatile int maxReadSize = 1024 * 1024;
+    private volatile boolean retainContent = true;
+    private volatile boolean writeTimeOnClose = false;
+
+    private volatile double latencySpikeProbability = 0;
+    private volatile long latencySpikeNanos = 0;
+    private volatile double connectionDropProbability = 0;
+    private volatile double authenticationFailureProbability = 0;
+    private volatile double diskFullProbability = 0;
+    private final AtomicLong connectionDropAfter = new AtomicLong(-1);
+    private final AtomicLong diskFullAfter = new AtomicLong(-1);
+    private final Random random = new Random(0);
+
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    private final Set<String> downHosts = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> hostLatencyNanos = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> hostRequests = new ConcurrentHashMap<>();
+    private final Map<String, Share> shares = new ConcurrentHashMap<>();
+    private final Map<Fault, AtomicLong> injectedFaults = new EnumMap<>(Fault.class);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final Map<File, StoredFile> handleFiles = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Map<StoredFile, Long> pendingTruncations = new ConcurrentHashMap<>();
+    private final AtomicLong openSessions = new AtomicLong();
+    private final AtomicLong openHandles = new AtomicLong();
+    private final AtomicLong maxOpenHandles = new AtomicLong();
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "In-Memory SMB Server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public InMemorySmbServer() {
+        for (final Fault fault : Fault.values()) {
+            injectedFaults.put(fault, new AtomicLong());
+        }
+    }
+
+    /**
+     * Delays every request by the given round trip time.
+     */
+    public InMemorySmbServer withLatency(final long latency, final TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Delays every request by the time needed to transfer its data at the
+     * given rate, 0 for no limit.
+     */
+    public InMemorySmbServer withBandwidth(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the maximum write size negotiated with clients. Larger write
+     * requests are answered with a short write.
+     */
+    public InMemorySmbServer withMaxWriteSize(final int maxWriteSize) {
+        this.maxWriteSize = maxWriteSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum read size negotiated with clients. Larger read
+     * requests are answered with a short read.
+     */
+    public InMemorySmbServer withMaxReadSize(final int maxReadSize) {
+        this.maxReadSize = maxReadSize;
+        return this;
+    }
+
+    /**
+     * Whether to keep the written data or only the file sizes, which keeps
+     * the memory of long runs bounded.
+     */
+    public InMemorySmbServer withRetainedContent(final boolean retainContent) {
+        this.retainContent = retainContent;
+        return this;
+    }
+
+    /**
+     * Whether closing a handle that modified its file updates the last write
+     * time once more, like servers which only settle it on close.
+     */
+    public InMemorySmbServer withWriteTimeOnClose(final boolean writeTimeOnClose) {
+        this.writeTimeOnClose = writeTimeOnClose;
+        return this;
+    }
+
+    /**
+     * Refuses connections to the given host while it is down, and drops the
+     * connection to it when it goes down.
+     */
+    public InMemorySmbServer withHostDown(final String hostname, final boolean down) {
+        if (down) {
+            downHosts.add(hostname.toLowerCase());
+            final Link link = links.get(hostname.toLowerCase());
+            if (link != null) {
+                link.drop();
+            }
+        } else {
+            downHosts.remove(hostname.toLowerCase());
+        }
+        return this;
+    }
+
+    /**
+     * Delays every request to the given host by the given additional time.
+     */
+    public InMemorySmbServer withHostLatency(final String hostname, final long latency, final TimeUnit unit) {
+        hostLatencyNanos.put(hostname.toLowerCase(), unit.toNanos(latency));
+        return this;
+    }
+
+    /**
+     * Seeds the random choice of injected faults.
+     */
+    public InMemorySmbServer withSeed(final long seed) {
+        random.setSeed(seed);
+        return this;
+    }
+
+    /**
+     * Delays a request by the given additional time with the given probability.
+     */
+    public InMemorySmbServer withLatencySpikes(final double probability, final long duration, final TimeUnit unit) {
+        this.latencySpikeProbability = probability;
+        this.latencySpikeNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Drops the connection in the middle of a write request with the given
+     * probability, after half of its data has been written.
+     */
+    public InMemorySmbServer withConnectionDrops(final double probability) {
+        this.connectionDropProbability = probability;
+        return this;
+    }
+
+    /**
+     * Drops the connection once, in the middle of the write request which
+     * takes the bytes written beyond the given number.
+     */
+    public InMemorySmbServer withConnectionDropAfter(final long bytes) {
+        connectionDropAfter.set(bytes);
+        return this;
+    }
+
+    /**
+     * Fails the write request which takes the bytes written beyond the given
+     * number once, because of a full disk.
+     */
+    public InMemorySmbServer withDiskFullAfter(final long bytes) {
+        diskFullAfter.set(bytes);
+        return this;
+    }
+
+    /**
+     * Rejects an authentication with the given probability.
+     */
+    public InMemorySmbServer withAuthenticationFailures(final double probability) {
+        this.authenticationFailureProbability = probability;
+        return this;
+    }
+
+    /**
+     * Fails a write request because of a full disk with the given probability.
+     */
+    public InMemorySmbServer withDiskFull(final double probability) {
+        this.diskFullProbability = probability;
+        return this;
+    }
+
+    /**
+     * Stops injecting faults.
+     */
+    public InMemorySmbServer withoutFaults() {
+        latencySpikeProbability = 0;
+        connectionDropProbability = 0;
+        connectionDropAfter.set(-1);
+        diskFullAfter.set(-1);
+        authenticationFailureProbability = 0;
+        diskFullProbability = 0;
+        return this;
+    }
+
+    /**
+     * Returns a client connecting to this server, whatever the hostname.
+     */
+    public SMBClient newClient() {
+        final SMBClient client = stub(SMBClient.class);
+        try {
+            when(client.connect(anyString())).thenAnswer(invocation -> connect(invocation.getArgument(0)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return client;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * The number of requests made to the given host, connects included.
+     */
+    public long getRequestCount(final String hostname) {
+        final AtomicLong count = hostRequests.get(hostname.toLowerCase());
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * The number of bytes copied on the server, which did not cross the wire.
+     */
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getInjectedFaults(final Fault fault) {
+        return injectedFaults.get(fault).get();
+    }
+
+    /**
+     * Returns the number of sessions which have neither been logged off nor
+     * lost with their connection.
+     */
+    public long getOpenSessions() {
+        return openSessions.get();
+    }
+
+    /**
+     * Returns the number of files which have neither been closed nor lost
+     * with their connection.
+     */
+    public long getOpenHandles() {
+        return openHandles.get();
+    }
+
+    /**
+     * Returns the largest number of files that were open at the same time.
+     */
+    public long getMaxOpenHandles() {
+        return maxOpenHandles.get();
+    }
+
+    /**
+     * Adds a file with the given content and last write time, creating its
+     * directories as needed.
+     */
+    public InMemorySmbServer addFile(final String shareName, final String path, final byte[] content, final long lastModified) {
+        final Share share = share(shareName);
+        final String normalized = normalize(path);
+        for (String directory = parent(normalized); !directory.isEmpty(); directory = parent(directory)) {
+            share.directories.add(directory);
+        }
+        final StoredFile file = new StoredFile(retainContent);
+        file.write(0, content, 0, content.length);
+        file.lastModified = lastModified;
+        share.files.put(normalized, file);
+        return this;
+    }
+
+    /**
+     * Shrinks the given file to the given length right after a client queried
+     * its size, like another client truncating it while it is read.
+     */
+    public InMemorySmbServer truncateAfterSizeQuery(final String shareName, final String path, final long length) {
+        pendingTruncations.put(share(shareName).files.get(normalize(path)), length);
+        return this;
+    }
+
+    /**
+     * Returns the size of the given file, or -1 if it does not exist.
+     */
+    public long getFileSize(final String shareName, final String path) {
+        final StoredFile file = share(shareName).files.get(normalize(path));
+        return file == null ? -1 : file.length();
+    }
+
+    /**
+     * Returns the content of the given file, or null if it does not exist or
+     * content is not retained.
+     */
+    public byte[] getFileContent(final String shareName, final String path) {
+        final StoredFile file = share(shareName).files.get(normalize(path));
+        return file == null ? null : file.content();
+    }
+
+    public int getFileCount(final String shareName) {
+        return share(shareName).files.size();
+    }
+
+    @Override
+    public void close() {
+        asyncExecutor.shutdownNow();
+    }
+
+    private Connection connect(final String hostname) throws IOException {
+        final String host = hostname.toLowerCase();
+        requests.incrementAndGet();
+        hostRequests.computeIfAbsent(host, h -> new AtomicLong()).incrementAndGet();
+        sleep(latencyNanos + hostLatencyNanos.getOrDefault(host, 0L));
+        if (downHosts.contains(host)) {
+            throw new ConnectException("Connection refused by " + hostname);
+        }
+        // like smbj, a client keeps one connection per host until it is lost
+        return links.compute(host, (h, link) -> link != null && link.connected ? link : new Link(h)).connection;
+    }
+
+    private static boolean inject(final Random random, final double probability) {
+        return probability > 0 && random.nextDouble() < probability;
+    }
+
+    private boolean inject(final Fault fault, final double probability) {
+        if (inject(random, probability)) {
+            injectedFaults.get(fault).incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a write of the given length passes the given limit, which
+     * is then cleared so the fault is injected only once.
+     */
+    private boolean injectAfter(final Fault fault, final AtomicLong after, final int length) {
+        final long limit = after.get();
+        if (limit < 0 || bytesWritten.get() + length <= limit || !after.compareAndSet(limit, -1)) {
+            return false;
+        }
+        injectedFaults.get(fault).incrementAndGet();
+        return true;
+    }
+
+    private static void sleep(final long nanos) {
+        final long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private Share share(final String shareName) {
+        return shares.computeIfAbsent(shareName.toLowerCase(), s -> new Share());
+    }
+
+    private static <T> T stub(final Class<T> type) {
+        // no invocations are recorded, which keeps long runs from piling them up
+        return mock(type, withSettings().stubOnly());
+    }
+
+    /**
+     * Generates content of the given size for the tests, different for every
+     * seed.
+     */
+    static byte[] content(final int size, final int seed) {
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ((i + seed) % 251);
+        }
+        return content;
+    }
+
+    static String normalize(final String path) {
+        String normalized = path.replace('/', '\\').toLowerCase();
+        while (normalized.startsWith("\\")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("\\")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private static String parent(final String path) {
+        final int separator = path.lastIndexOf('\\');
+        return separator < 0 ? "" : path.substring(0, separator);
+    }
+
+    static SMBApiException error(final NtStatus status, final SMB2MessageCommandCode command) {
+        return new SMBApiException(status.getValue(), command, null);
+    }
+
+    /**
+     * Something the server releases when the connection it was opened over
+     * is lost, i.e. a session or an open file.
+     */
+    private static final class Resource {
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        private final AtomicLong counter;
+
+        private Resource(final AtomicLong counter) {
+            this.counter = counter;
+            counter.incrementAndGet();
+        }
+
+        private void release() {
+            if (open.compareAndSet(true, false)) {
+                counter.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A connection and everything opened over it.
+     */
+    private final class Link {
+        private volatile boolean connected = true;
+        private final String hostname;
+        private final Set<Resource> resources = ConcurrentHashMap.newKeySet();
+        private final Connection connection = stub(Connection.class);
+
+        private Link(final String hostname) {
+            this.hostname = hostname;
+            final NegotiatedProtocol negotiated = stub(NegotiatedProtocol.class);
+            when(negotiated.getMaxWriteSize()).thenAnswer(invocation -> maxWriteSize);
+            when(negotiated.getMaxReadSize()).thenAnswer(invocation -> maxReadSize);
+            when(connection.getNegotiatedProtocol()).thenReturn(negotiated);
+            when(connection.isConnected()).thenAnswer(invocation -> connected);
+            when(connection.authenticate(any(AuthenticationContext.class))).thenAnswer(invocation -> authenticate());
+        }
+
+        /**
+         * Accounts for a request of the given size and delays the calling
+         * thread as long as the server would take to answer it.
+         */
+        private void request(final long bytes) {
+            requests.incrementAndGet();
+            hostRequests.computeIfAbsent(hostname, h -> new AtomicLong()).incrementAndGet();
+            checkConnected();
+            long delayNanos = latencyNanos + hostLatencyNanos.getOrDefault(hostname, 0L);
+            if (bytesPerSecond > 0 && bytes > 0) {
+                delayNanos += TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            }
+            if (inject(Fault.LATENCY_SPIKE, latencySpikeProbability)) {
+                delayNanos += latencySpikeNanos;
+            }
+            sleep(delayNanos);
+            checkConnected();
+        }
+
+        private void checkConnected() {
+            if (!connected) {
+                throw new SMBRuntimeException(new TransportException("Connection to in-memory server was dropped"));
+            }
+        }
+
+        private void drop() {
+            connected = false;
+            for (final Resource resource : resources) {
+                resource.release();
+            }
+            resources.clear();
+        }
+
+        private Resource open(final AtomicLong counter) {
+            final Resource resource = new Resource(counter);
+            resources.add(resource);
+            if (!connected) {
+                resource.release();
+            }
+            return resource;
+        }
+
+        private Session authenticate() {
+            request(0);
+            if (inject(Fault.AUTHENTICATION_FAILURE, authenticationFailureProbability)) {
+                throw error(NtStatus.STATUS_LOGON_FAILURE, SMB2MessageCommandCode.SMB2_SESSION_SETUP);
+            }
+            final Resource resource = open(openSessions);
+            final Session session = stub(Session.class);
+            when(session.connectShare(anyString())).thenAnswer(invocation -> connectShare(invocation.getArgument(0)));
+            try {
+                doAnswer(invocation -> {
+                    resource.release();
+                    resources.remove(resource);
+                    return null;
+                }).when(session).close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return session;
+        }
+
+        private DiskShare connectShare(final String shareName) {
+            request(0);
+            final Share share = share(shareName);
+            final DiskShare diskShare = stub(DiskShare.class);
+            when(diskShare.isConnected()).thenAnswer(invocation -> connected);
+            when(diskShare.folderExists(anyString())).thenAnswer(invocation -> {
+                request(0);
+                return share.directories.contains(normalize(invocation.getArgument(0)));
+            });
+            when(diskShare.fileExists(anyString())).thenAnswer(invocation -> {
+                request(0);
+                return share.files.containsKey(normalize(invocation.getArgument(0)));
+            });
+            doAnswer(invocation -> {
+                request(0);
+                share.mkdir(normalize(invocation.getArgument(0)));
+                return null;
+            }).when(diskShare).mkdir(anyString());
+            when(diskShare.openDirectory(anyString(), anySet(), any(), any(), any(SMB2CreateDisposition.class), any()))
+                .thenAnswer(invocation -> {
+                    request(0);
+                    return newDirectory(share, normalize(invocation.getArgument(0)));
+                });
+            when(diskShare.getFileInformation(anyString(), eq(FileBasicInformation.class))).thenAnswer(invocation -> {
+                request(0);
+                final StoredFile stored = share.files.get(normalize(invocation.getArgument(0)));
+                if (stored == null) {
+                    throw error(NtStatus.STATUS_OBJECT_NAME_NOT_FOUND, SMB2MessageCommandCode.SMB2_CREATE);
+                }
+                final FileBasicInformation information = stub(FileBasicInformation.class);
+                when(information.getLastWriteTime()).thenReturn(FileTime.ofEpochMillis(stored.lastModified()));
+                return information;
+            });
+            when(diskShare.openFile(anyString(), anySet(), anySet(), anySet(), any(SMB2CreateDisposition.class), anySet()))
+                .thenAnswer(invocation -> {
+                    request(0);
+                    final String path = normalize(invocation.getArgument(0));
+                    return newFile(share, path, share.open(path, invocation.getArgument(4)));
+                });
+            return diskShare;
+        }
+
+        private File newFile(final Share share, final String path, final StoredFile stored) {
+            final Resource handle = open(openHandles);
+            maxOpenHandles.accumulateAndGet(openHandles.get(), Math::max);
+            final File file = stub(File.class);
+            handleFiles.put(file, stored);
+            final AtomicBoolean deleteOnClose = new AtomicBoolean();
+            final AtomicReference<String> currentPath = new AtomicReference<>(path);
+            final long modificationsOnOpen = stored.modifications();
+            when(file.write(any(byte[].class), anyLong(), anyInt(), anyInt())).thenAnswer(invocation ->
+                write(stored, invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2), invocation.getArgument(3)));
+            when(file.writeAsync(any(byte[].class), anyLong(), anyInt(), anyInt())).thenAnswer(invocation -> {
+                final byte[] buffer = invocation.getArgument(0);
+                final long fileOffset = invocation.getArgument(1);
+                final int offset = invocation.getArgument(2);
+                final int length = invocation.getArgument(3);
+                final CompletableFuture<Integer> written = new CompletableFuture<>();
+                asyncExecutor.execute(() -> {
+                    try {
+                        written.complete(write(stored, buffer, fileOffset, offset, length));
+                    } catch (Throwable t) {
+                        written.completeExceptionally(t);
+                    }
+                });
+                return written;
+            });
+            when(file.getOutputStream()).thenAnswer(invocation -> new StandInOutputStream(this, stored));
+            when(file.read(any(byte[].class), anyLong(), anyInt(), anyInt())).thenAnswer(invocation -> {
+                final byte[] buffer = invocation.getArgument(0);
+                final byte[] data = read(stored, invocation.getArgument(1), invocation.getArgument(3));
+                if (data == null) {
+                    return -1;
+                }
+                System.arraycopy(data, 0, buffer, invocation.getArgument(2), data.length);
+                return data.length;
+            });
+            when(file.readAsync(anyLong(), anyInt())).thenAnswer(invocation -> {
+                final long fileOffset = invocation.getArgument(0);
+                final int length = invocation.getArgument(1);
+                final CompletableFuture<SMB2ReadResponse> response = new CompletableFuture<>();
+                asyncExecutor.execute(() -> {
+                    try {
+                        response.complete(readResponse(read(stored, fileOffset, length)));
+                    } catch (Throwable t) {
+                        response.completeExceptionally(t);
+                    }
+                });
+                return response;
+            });
+            when(file.getFileInformation(FileStandardInformation.class)).thenAnswer(invocation -> {
+                request(0);
+                final FileStandardInformation information = stub(FileStandardInformation.class);
+                when(information.getEndOfFile()).thenReturn(stored.length());
+                final Long truncated = pendingTruncations.remove(stored);
+                if (truncated != null) {
+                    stored.setLength(truncated);
+                }
+                return information;
+            });
+            when(file.getFileInformation()).thenAnswer(invocation -> {
+                request(0);
+                final FileAllInformation information = stub(FileAllInformation.class);
+                final FileBasicInformation basic = stub(FileBasicInformation.class);
+                when(basic.getLastWriteTime()).thenReturn(FileTime.ofEpochMillis(stored.lastModified()));
+                final FileStandardInformation standard = stub(FileStandardInformation.class);
+                when(standard.getEndOfFile()).thenReturn(stored.length());
+                when(information.getBasicInformation()).thenReturn(basic);
+                when(information.getStandardInformation()).thenReturn(standard);
+                return information;
+            });
+            try {
+                // the server copies in chunks, without the data crossing the wire
+                doAnswer(invocation -> {
+                    final StoredFile target = handleFiles.get(invocation.<File>getArgument(0));
+                    final long length = stored.length();
+                    for (long offset = 0; offset < length; offset += COPY_CHUNK_SIZE) {
+                        request(0);
+                        final int chunk = (int) Math.min(COPY_CHUNK_SIZE, length - offset);
+                        target.write(offset, stored.read(offset, chunk), 0, chunk);
+                    }
+                    bytesCopied.addAndGet(length);
+                    return null;
+                }).when(file).remoteCopyTo(any(File.class));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            when(file.getFileInformation(FileBasicInformation.class)).thenAnswer(invocation -> {
+                request(0);
+                final FileBasicInformation information = stub(FileBasicInformation.class);
+                when(information.getLastWriteTime()).thenReturn(FileTime.ofEpochMillis(stored.lastModified()));
+                return information;
+            });
+            doAnswer(invocation -> {
+                request(0);
+                share.rename(currentPath.get(), normalize(invocation.getArgument(0)), stored, invocation.getArgument(1));
+                currentPath.set(normalize(invocation.getArgument(0)));
+                return null;
+            }).when(file).rename(anyString(), anyBoolean());
+            doAnswer(invocation -> {
+                file.rename(invocation.getArgument(0), false);
+                return null;
+            }).when(file).rename(anyString());
+            doAnswer(invocation -> {
+                request(0);
+                stored.setLength(invocation.getArgument(0));
+                return null;
+            }).when(file).setLength(anyLong());
+            doAnswer(invocation -> {
+                request(0);
+                return null;
+            }).when(file).flush();
+            doAnswer(invocation -> {
+                deleteOnClose.set(true);
+                return null;
+            }).when(file).deleteOnClose();
+            doAnswer(invocation -> {
+                handle.release();
+                resources.remove(handle);
+                request(0);
+                if (deleteOnClose.get()) {
+                    share.files.remove(currentPath.get(), stored);
+                } else if (writeTimeOnClose && stored.modifications() != modificationsOnOpen) {
+                    stored.touch();
+                }
+                return null;
+            }).when(file).close();
+            return file;
+        }
+
+        private Directory newDirectory(final Share share, final String path) {
+            final List<FileIdBothDirectoryInformation> entries = share.list(path);
+            final Resource handle = open(openHandles);
+            final Directory directory = stub(Directory.class);
+            // every request returns a page of entries, like a server answering a query directory request
+            when(directory.iterator()).thenAnswer(invocation -> new Iterator<FileIdBothDirectoryInformation>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    if (next % DIRECTORY_PAGE_SIZE == 0) {
+                        request(0);
+                    }
+                    return next < entries.size();
+                }
+
+                @Override
+                public FileIdBothDirectoryInformation next() {
+                    return entries.get(next++);
+                }
+            });
+            final Answer<Void> close = invocation -> {
+                handle.release();
+                resources.remove(handle);
+                return null;
+            };
+            doAnswer(close).when(directory).close();
+            doAnswer(close).when(directory).closeSilently();
+            return directory;
+        }
+
+        /**
+         * @return the data read, or null at the end of the file
+         */
+        private byte[] read(final StoredFile stored, final long fileOffset, final int length) {
+            final int requested = Math.min(length, maxReadSize);
+            request(requested);
+            return stored.read(fileOffset, requested);
+        }
+
+        private int write(final StoredFile stored, final byte[] buffer, final long fileOffset, final int offset, final int length) {
+            final int written = Math.min(length, maxWriteSize);
+            if (inject(Fault.CONNECTION_DROP, connectionDropProbability) || injectAfter(Fault.CONNECTION_DROP, connectionDropAfter, written)) {
+                stored.write(fileOffset, buffer, offset, written / 2);
+                drop();
+                checkConnected();
+            }
+            request(written);
+            if (inject(Fault.DISK_FULL, diskFullProbability) || injectAfter(Fault.DISK_FULL, diskFullAfter, written)) {
+                throw error(NtStatus.STATUS_DISK_FULL, SMB2MessageCommandCode.SMB2_WRITE);
+            }
+            stored.write(fileOffset, buffer, offset, written);
+            bytesWritten.addAndGet(written);
+            return written;
+        }
+    }
+
+    private final class Share {
+        private final Set<String> directories = ConcurrentHashMap.newKeySet();
+        private final Map<String, StoredFile> files = new ConcurrentHashMap<>();
+
+        private Share() {
+            directories.add("");
+        }
+
+        private synchronized void mkdir(final String path) {
+            if (directories.contains(path) || files.containsKey(path)) {
+                throw error(NtStatus.STATUS_OBJECT_NAME_COLLISION, SMB2MessageCommandCode.SMB2_CREATE);
+            }
+            if (!directories.contains(parent(path))) {
+                throw error(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND, SMB2MessageCommandCode.SMB2_CREATE);
+            }
+            directories.add(path);
+        }
+
+        private synchronized List<FileIdBothDirectoryInformation> list(final String path) {
+            if (!directories.contains(path)) {
+                throw error(NtStatus.STATUS_OBJECT_NAME_NOT_FOUND, SMB2MessageCommandCode.SMB2_CREATE);
+            }
+            final List<FileIdBothDirectoryInformation> entries = new ArrayList<>();
+            entries.add(entry(".", 0, 0, true));
+            entries.add(entry("..", 0, 0, true));
+            final String prefix = path.isEmpty() ? "" : path + "\\";
+            for (final String directory : directories) {
+                if (!directory.isEmpty() && parent(directory).equals(path)) {
+                    entries.add(entry(directory.substring(prefix.length()), 0, 0, true));
+                }
+            }
+            for (final Map.Entry<String, StoredFile> file : files.entrySet()) {
+                if (parent(file.getKey()).equals(path)) {
+                    entries.add(entry(file.getKey().substring(prefix.length()), file.getValue().length(), file.getValue().lastModified(), false));
+                }
+            }
+            return entries;
+        }
+
+        private synchronized void rename(final String from, final String to, final StoredFile stored, final boolean replace) {
+            if (!directories.contains(parent(to))) {
+                throw error(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND, SMB2MessageCommandCode.SMB2_SET_INFO);
+            }
+            if (directories.contains(to) || (!replace && files.containsKey(to))) {
+                throw error(NtStatus.STATUS_OBJECT_NAME_COLLISION, SMB2MessageCommandCode.SMB2_SET_INFO);
+            }
+            files.remove(from, stored);
+            files.put(to, stored);
+        }
+
+        private synchronized StoredFile open(final String path, final SMB2CreateDisposition disposition) {
+            if (!directories.contains(parent(path))) {
+                throw error(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND, SMB2MessageCommandCode.SMB2_CREATE);
+            }
+            if (directories.contains(path)) {
+                throw error(NtStatus.STATUS_OBJECT_NAME_COLLISION, SMB2MessageCommandCode.SMB2_CREATE);
+            }
+            final StoredFile existing = files.get(path);
+            switch (disposition) {
+                case FILE_CREATE:
+                    if (existing != null) {
+                        throw error(NtStatus.STATUS_OBJECT_NAME_COLLISION, SMB2MessageCommandCode.SMB2_CREATE);
+                    }
+                    break;
+                case FILE_OPEN:
+                case FILE_OVERWRITE:
+                    if (existing == null) {
+                        throw error(NtStatus.STATUS_OBJECT_NAME_NOT_FOUND, SMB2MessageCommandCode.SMB2_CREATE);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (existing == null || disposition == SMB2CreateDisposition.FILE_OVERWRITE
+                    || disposition == SMB2CreateDisposition.FILE_OVERWRITE_IF || disposition == SMB2CreateDisposition.FILE_SUPERSEDE) {
+                final StoredFile created = new StoredFile(retainContent);
+                files.put(path, created);
+                return created;
+            }
+            return existing;
+        }
+    }
+
+    private static SMB2ReadResponse readResponse(final byte[] data) {
+        final SMB2Header header = stub(SMB2Header.class);
+        when(header.getStatusCode()).thenReturn(data == null ? NtStatus.STATUS_END_OF_FILE.getValue() : NtStatus.STATUS_SUCCESS.getValue());
+        final SMB2ReadResponse response = stub(SMB2ReadResponse.class);
+        when(response.getHeader()).thenReturn(header);
+        when(response.getData()).thenReturn(data == null ? new byte[0] : data);
+        return response;
+    }
+
+    private static FileIdBothDirectoryInformation entry(final String name, final long size, final long lastModified,
+            final boolean directory) {
+        final FileIdBothDirectoryInformation entry = stub(FileIdBothDirectoryInformation.class);
+        when(entry.getFileName()).thenReturn(name);
+        when(entry.getEndOfFile()).thenReturn(size);
+        when(entry.getLastWriteTime()).thenReturn(FileTime.ofEpochMillis(lastModified));
+        when(entry.getFileAttributes()).thenReturn(directory
+            ? FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue()
+            : FileAttributes.FILE_ATTRIBUTE_NORMAL.getValue());
+        return entry;
+    }
+
+    private static final class StoredFile {
+        private final boolean retainContent;
+        private byte[] content = new byte[0];
+        private long length = 0;
+        private long lastModified = System.currentTimeMillis();
+        private long modifications = 0;
+
+        private StoredFile(final boolean retainContent) {
+            this.retainContent = retainContent;
+        }
+
+        private synchronized void write(final long fileOffset, final byte[] buffer, final int offset, final int length) {
+            final long end = fileOffset + length;
+            if (retainContent) {
+                ensureCapacity(end);
+                System.arraycopy(buffer, offset, content, (int) fileOffset, length);
+            }
+            this.length = Math.max(this.length, end);
+            this.lastModified = System.currentTimeMillis();
+            this.modifications++;
+        }
+
+        private synchronized void setLength(final long length) {
+            if (retainContent) {
+                ensureCapacity(length);
+                if (length < this.length) {
+                    Arrays.fill(content, (int) length, (int) this.length, (byte) 0);
+                }
+            }
+            this.length = length;
+            this.lastModified = System.currentTimeMillis();
+            this.modifications++;
+        }
+
+        private synchronized long modifications() {
+            return modifications;
+        }
+
+        /**
+         * Moves the last write time forward, to a time no reader has seen yet.
+         */
+        private synchronized void touch() {
+            this.lastModified = Math.max(System.currentTimeMillis(), lastModified + 1);
+        }
+
+        private synchronized long length() {
+            return length;
+        }
+
+        private synchronized byte[] read(final long fileOffset, final int length) {
+            if (fileOffset >= this.length) {
+                return null;
+            }
+            final int available = (int) Math.min(length, this.length - fileOffset);
+            return retainContent ? Arrays.copyOfRange(content, (int) fileOffset, (int) fileOffset + available) : new byte[available];
+        }
+
+        private synchronized long lastModified() {
+            return lastModified;
+        }
+
+        private synchronized byte[] content() {
+            return retainContent ? Arrays.copyOf(content, (int) length) : null;
+        }
+
+        private void ensureCapacity(final long capacity) {
+            if (capacity > content.length) {
+                content = Arrays.copyOf(content, (int) Math.max(capacity, content.length * 2L));
+            }
+        }
+    }
+
+    /**
+     * Sends the written data in requests of the maximum write size, like the
+     * output stream of smbj.
+     */
+    private final class StandInOutputStream extends OutputStream {
+        private final Link link;
+        private final StoredFile stored;
+        private final byte[] buffer = new byte[maxWriteSize];
+        private int buffered = 0;
+        private long fileOffset = 0;
+
+        private StandInOutputStream(final Link link, final StoredFile stored) {
+            this.link = link;
+            this.stored = stored;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (buffered == buffer.length) {
+                flush();
+            }
+            buffer[buffered++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            for (int done = 0; done < len; ) {
+                if (buffered == buffer.length) {
+                    flush();
+                }
+                final int n = Math.min(len - done, buffer.length - buffered);
+                System.arraycopy(b, off + done, buffer, buffered, n);
+                buffered += n;
+                done += n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffered > 0) {
+                fileOffset += link.write(stored, buffer, fileOffset, 0, buffered);
+                buffered = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
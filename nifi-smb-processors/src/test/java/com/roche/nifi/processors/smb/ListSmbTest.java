@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+public class ListSmbTest {
+
+    private static final String SHARE = "share";
+    private static final String DIRECTORY = "in";
+    private static final long T0 = 1_500_000_000_000L;
+
+    private TestRunner testRunner;
+    private InMemorySmbServer server;
+
+    @Before
+    public void init() {
+        server = new InMemorySmbServer();
+        testRunner = TestRunners.newTestRunner(ListSmb.class);
+        ((ListSmb) testRunner.getProcessor()).initSmbClient(server.newClient());
+        testRunner.setProperty(ListSmb.HOSTNAME, "host");
+        testRunner.setProperty(ListSmb.SHARE, SHARE);
+        testRunner.setProperty(ListSmb.DIRECTORY, DIRECTORY);
+    }
+
+    @After
+    public void close() {
+        server.close();
+    }
+
+    private void addFile(final String path, final long lastModified) {
+        server.addFile(SHARE, path, path.getBytes(), lastModified);
+    }
+
+    private List<String> listedPaths() {
+        final List<String> paths = new ArrayList<>();
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(ListSmb.REL_SUCCESS)) {
+            final String directory = flowFile.getAttribute(ListSmb.PATH_ATTRIBUTE);
+            paths.add(directory + "\\" + flowFile.getAttribute("filename"));
+        }
+        testRunner.clearTransferState();
+        return paths;
+    }
+
+    @Test
+    public void testListsFiles() {
+        addFile("in\\a.txt", T0);
+        addFile("in\\b.txt", T0 + 1000);
+        addFile("in\\sub\\c.txt", T0);
+        addFile("other\\d.txt", T0);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(ListSmb.REL_SUCCESS, 2);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(ListSmb.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("filename", "a.txt");
+        flowFile.assertAttributeEquals(ListSmb.PATH_ATTRIBUTE, DIRECTORY);
+        flowFile.assertAttributeEquals(ListSmb.HOSTNAME_ATTRIBUTE, "host");
+        flowFile.assertAttributeEquals(ListSmb.SHARE_ATTRIBUTE, SHARE);
+        flowFile.assertAttributeEquals(ListSmb.SIZE_ATTRIBUTE, String.valueOf("in\\a.txt".length()));
+        assertNotNull(flowFile.getAttribute(ListSmb.LAST_MODIFIED_ATTRIBUTE));
+        assertEquals(0, flowFile.getSize());
+
+        testRunner.getStateManager().assertStateEquals(ListingWatermark.TIMESTAMP_KEY, String.valueOf(T0 + 1000), Scope.CLUSTER);
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testListsOnlyNewOrChangedFiles() {
+        addFile("in\\a.txt", T0);
+        addFile("in\\b.txt", T0 + 1000);
+        testRunner.run();
+        assertEquals(Arrays.asList("in\\a.txt", "in\\b.txt"), listedPaths());
+
+        testRunner.run();
+        testRunner.assertTransferCount(ListSmb.REL_SUCCESS, 0);
+
+        // written within the same tick as the last listed file
+        addFile("in\\c.txt", T0 + 1000);
+        addFile("in\\a.txt", T0 + 2000);
+        testRunner.run();
+        assertEquals(Arrays.asList("in\\c.txt", "in\\a.txt"), listedPaths());
+
+        testRunner.run();
+        testRunner.assertTransferCount(ListSmb.REL_SUCCESS, 0);
+    }
+
+    @Test
+    public void testMaximumListingSize() {
+        addFile("in\\a.txt", T0 + 1000);
+        addFile("in\\b.txt", T0);
+        addFile("in\\c.txt", T0 + 1000);
+        addFile("in\\d.txt", T0 + 1000);
+        addFile("in\\e.txt", T0 + 2000);
+        testRunner.setProperty(ListSmb.MAX_LISTING_SIZE, "2");
+
+        testRunner.run();
+        assertEquals(Arrays.asList("in\\b.txt", "in\\a.txt"), listedPaths());
+        testRunner.run();
+        assertEquals(Arrays.asList("in\\c.txt", "in\\d.txt"), listedPaths());
+        testRunner.run();
+        assertEquals(Collections.singletonList("in\\e.txt"), listedPaths());
+        testRunner.run();
+        assertEquals(Collections.emptyList(), listedPaths());
+    }
+
+    @Test
+    public void testContinuesFromState() throws Exception {
+        // the first schedule clears the state of the former configuration
+        testRunner.run();
+        addFile("in\\a.txt", T0);
+        addFile("in\\b.txt", T0);
+        addFile("in\\c.txt", T0 + 1000);
+        final ListingWatermark watermark = ListingWatermark.NONE.advance(T0, Collections.singletonList("in\\a.txt"));
+        testRunner.getStateManager().setState(watermark.toState(), Scope.CLUSTER);
+
+        testRunner.run();
+        assertEquals(Arrays.asList("in\\b.txt", "in\\c.txt"), listedPaths());
+    }
+
+    @Test
+    public void testRecursive() {
+        addFile("in\\a.txt", T0);
+        addFile("in\\x\\b.txt", T0 + 1000);
+        addFile("in\\x\\y\\c.txt", T0 + 2000);
+        addFile("in\\z\\d.txt", T0 + 3000);
+        testRunner.setProperty(ListSmb.RECURSE, "true");
+        testRunner.run();
+
+        assertEquals(Arrays.asList("in\\a.txt", "in\\x\\b.txt", "in\\x\\y\\c.txt", "in\\z\\d.txt"), listedPaths());
+        assertEquals(Long.valueOf(4), testRunner.getCounterValue("Directories listed"));
+    }
+
+    @Test
+    public void testRecursiveInParallel() {
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 5; j++) {
+                final String path = "in\\dir" + i + "\\file" + j + ".txt";
+                addFile(path, T0 + i * 5 + j);
+                expected.add(path);
+            }
+        }
+        testRunner.setProperty(ListSmb.RECURSE, "true");
+        testRunner.setProperty(ListSmb.PARALLEL_LISTINGS, "4");
+        testRunner.run();
+
+        assertEquals(expected, listedPaths());
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testFileFilter() {
+        addFile("in\\a.csv", T0);
+        addFile("in\\b.txt", T0);
+        testRunner.setProperty(ListSmb.FILE_FILTER, ".*\\.csv");
+        testRunner.run();
+
+        assertEquals(Collections.singletonList("in\\a.csv"), listedPaths());
+    }
+
+    @Test
+    public void testMissingDirectory() {
+        addFile("other\\a.txt", T0);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ListSmb.REL_SUCCESS, 0);
+        testRunner.getStateManager().assertStateNotSet(Scope.CLUSTER);
+    }
+
+    @Test
+    public void testRootOfShare() {
+        addFile("a.txt", T0);
+        addFile("in\\b.txt", T0);
+        testRunner.removeProperty(ListSmb.DIRECTORY);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(ListSmb.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(ListSmb.REL_SUCCESS).get(0).assertAttributeEquals(ListSmb.PATH_ATTRIBUTE, "");
+    }
+
+    @Test
+    public void testWatermark() {
+        final ListingWatermark watermark = ListingWatermark.NONE
+            .advance(T0, Arrays.asList("a", "b"))
+            .advance(T0, Collections.singletonList("c"));
+        assertFalse(watermark.isNew(T0 - 1, "x"));
+        assertFalse(watermark.isNew(T0, "a"));
+        assertFalse(watermark.isNew(T0, "c"));
+        assertTrue(watermark.isNew(T0, "x"));
+        assertTrue(watermark.isNew(T0 + 1, "a"));
+
+        final ListingWatermark advanced = watermark.advance(T0 + 1, Collections.singletonList("x"));
+        assertEquals(T0 + 1, advanced.getTimestamp());
+        assertTrue(advanced.isNew(T0 + 1, "a"));
+        assertEquals(2, advanced.toState().size());
+    }
+
+    private static List<String> paths(final int count) {
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            paths.add(String.format("in\\f%04d.txt", i));
+        }
+        return paths;
+    }
+
+    @Test
+    public void testWatermarkKeepsLastPathBeyondMaximum() {
+        final List<String> listed = paths(ListingWatermark.MAX_PATHS + 1);
+        final ListingWatermark watermark = ListingWatermark.NONE.advance(T0, listed);
+        assertEquals(2, watermark.toState().size());
+        assertFalse(watermark.isNew(T0, listed.get(0)));
+        assertFalse(watermark.isNew(T0, listed.get(listed.size() - 1)));
+        assertTrue(watermark.isNew(T0, "in\\z.txt"));
+
+        final ListingWatermark advanced = watermark.advance(T0, Collections.singletonList("in\\z.txt"));
+        assertFalse(advanced.isNew(T0, "in\\z.txt"));
+        assertEquals(2, advanced.toState().size());
+    }
+
+    @Test
+    public void testHoldsBackNewestFilesBeyondMaximumPaths() throws Exception {
+        addFile("in\\a.txt", T0);
+        final List<String> newest = paths(ListingWatermark.MAX_PATHS + 1);
+        for (final String path : newest) {
+            addFile(path, T0 + 1000);
+        }
+
+        testRunner.run();
+        assertEquals(Collections.singletonList("in\\a.txt"), listedPaths());
+        testRunner.run();
+        assertEquals(newest, listedPaths());
+        assertTrue(testRunner.getStateManager().getState(Scope.CLUSTER).toMap().size() <= ListingWatermark.MAX_PATHS);
+        testRunner.run();
+        assertEquals(Collections.emptyList(), listedPaths());
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+public class PutSmbFilesArchiveTest {
+
+    private static final String SHARE = "share";
+
+    private TestRunner testRunner;
+    private InMemorySmbServer server;
+
+    @Before
+    public void init() {
+        server = new InMemorySmbServer();
+        testRunner = TestRunners.newTestRunner(PutSmbFiles.class);
+        ((PutSmbFiles) testRunner.getProcessor()).initSmbClient(server.newClient());
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "host");
+        testRunner.setProperty(PutSmbFiles.SHARE, SHARE);
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, "out");
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_FORMAT, PutSmbFiles.ARCHIVE_ZIP);
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_FILENAME, "batch");
+    }
+
+    @After
+    public void close() {
+        server.close();
+    }
+
+    private void enqueue(final String filename, final byte[] content, final String... attributes) {
+        final Map<String, String> map = new HashMap<>();
+        map.put("filename", filename);
+        for (int i = 0; i < attributes.length; i += 2) {
+            map.put(attributes[i], attributes[i + 1]);
+        }
+        testRunner.enqueue(content, map);
+    }
+
+    private static Map<String, String> readArchive(final byte[] archive, final boolean tar) throws IOException {
+        final Map<String, String> entries = new LinkedHashMap<>();
+        try (ArchiveInputStream in = tar
+                ? new TarArchiveInputStream(new ByteArrayInputStream(archive))
+                : new ZipArchiveInputStream(new ByteArrayInputStream(archive))) {
+            for (ArchiveEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                StreamUtils.copy(in, content);
+                entries.put(entry.getName(), new String(content.toByteArray()));
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testZipArchive() throws IOException {
+        enqueue("a.txt", "alpha".getBytes());
+        enqueue("b.txt", "beta".getBytes());
+        enqueue("c.txt", "gamma".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(1);
+        flowFile.assertAttributeEquals(PutSmbFiles.ARCHIVE_ATTRIBUTE, "out\\batch.zip");
+        flowFile.assertAttributeEquals(PutSmbFiles.ARCHIVE_ENTRY_ATTRIBUTE, "b.txt");
+
+        final Map<String, String> entries = readArchive(server.getFileContent(SHARE, "out\\batch.zip"), false);
+        final Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a.txt", "alpha");
+        expected.put("b.txt", "beta");
+        expected.put("c.txt", "gamma");
+        assertEquals(expected, entries);
+        assertEquals(1, server.getFileCount(SHARE));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Archives written to \\\\host\\share"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testTarArchiveWithEntryPaths() throws IOException {
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_FORMAT, PutSmbFiles.ARCHIVE_TAR);
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_FILENAME, "batch.TAR");
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_ENTRY_NAME, "${path}\\${filename}");
+        enqueue("a.txt", "alpha".getBytes(), "path", "x");
+        enqueue("b.txt", "beta".getBytes(), "path", "x\\y");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(1)
+            .assertAttributeEquals(PutSmbFiles.ARCHIVE_ENTRY_ATTRIBUTE, "x/y/b.txt");
+
+        final Map<String, String> entries = readArchive(server.getFileContent(SHARE, "out\\batch.TAR"), true);
+        assertEquals("alpha", entries.get("x/a.txt"));
+        assertEquals("beta", entries.get("x/y/b.txt"));
+    }
+
+    @Test
+    public void testArchivePerDirectory() throws IOException {
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, "${dir}");
+        enqueue("a.txt", "alpha".getBytes(), "dir", "one");
+        enqueue("b.txt", "beta".getBytes(), "dir", "two");
+        enqueue("c.txt", "gamma".getBytes(), "dir", "one");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        assertEquals(2, readArchive(server.getFileContent(SHARE, "one\\batch.zip"), false).size());
+        assertEquals(1, readArchive(server.getFileContent(SHARE, "two\\batch.zip"), false).size());
+    }
+
+    @Test
+    public void testPipelinedArchive() throws IOException {
+        server.withMaxWriteSize(64 * 1024);
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "64 KB");
+        // hardly compressible, so that the archive spans many write chunks
+        final Random random = new Random(0);
+        final StringBuilder first = new StringBuilder();
+        final StringBuilder second = new StringBuilder();
+        for (int i = 0; i < 50_000; i++) {
+            first.append(Integer.toHexString(random.nextInt()));
+            second.append(Integer.toHexString(random.nextInt()));
+        }
+        enqueue("a.txt", first.toString().getBytes());
+        enqueue("b.txt", second.toString().getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertTrue(server.getFileSize(SHARE, "out\\batch.zip") > 4 * 64 * 1024);
+        final Map<String, String> entries = readArchive(server.getFileContent(SHARE, "out\\batch.zip"), false);
+        assertEquals(first.toString(), entries.get("a.txt"));
+        assertEquals(second.toString(), entries.get("b.txt"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testMaxArchiveSize() {
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_FILENAME, "${filename}");
+        testRunner.setProperty(PutSmbFiles.MAX_ARCHIVE_SIZE, "10 B");
+        enqueue("a.txt", "123456".getBytes());
+        enqueue("b.txt", "123456".getBytes());
+        enqueue("c.txt", "1234".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        testRunner.assertQueueNotEmpty();
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        assertEquals(2, server.getFileCount(SHARE));
+        assertTrue(server.getFileSize(SHARE, "out\\b.txt.zip") > 0);
+    }
+
+    @Test
+    public void testWaitsForMinimumEntries() {
+        testRunner.setProperty(PutSmbFiles.MIN_ARCHIVE_ENTRIES, "3");
+        enqueue("a.txt", "alpha".getBytes());
+        enqueue("b.txt", "beta".getBytes());
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 0);
+        testRunner.assertQueueNotEmpty();
+        assertEquals(0, server.getFileCount(SHARE));
+
+        enqueue("c.txt", "gamma".getBytes());
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+    }
+
+    @Test
+    public void testMaxBinAge() {
+        testRunner.setProperty(PutSmbFiles.MIN_ARCHIVE_ENTRIES, "3");
+        testRunner.setProperty(PutSmbFiles.MAX_ARCHIVE_BIN_AGE, "0 sec");
+        enqueue("a.txt", "alpha".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+    }
+
+    @Test
+    public void testFailedArchiveIsRemoved() {
+        server.withDiskFull(1);
+        enqueue("a.txt", "alpha".getBytes());
+        enqueue("b.txt", "beta".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 2);
+        assertEquals(-1, server.getFileSize(SHARE, "out\\batch.zip"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testExistingArchiveRenamed() {
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.RENAME_RESOLUTION);
+        server.addFile(SHARE, "out\\batch.zip", new byte[0], 0);
+        enqueue("a.txt", "alpha".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0)
+            .assertAttributeEquals(PutSmbFiles.ARCHIVE_ATTRIBUTE, "out\\batch_1.zip");
+        assertEquals(0, server.getFileSize(SHARE, "out\\batch.zip"));
+    }
+
+    @Test
+    public void testMinimumEntriesMustFitBatch() {
+        testRunner.setProperty(PutSmbFiles.BATCH_SIZE, "2");
+        testRunner.setProperty(PutSmbFiles.MIN_ARCHIVE_ENTRIES, "3");
+        testRunner.assertNotValid();
+        testRunner.setProperty(PutSmbFiles.ARCHIVE_FORMAT, PutSmbFiles.ARCHIVE_NONE);
+        testRunner.assertValid();
+    }
+}
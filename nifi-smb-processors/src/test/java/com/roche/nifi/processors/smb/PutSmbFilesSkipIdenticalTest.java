@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+public class PutSmbFilesSkipIdenticalTest {
+
+    private static final String SHARE = "share";
+    private static final DateTimeFormatter FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
+    private static final long NOW = System.currentTimeMillis();
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private TestRunner testRunner;
+    private InMemorySmbServer server;
+
+    @Before
+    public void init() {
+        server = new InMemorySmbServer();
+        testRunner = TestRunners.newTestRunner(PutSmbFiles.class);
+        ((PutSmbFiles) testRunner.getProcessor()).initSmbClient(server.newClient());
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "host");
+        testRunner.setProperty(PutSmbFiles.SHARE, SHARE);
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, "out");
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.SKIP_IDENTICAL_RESOLUTION);
+    }
+
+    @After
+    public void close() {
+        server.close();
+    }
+
+    private void enqueue(final String filename, final String content, final long sourceLastModified) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("filename", filename);
+        if (sourceLastModified > 0) {
+            attributes.put("file.lastModifiedTime", FORMAT.format(Instant.ofEpochMilli(sourceLastModified)));
+        }
+        testRunner.enqueue(content.getBytes(), attributes);
+    }
+
+    private void assertSkipped(final int index, final boolean skipped) {
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(index);
+        assertEquals(skipped ? "true" : null, flowFile.getAttribute(PutSmbFiles.SKIPPED_ATTRIBUTE));
+    }
+
+    @Test
+    public void testSkipsFileWrittenAfterSourceChange() {
+        server.addFile(SHARE, "out\\a.txt", "remote".getBytes(), NOW);
+        enqueue("a.txt", "latest", NOW - HOUR);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertSkipped(0, true);
+        assertArrayEquals("remote".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Files skipped as identical"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testReplacesFileOlderThanSource() {
+        server.addFile(SHARE, "out\\a.txt", "remote".getBytes(), NOW - HOUR);
+        enqueue("a.txt", "latest", NOW);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertSkipped(0, false);
+        assertArrayEquals("latest".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+    }
+
+    @Test
+    public void testReplacesFileOfOtherSize() {
+        server.addFile(SHARE, "out\\a.txt", "remote".getBytes(), NOW);
+        enqueue("a.txt", "the latest", NOW - HOUR);
+        testRunner.run();
+
+        assertSkipped(0, false);
+        assertArrayEquals("the latest".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+    }
+
+    @Test
+    public void testWritesMissingFile() {
+        enqueue("a.txt", "latest", NOW);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertSkipped(0, false);
+        assertArrayEquals("latest".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+    }
+
+    @Test
+    public void testSkipsByContentHash() {
+        testRunner.setProperty(PutSmbFiles.CONTENT_HASH_CACHE_SIZE, "100");
+        enqueue("a.txt", "content", 0);
+        // the cache lives as long as the processor is scheduled
+        testRunner.run(1, false, true);
+        assertSkipped(0, false);
+
+        enqueue("a.txt", "content", 0);
+        testRunner.run(1, false, false);
+        assertSkipped(1, true);
+
+        enqueue("a.txt", "CONTENT", 0);
+        testRunner.run(1, false, false);
+        assertSkipped(2, false);
+        assertArrayEquals("CONTENT".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+    }
+
+    @Test
+    public void testSkipsByContentHashWhenCloseSetsWriteTime() {
+        server.withWriteTimeOnClose(true);
+        testRunner.setProperty(PutSmbFiles.CONTENT_HASH_CACHE_SIZE, "100");
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_ON_CLOSE);
+        enqueue("a.txt", "content", 0);
+        testRunner.run(1, false, true);
+
+        enqueue("a.txt", "content", 0);
+        testRunner.run(1, false, false);
+        assertSkipped(1, true);
+    }
+
+    @Test
+    public void testSkipsByContentHashOfFilesFlushedPerBatch() {
+        server.withWriteTimeOnClose(true);
+        testRunner.setProperty(PutSmbFiles.CONTENT_HASH_CACHE_SIZE, "100");
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_PER_BATCH);
+        enqueue("a.txt", "content", 0);
+        testRunner.run(1, false, true);
+
+        enqueue("a.txt", "content", 0);
+        testRunner.run(1, false, false);
+        assertSkipped(1, true);
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testHashIgnoredOnceRemoteFileChanged() {
+        testRunner.setProperty(PutSmbFiles.CONTENT_HASH_CACHE_SIZE, "100");
+        enqueue("a.txt", "content", 0);
+        // the cache lives as long as the processor is scheduled
+        testRunner.run(1, false, true);
+
+        // replaced by someone else with content of the same size
+        server.addFile(SHARE, "out\\a.txt", "CONTENT".getBytes(), NOW + HOUR);
+        enqueue("a.txt", "content", 0);
+        testRunner.run(1, false, false);
+        assertSkipped(1, false);
+        assertArrayEquals("content".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+    }
+
+    @Test
+    public void testDirectoryListedOncePerBatch() {
+        for (int i = 0; i < 50; i++) {
+            server.addFile(SHARE, "out\\file" + i + ".txt", "remote".getBytes(), NOW);
+            enqueue("file" + i + ".txt", "latest", NOW - HOUR);
+        }
+        testRunner.run();
+        final long requests = server.getRequestCount();
+        for (int i = 0; i < 50; i++) {
+            enqueue("file" + i + ".txt", "latest", NOW - HOUR);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 100);
+        assertEquals(Long.valueOf(100), testRunner.getCounterValue("Files skipped as identical"));
+        assertTrue(server.getRequestCount() - requests < 10);
+    }
+
+    @Test
+    public void testSameNameTwiceInBatch() {
+        server.addFile(SHARE, "out\\a.txt", "remote".getBytes(), NOW);
+        enqueue("a.txt", "latest", NOW + HOUR);
+        enqueue("a.txt", "remote", NOW - HOUR);
+        testRunner.run();
+
+        assertSkipped(0, false);
+        assertSkipped(1, false);
+        assertArrayEquals("remote".getBytes(), server.getFileContent(SHARE, "out\\a.txt"));
+    }
+}
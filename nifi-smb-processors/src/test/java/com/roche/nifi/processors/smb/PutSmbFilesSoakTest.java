@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.roche.nifi.processors.smb.InMemorySmbServer.Fault;
+
+/**
+ * Writes with several threads to an in-memory SMB server for a while, with
+ * and without injected faults, and checks that every flowfile is accounted
+ * for, that no session or file is left open and that the heap does not grow
+ * from round to round.
+ *
+ * The tests are skipped unless the system property smb.soak.seconds gives
+ * the duration of each, e.g. {@code mvn test -Dtest=PutSmbFilesSoakTest -Dsmb.soak.seconds=600}.
+ */
+public class PutSmbFilesSoakTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PutSmbFilesSoakTest.class);
+
+    private static final String SHARE = "share";
+    private static final String DIRECTORY = "soak";
+    private static final int THREADS = 4;
+    private static final int FILES_PER_ROUND = 200;
+    private static final int MAX_FILE_SIZE = 256 * 1024;
+    private static final long DRAIN_TIMEOUT_MILLIS = 60_000;
+    private static final long MAX_HEAP_GROWTH = 64L * 1024 * 1024;
+    private static final String SOAK_SECONDS_PROPERTY = "smb.soak.seconds";
+
+    /** Conservative enough for a loaded build machine. */
+    private static final double MIN_FILES_PER_SECOND = 50;
+
+    private final long soakMillis = TimeUnit.SECONDS.toMillis(Long.getLong(SOAK_SECONDS_PROPERTY, 0));
+    private final Random random = new Random(42);
+
+    private InMemorySmbServer server;
+    private TestRunner testRunner;
+
+    private long enqueued = 0;
+    private long succeeded = 0;
+    private long failed = 0;
+
+    @Before
+    public void init() {
+        assumeTrue("Set " + SOAK_SECONDS_PROPERTY + " to run the soak tests", soakMillis > 0);
+
+        server = new InMemorySmbServer()
+            .withLatency(1, TimeUnit.MILLISECONDS)
+            .withMaxWriteSize(64 * 1024)
+            .withRetainedContent(false)
+            .withSeed(42);
+
+        testRunner = TestRunners.newTestRunner(PutSmbFiles.class);
+        ((PutSmbFiles) testRunner.getProcessor()).initSmbClient(server.newClient());
+        testRunner.setThreadCount(THREADS);
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "soak-host");
+        testRunner.setProperty(PutSmbFiles.SHARE, SHARE);
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, DIRECTORY);
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.setProperty(PutSmbFiles.BATCH_SIZE, "50");
+        testRunner.setProperty(PutSmbFiles.MAX_CONCURRENT_WRITES, "4");
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "64 KB");
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_BACK_OFF, "200 millis");
+    }
+
+    @After
+    public void close() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSustainedLoad() {
+        final long elapsedMillis = soak();
+
+        assertEquals(0, failed);
+        assertEquals(enqueued, succeeded);
+        final double filesPerSecond = succeeded * 1000.0 / elapsedMillis;
+        logger.info("Wrote {} files at {} files/s", succeeded, String.format("%.0f", filesPerSecond));
+        assertTrue("Only " + filesPerSecond + " files/s", filesPerSecond >= MIN_FILES_PER_SECOND);
+    }
+
+    @Test
+    public void testSustainedLoadWithFaults() {
+        server.withLatencySpikes(0.005, 200, TimeUnit.MILLISECONDS)
+            .withConnectionDrops(0.002)
+            .withAuthenticationFailures(0.05)
+            .withDiskFull(0.002)
+            // the first faults are forced, so the run does not depend on the random ones
+            .withConnectionDropAfter(10L * MAX_FILE_SIZE)
+            .withDiskFullAfter(20L * MAX_FILE_SIZE);
+
+        soak();
+
+        logger.info("Wrote {} and failed {} files with {} latency spikes, {} dropped connections, {} failed authentications and {} full disks",
+            succeeded, failed, server.getInjectedFaults(Fault.LATENCY_SPIKE), server.getInjectedFaults(Fault.CONNECTION_DROP),
+            server.getInjectedFaults(Fault.AUTHENTICATION_FAILURE), server.getInjectedFaults(Fault.DISK_FULL));
+        assertTrue(server.getInjectedFaults(Fault.CONNECTION_DROP) > 0);
+        assertTrue(server.getInjectedFaults(Fault.DISK_FULL) > 0);
+        assertTrue(failed > 0);
+        assertTrue(succeeded > failed);
+    }
+
+    /**
+     * Keeps the processor busy for the soak duration, then stops injecting
+     * faults and drains the queue, which holds the flowfiles left behind by
+     * an open circuit breaker.
+     *
+     * @return the milliseconds spent writing
+     */
+    private long soak() {
+        final long start = System.currentTimeMillis();
+        testRunner.run(1, false, true);
+        collect();
+        long firstRoundHeap = -1;
+        long lastRoundHeap = -1;
+        while (System.currentTimeMillis() - start < soakMillis) {
+            enqueueRound();
+            while (testRunner.getQueueSize().getObjectCount() > 0 && System.currentTimeMillis() - start < soakMillis) {
+                testRunner.run(THREADS, false, false);
+                collect();
+            }
+            lastRoundHeap = usedHeapAfterGc();
+            if (firstRoundHeap < 0) {
+                firstRoundHeap = lastRoundHeap;
+            }
+        }
+
+        server.withoutFaults();
+        final long drainStart = System.currentTimeMillis();
+        while (testRunner.getQueueSize().getObjectCount() > 0) {
+            assertTrue("Queue not drained", System.currentTimeMillis() - drainStart < DRAIN_TIMEOUT_MILLIS);
+            testRunner.run(THREADS, false, false);
+            collect();
+        }
+        final long elapsedMillis = System.currentTimeMillis() - start;
+        testRunner.run(1, true, false);
+
+        assertEquals(enqueued, succeeded + failed);
+        assertEquals(0, server.getOpenHandles());
+        assertEquals(0, server.getOpenSessions());
+        logger.info("Heap used after the first round {} bytes, after the last round {} bytes", firstRoundHeap, lastRoundHeap);
+        assertTrue("Heap grew from " + firstRoundHeap + " to " + lastRoundHeap + " bytes",
+            lastRoundHeap - firstRoundHeap < MAX_HEAP_GROWTH);
+        return elapsedMillis;
+    }
+
+    private static long usedHeapAfterGc() {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void enqueueRound() {
+        for (int i = 0; i < FILES_PER_ROUND; i++) {
+            final byte[] content = new byte[random.nextInt(MAX_FILE_SIZE) + 1];
+            random.nextBytes(content);
+            testRunner.enqueue(content, Collections.singletonMap("filename", "file-" + enqueued++ + ".bin"));
+        }
+    }
+
+    /**
+     * Counts and checks the transferred flowfiles, then drops them so that
+     * the memory of long runs stays bounded.
+     */
+    private void collect() {
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS)) {
+            final String path = DIRECTORY + "\\" + flowFile.getAttribute("filename");
+            assertEquals("Size of " + path, flowFile.getSize(), server.getFileSize(SHARE, path));
+            succeeded++;
+        }
+        failed += testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_FAILURE).size();
+        testRunner.clearTransferState();
+    }
+}
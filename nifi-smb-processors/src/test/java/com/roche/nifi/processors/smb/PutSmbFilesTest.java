@@ -17,17 +17,24 @@
 package com.roche.nifi.processors.smb;
 
 import com.hierynomus.smbj.share.File;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -35,6 +42,7 @@ import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.isNotNull;
 import static org.mockito.Mockito.any;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import org.apache.nifi.processor.ProcessContext;
 import com.hierynomus.smbj.SMBClient;
@@ -42,13 +50,24 @@ import com.hierynomus.smbj.connection.Connection;
 import com.hierynomus.smbj.auth.AuthenticationContext;
 import com.hierynomus.smbj.share.DiskShare;
 import com.hierynomus.smbj.session.Session;
+import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMBApiException;
 import com.hierynomus.mssmb2.SMB2ShareAccess;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 public class PutSmbFilesTest {
@@ -63,6 +82,7 @@ public class PutSmbFilesTest {
     private DiskShare diskShare;
     private File smbfile;
     private ByteArrayOutputStream baOutputStream;
+    private InMemorySmbServer server;
 
     private final static String HOSTNAME = "smbhostname";
     private final static String SHARE = "smbshare";
@@ -70,6 +90,10 @@ public class PutSmbFilesTest {
     private final static String DOMAIN = "mydomain";
     private final static String USERNAME = "myusername";
     private final static String PASSWORD = "mypassword";
+    private final static int COPY_SIZE = 200 * 1024;
+    private final static int RESUMABLE_CHUNK = 64 * 1024;
+    private final static int RESUMABLE_SIZE = 64 * RESUMABLE_CHUNK;
+    private final static int FAILOVER_SIZE = 100 * 1024;
 
 
     private void setupSmbProcessor() throws IOException {
@@ -139,6 +163,34 @@ public class PutSmbFilesTest {
         setupSmbProcessor();
     }
 
+    @After
+    public void close() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Writes to the given in-memory server instead of the mocked client, for
+     * the tests which look at the files arriving on the server.
+     */
+    private void useServer(final InMemorySmbServer server) {
+        this.server = server;
+        ((PutSmbFiles) testRunner.getProcessor()).initSmbClient(server.newClient());
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+    }
+
+    private void enqueueFile(final String filename, final byte[] content) {
+        testRunner.enqueue(content, Collections.singletonMap("filename", filename));
+    }
+
+    private void enqueueFile(final String filename, final byte[] content, final String directory) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("filename", filename);
+        attributes.put("dir", directory);
+        testRunner.enqueue(content, attributes);
+    }
+
     @Test
     public void testNormalAuth() throws IOException {
         ArgumentCaptor<AuthenticationContext> ac = ArgumentCaptor.forClass(AuthenticationContext.class);
@@ -205,27 +257,1052 @@ public class PutSmbFilesTest {
     @Test
     public void testFileExistsFail() throws IOException {
         testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.FAIL_RESOLUTION);
-        when(diskShare.fileExists(any(String.class))).thenReturn(true);
-        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE);
+        stubExistingFile(DIRECTORY + "\\report.csv");
+        testRunner.enqueue("data", Collections.singletonMap("filename", "report.csv"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 1);
+        verify(diskShare, times(0)).fileExists(any(String.class));
     }
 
     @Test
     public void testFileExistsIgnore() throws IOException {
         testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.IGNORE_RESOLUTION);
-        when(diskShare.fileExists(any(String.class))).thenReturn(true);
-        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS);
+        stubExistingFile(DIRECTORY + "\\report.csv");
+        testRunner.enqueue("data", Collections.singletonMap("filename", "report.csv"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(diskShare, times(0)).fileExists(any(String.class));
+        assertEquals("", baOutputStream.toString());
+    }
+
+    @Test
+    public void testFileCreatedOnlyIfAbsent() throws IOException {
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.FAIL_RESOLUTION);
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(diskShare, times(1)).openFile(
+            any(String.class)
+            ,anySet()
+            ,anySet()
+            ,anySet()
+            ,eq(SMB2CreateDisposition.FILE_CREATE)
+            ,anySet()
+        );
+        verify(diskShare, times(0)).fileExists(any(String.class));
+    }
+
+    @Test
+    public void testFileExistsRename() throws IOException {
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.RENAME_RESOLUTION);
+        stubExistingFile(DIRECTORY + "\\report.csv");
+        stubExistingFile(DIRECTORY + "\\report_1.csv");
+        testRunner.enqueue("data", Collections.singletonMap("filename", "report.csv"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0).assertAttributeEquals("filename", "report_2.csv");
+        assertEquals("data", baOutputStream.toString());
+        verify(diskShare, times(3)).openFile(
+            any(String.class)
+            ,anySet()
+            ,anySet()
+            ,anySet()
+            ,eq(SMB2CreateDisposition.FILE_CREATE)
+            ,anySet()
+        );
+    }
+
+    @Test
+    public void testRenameGivesUpAfterMaxAttempts() throws IOException {
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.RENAME_RESOLUTION);
+        when(diskShare.openFile(
+                any(String.class)
+                ,anySet()
+                ,anySet()
+                ,anySet()
+                ,any(SMB2CreateDisposition.class)
+                ,anySet()
+        )).thenThrow(smbError(NtStatus.STATUS_OBJECT_NAME_COLLISION));
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 1);
+        verify(diskShare, times(PutSmbFiles.MAX_RENAME_ATTEMPTS + 1)).openFile(
+            any(String.class)
+            ,anySet()
+            ,anySet()
+            ,anySet()
+            ,any(SMB2CreateDisposition.class)
+            ,anySet()
+        );
+    }
+
+    @Test
+    public void testUniqueName() {
+        assertEquals("report_1.csv", PutSmbFiles.uniqueName("report.csv", 1));
+        assertEquals("archive.tar_2.gz", PutSmbFiles.uniqueName("archive.tar.gz", 2));
+        assertEquals("README_3", PutSmbFiles.uniqueName("README", 3));
+        assertEquals(".profile_4", PutSmbFiles.uniqueName(".profile", 4));
+    }
+
+    private void stubExistingFile(final String fullPath) {
+        when(diskShare.openFile(
+                eq(fullPath)
+                ,anySet()
+                ,anySet()
+                ,anySet()
+                ,eq(SMB2CreateDisposition.FILE_CREATE)
+                ,anySet()
+        )).thenThrow(smbError(NtStatus.STATUS_OBJECT_NAME_COLLISION));
     }
 
     @Test
     public void testConnectionError() throws IOException {
         String emsg = "mock connection exception";
-        when(smbClient.connect(any(String.class))).thenThrow(new IOException(emsg));
+        when(smbClient.connect(any(String.class))).thenThrow(new ConnectException(emsg));
         
         testRunner.enqueue("1");
         testRunner.enqueue("2");
         testRunner.enqueue("3");
         testRunner.run();
 
-        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 3);
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        assertEquals(3, testRunner.getQueueSize().getObjectCount());
+        assertEquals(Long.valueOf(3), testRunner.getCounterValue("FlowFiles held back after connection failure"));
+    }
+
+    @Test
+    public void testSessionReusedAcrossTriggers() throws IOException {
+        when(connection.isConnected()).thenReturn(true);
+        when(diskShare.isConnected()).thenReturn(true);
+
+        testRunner.setProperty(PutSmbFiles.BATCH_SIZE, "1");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(smbClient, times(1)).connect(HOSTNAME);
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+        verify(session, times(1)).connectShare(SHARE);
+        verify(diskShare, times(1)).close();
+    }
+
+    @Test
+    public void testStaleSessionReconnects() throws IOException {
+        when(connection.isConnected()).thenReturn(true);
+        when(diskShare.isConnected()).thenReturn(false);
+
+        testRunner.setProperty(PutSmbFiles.BATCH_SIZE, "1");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(connection, times(2)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testIdleSessionPastTimeoutNotReusedWithoutKeepAlive() throws IOException, InterruptedException {
+        when(connection.isConnected()).thenReturn(true);
+        when(diskShare.isConnected()).thenReturn(true);
+
+        testRunner.setProperty(PutSmbFiles.IDLE_SESSION_TIMEOUT, "10 millis");
+        testRunner.setProperty(PutSmbFiles.KEEP_ALIVE_INTERVAL, "0 sec");
+        testRunner.enqueue("1");
+        testRunner.run(1, false, true);
+        Thread.sleep(50);
+        testRunner.enqueue("2");
+        testRunner.run(1, true, false);
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(connection, times(2)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testFailedAuthenticationClosesConnection() throws IOException {
+        when(connection.authenticate(any(AuthenticationContext.class)))
+            .thenThrow(new SMBApiException(NtStatus.STATUS_LOGON_FAILURE.getValue(), SMB2MessageCommandCode.SMB2_SESSION_SETUP, null));
+
+        testRunner.enqueue("1");
+        // still scheduled, so only a close on the failed authentication counts
+        testRunner.run(1, false, true);
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 0);
+        verify(connection).close();
+    }
+
+    @Test
+    public void testSessionLostMidBatchReconnects() throws IOException {
+        when(connection.isConnected()).thenReturn(true);
+        when(diskShare.isConnected()).thenReturn(true);
+        when(smbfile.getOutputStream())
+            .thenThrow(new SMBApiException(NtStatus.STATUS_NETWORK_NAME_DELETED.getValue(), SMB2MessageCommandCode.SMB2_WRITE, null))
+            .thenReturn(baOutputStream);
+
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 1);
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 1);
+        verify(connection, times(2)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testConcurrentWrites() throws IOException {
+        when(smbfile.getOutputStream()).thenAnswer(invocation -> new ByteArrayOutputStream());
+        testRunner.setProperty(PutSmbFiles.MAX_CONCURRENT_WRITES, "4");
+        for (int i = 0; i < 10; i++) {
+            testRunner.enqueue("data" + i);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 10);
+        verify(smbfile, times(10)).getOutputStream();
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testConcurrentWriteFailureOnlyFailsThatFile() throws IOException {
+        when(smbfile.getOutputStream())
+            .thenAnswer(invocation -> new ByteArrayOutputStream())
+            .thenThrow(new SMBApiException(NtStatus.STATUS_DISK_FULL.getValue(), SMB2MessageCommandCode.SMB2_WRITE, null))
+            .thenAnswer(invocation -> new ByteArrayOutputStream());
+        when(connection.isConnected()).thenReturn(true);
+        when(diskShare.isConnected()).thenReturn(true);
+        testRunner.setProperty(PutSmbFiles.MAX_CONCURRENT_WRITES, "3");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.enqueue("3");
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 2);
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 1);
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+    }
+
+    private byte[] stubAsyncWrites(final int size, final int shortWriteBy) {
+        final byte[] remote = new byte[size];
+        when(smbfile.writeAsync(any(byte[].class), anyLong(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            final byte[] buffer = invocation.getArgument(0);
+            final long fileOffset = invocation.getArgument(1);
+            final int offset = invocation.getArgument(2);
+            final int length = invocation.<Integer>getArgument(3) - shortWriteBy;
+            System.arraycopy(buffer, offset, remote, (int) fileOffset, length);
+            return CompletableFuture.completedFuture(length);
+        });
+        when(smbfile.write(any(byte[].class), anyLong(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            final byte[] buffer = invocation.getArgument(0);
+            final long fileOffset = invocation.getArgument(1);
+            final int offset = invocation.getArgument(2);
+            final int length = invocation.getArgument(3);
+            System.arraycopy(buffer, offset, remote, (int) fileOffset, length);
+            return length;
+        });
+        return remote;
+    }
+
+    @Test
+    public void testPipelinedWrite() throws IOException {
+        final byte[] content = InMemorySmbServer.content(10000, 0);
+        final byte[] remote = stubAsyncWrites(content.length, 0);
+
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "4 KB");
+        testRunner.setProperty(PutSmbFiles.WRITE_PIPELINE_DEPTH, "2");
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(smbfile, times(3)).writeAsync(any(byte[].class), anyLong(), anyInt(), anyInt());
+        verify(smbfile, times(0)).getOutputStream();
+        assertArrayEquals(content, remote);
+    }
+
+    @Test
+    public void testPipelinedWriteCompletesShortWrites() throws IOException {
+        final byte[] content = InMemorySmbServer.content(10000, 0);
+        final byte[] remote = stubAsyncWrites(content.length, 100);
+
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "4 KB");
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(smbfile, times(3)).write(any(byte[].class), anyLong(), anyInt(), anyInt());
+        assertArrayEquals(content, remote);
+    }
+
+    @Test
+    public void testSmallFileNotPipelined() throws IOException {
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "4 KB");
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertEquals("data", baOutputStream.toString());
+    }
+
+    @Test
+    public void testParallelStripes() throws IOException {
+        final byte[] content = InMemorySmbServer.content(20000, 0);
+        final byte[] remote = stubAsyncWrites(content.length, 0);
+
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "4 KB");
+        testRunner.setProperty(PutSmbFiles.PARALLEL_STRIPES, "3");
+        testRunner.setProperty(PutSmbFiles.STRIPE_THRESHOLD, "16 KB");
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(smbfile).setLength(content.length);
+        verify(diskShare, times(2)).openFile(
+            any(String.class)
+            ,anySet()
+            ,anySet()
+            ,anySet()
+            ,eq(SMB2CreateDisposition.FILE_OPEN)
+            ,anySet()
+        );
+        verify(connection, times(3)).authenticate(any(AuthenticationContext.class));
+        verify(smbfile, times(0)).deleteOnClose();
+        assertArrayEquals(content, remote);
+    }
+
+    @Test
+    public void testParallelStripeFailureRemovesFile() throws IOException {
+        when(smbfile.write(any(byte[].class), anyLong(), anyInt(), anyInt()))
+            .thenThrow(new SMBApiException(NtStatus.STATUS_DISK_FULL.getValue(), SMB2MessageCommandCode.SMB2_WRITE, null));
+
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "4 KB");
+        testRunner.setProperty(PutSmbFiles.PARALLEL_STRIPES, "2");
+        testRunner.setProperty(PutSmbFiles.STRIPE_THRESHOLD, "16 KB");
+        testRunner.enqueue(InMemorySmbServer.content(20000, 0));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 1);
+        verify(smbfile).deleteOnClose();
+    }
+
+    @Test
+    public void testSmallFileNotStriped() throws IOException {
+        testRunner.setProperty(PutSmbFiles.PARALLEL_STRIPES, "3");
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+        assertEquals("data", baOutputStream.toString());
+    }
+
+    private static SMBApiException smbError(final NtStatus status) {
+        return new SMBApiException(status.getValue(), SMB2MessageCommandCode.SMB2_CREATE, null);
+    }
+
+    @Test
+    public void testDirectoryCreatedOncePerBatch() throws IOException {
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.enqueue("3");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        verify(diskShare, times(1)).mkdir(DIRECTORY);
+        verify(diskShare, times(0)).folderExists(any(String.class));
+    }
+
+    @Test
+    public void testDirectoryCacheDisabled() throws IOException {
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.setProperty(PutSmbFiles.DIRECTORY_CACHE_SIZE, "0");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(diskShare, times(2)).mkdir(DIRECTORY);
+    }
+
+    @Test
+    public void testExistingDirectoryNotCreated() throws IOException {
+        doThrow(smbError(NtStatus.STATUS_OBJECT_NAME_COLLISION)).when(diskShare).mkdir(DIRECTORY);
+
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+    }
+
+    @Test
+    public void testMissingParentDirectoriesCreated() throws IOException {
+        doThrow(smbError(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND)).doNothing().when(diskShare).mkdir(DIRECTORY);
+
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        verify(diskShare, times(1)).mkdir("smbdirectory");
+        verify(diskShare, times(2)).mkdir(DIRECTORY);
+    }
+
+    @Test
+    public void testRemovedDirectoryCreatedAgain() throws IOException {
+        when(diskShare.openFile(
+                any(String.class)
+                ,anySet()
+                ,anySet()
+                ,anySet()
+                ,any(SMB2CreateDisposition.class)
+                ,anySet()
+        )).thenReturn(smbfile).thenThrow(smbError(NtStatus.STATUS_OBJECT_PATH_NOT_FOUND)).thenReturn(smbfile);
+
+        testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(diskShare, times(2)).mkdir(DIRECTORY);
+    }
+
+    private Set<SMB2CreateOptions> captureCreateOptions() {
+        ArgumentCaptor<Set<SMB2CreateOptions>> createOptions = ArgumentCaptor.forClass(Set.class);
+        verify(diskShare, times(1)).openFile(
+            any(String.class)
+            ,anySet()
+            ,anySet()
+            ,anySet()
+            ,any(SMB2CreateDisposition.class)
+            ,createOptions.capture()
+        );
+        return createOptions.getValue();
+    }
+
+    @Test
+    public void testWriteThroughByDefault() throws IOException {
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertTrue(captureCreateOptions().contains(SMB2CreateOptions.FILE_WRITE_THROUGH));
+        verify(smbfile, times(0)).flush();
+    }
+
+    @Test
+    public void testFlushOnClose() throws IOException {
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_ON_CLOSE);
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertFalse(captureCreateOptions().contains(SMB2CreateOptions.FILE_WRITE_THROUGH));
+        InOrder inOrder = inOrder(smbfile);
+        inOrder.verify(smbfile).flush();
+        inOrder.verify(smbfile).close();
+    }
+
+    @Test
+    public void testFlushOncePerBatch() throws IOException {
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_PER_BATCH);
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.enqueue("3");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        assertEquals("123", baOutputStream.toString());
+        InOrder inOrder = inOrder(smbfile);
+        inOrder.verify(smbfile, times(3)).getOutputStream();
+        inOrder.verify(smbfile, times(3)).flush();
+        inOrder.verify(smbfile, times(3)).close();
+    }
+
+    @Test
+    public void testFlushOncePerBatchFailureOnlyFailsThatFile() throws IOException {
+        doNothing().doThrow(smbError(NtStatus.STATUS_DISK_FULL)).doNothing().when(smbfile).flush();
+
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_PER_BATCH);
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.enqueue("3");
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 2);
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_FAILURE).get(0).assertContentEquals("2");
+        verify(smbfile, times(3)).close();
+    }
+
+    private static Map<String, String> destination(final String host, final String share) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("smb.host", host);
+        attributes.put("smb.share", share);
+        return attributes;
+    }
+
+    @Test
+    public void testDestinationsFromAttributes() throws IOException {
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "${smb.host}");
+        testRunner.setProperty(PutSmbFiles.SHARE, "${smb.share}");
+        testRunner.enqueue("1", destination("host1", SHARE));
+        testRunner.enqueue("2", destination("host2", SHARE));
+        testRunner.enqueue("3", destination("host1", SHARE));
+        testRunner.enqueue("4", destination("HOST2", SHARE));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 4);
+        verify(smbClient, times(1)).connect("host1");
+        verify(smbClient, times(1)).connect("host2");
+        verify(connection, times(2)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testDestinationsWrittenInParallel() throws IOException {
+        final CountDownLatch bothWriting = new CountDownLatch(2);
+        when(smbfile.getOutputStream()).thenAnswer(invocation -> {
+            bothWriting.countDown();
+            if (!bothWriting.await(10, TimeUnit.SECONDS)) {
+                throw new IOException("destinations were not written in parallel");
+            }
+            return new ByteArrayOutputStream();
+        });
+
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "${smb.host}");
+        testRunner.setProperty(PutSmbFiles.SHARE, "${smb.share}");
+        testRunner.enqueue("1", destination("host1", SHARE));
+        testRunner.enqueue("2", destination("host2", SHARE));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+    }
+
+    @Test
+    public void testDestinationConnectionErrorOnlyHoldsBackThatDestination() throws IOException {
+        when(smbClient.connect("unreachable")).thenThrow(new ConnectException("mock connection exception"));
+
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "${smb.host}");
+        testRunner.setProperty(PutSmbFiles.SHARE, "${smb.share}");
+        testRunner.enqueue("1", destination("unreachable", SHARE));
+        testRunner.enqueue("2", destination(HOSTNAME, SHARE));
+        testRunner.enqueue("3", destination("unreachable", SHARE));
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 1);
+        assertEquals(2, testRunner.getQueueSize().getObjectCount());
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0).assertContentEquals("2");
+    }
+
+    @Test
+    public void testEmptyDestinationFails() throws IOException {
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "${smb.host}");
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 1);
+        verify(smbClient, times(0)).connect(any(String.class));
+    }
+
+    @Test
+    public void testCircuitBreakerOpensAfterConsecutiveFailures() throws IOException {
+        when(smbClient.connect(any(String.class))).thenThrow(new ConnectException("mock connection exception"));
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_THRESHOLD, "2");
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_BACK_OFF, "1 hour");
+
+        testRunner.enqueue("1");
+        testRunner.run(1, false, true);
+        testRunner.enqueue("2");
+        testRunner.run(1, false, false);
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Circuit breakers opened"));
+
+        testRunner.enqueue("3");
+        testRunner.run(1, true, false);
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        assertEquals(3, testRunner.getQueueSize().getObjectCount());
+        verify(smbClient, times(2)).connect(any(String.class));
+    }
+
+    @Test
+    public void testCircuitBreakerClosedBySuccessfulProbe() throws IOException {
+        when(smbClient.connect(any(String.class)))
+            .thenThrow(new ConnectException("mock connection exception"))
+            .thenReturn(connection);
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_THRESHOLD, "1");
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_BACK_OFF, "0 sec");
+
+        testRunner.enqueue("1");
+        testRunner.run(1, false, true);
+        testRunner.enqueue("2");
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 2);
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Circuit breakers opened"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Circuit breakers closed"));
+    }
+
+    @Test
+    public void testCircuitBreakerSendsSingleProbe() throws IOException {
+        when(smbClient.connect(any(String.class)))
+            .thenThrow(new ConnectException("mock connection exception"))
+            .thenReturn(connection);
+        testRunner.setProperty(PutSmbFiles.SHARE, "${smb.share}");
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_THRESHOLD, "1");
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_BACK_OFF, "0 sec");
+
+        testRunner.enqueue("1", destination(HOSTNAME, SHARE));
+        testRunner.run(1, false, true);
+        testRunner.enqueue("2", destination(HOSTNAME, SHARE));
+        testRunner.enqueue("3", destination(HOSTNAME, "othershare"));
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 2);
+        assertEquals(1, testRunner.getQueueSize().getObjectCount());
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("FlowFiles held back by circuit breaker"));
+        verify(session, times(0)).connectShare("othershare");
+    }
+
+    @Test
+    public void testMissingShareDoesNotOpenCircuitBreaker() throws IOException {
+        when(session.connectShare(SHARE)).thenThrow(
+            new SMBApiException(NtStatus.STATUS_BAD_NETWORK_NAME.getValue(), SMB2MessageCommandCode.SMB2_TREE_CONNECT, null));
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_THRESHOLD, "1");
+        testRunner.setProperty(PutSmbFiles.CIRCUIT_BREAKER_BACK_OFF, "1 hour");
+
+        testRunner.enqueue("1");
+        testRunner.run(1, false, true);
+        testRunner.run(1, true, false);
+
+        assertEquals(1, testRunner.getQueueSize().getObjectCount());
+        assertNull(testRunner.getCounterValue("Circuit breakers opened"));
+        verify(session, times(2)).connectShare(SHARE);
+    }
+
+    @Test
+    public void testWriteCounters() throws IOException {
+        testRunner.enqueue("data");
+        testRunner.enqueue("more data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("SMB writes"));
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("Files written to \\\\smbhostname\\smbshare"));
+        assertEquals(Long.valueOf(13), testRunner.getCounterValue("Bytes written to \\\\smbhostname\\smbshare"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("SMB session borrows"));
+        assertNotNull(testRunner.getCounterValue("SMB open time (micros)"));
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0).assertAttributeNotExists(PutSmbFiles.WRITE_MILLIS_ATTRIBUTE);
+    }
+
+    @Test
+    public void testWriteFailureCounter() throws IOException {
+        when(smbfile.getOutputStream()).thenThrow(smbError(NtStatus.STATUS_DISK_FULL));
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 1);
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Write failures to \\\\smbhostname\\smbshare"));
+        assertNull(testRunner.getCounterValue("Files written to \\\\smbhostname\\smbshare"));
+    }
+
+    @Test
+    public void testTimingAttributes() throws IOException {
+        testRunner.setProperty(PutSmbFiles.TIMING_ATTRIBUTES, "true");
+        testRunner.enqueue("data");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals(PutSmbFiles.BYTES_ATTRIBUTE, "4");
+        assertTrue(Long.parseLong(flowFile.getAttribute(PutSmbFiles.WRITE_MILLIS_ATTRIBUTE)) >= 0);
+    }
+
+    @Test
+    public void testWritesToServerStandIn() throws IOException {
+        try (InMemorySmbServer server = new InMemorySmbServer().withMaxWriteSize(64 * 1024)) {
+            ((PutSmbFiles) testRunner.getProcessor()).initSmbClient(server.newClient());
+            testRunner.setProperty(PutSmbFiles.CREATE_DIRS, "true");
+            testRunner.setProperty(PutSmbFiles.MAX_CONCURRENT_WRITES, "2");
+            final byte[] large = InMemorySmbServer.content(3 * 1024 * 1024 + 17, 0);
+            testRunner.enqueue(large, Collections.singletonMap("filename", "large.bin"));
+            testRunner.enqueue("small", Collections.singletonMap("filename", "small.txt"));
+            testRunner.run();
+
+            testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+            assertArrayEquals(large, server.getFileContent(SHARE, DIRECTORY + "\\large.bin"));
+            assertArrayEquals("small".getBytes(), server.getFileContent(SHARE, DIRECTORY + "\\small.txt"));
+        }
+    }
+
+    private void useServerForCopies() {
+        useServer(new InMemorySmbServer());
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, "${dir}");
+        testRunner.setProperty(PutSmbFiles.SERVER_COPY_CACHE_SIZE, "100");
+        testRunner.setProperty(PutSmbFiles.SERVER_COPY_THRESHOLD, "1 KB");
+    }
+
+    @Test
+    public void testDuplicatesCopiedOnServer() {
+        useServerForCopies();
+        final byte[] content = InMemorySmbServer.content(COPY_SIZE, 0);
+        enqueueFile("data.bin", content, "a");
+        enqueueFile("data.bin", content, "b");
+        enqueueFile("data.bin", content, "c");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        for (final String directory : new String[]{"a", "b", "c"}) {
+            assertArrayEquals(content, server.getFileContent(SHARE, directory + "\\data.bin"));
+        }
+        assertEquals(COPY_SIZE, server.getBytesWritten());
+        assertEquals(2 * COPY_SIZE, server.getBytesCopied());
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("Files copied on server"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testDuplicatesCopiedOnServerWhenCloseSetsWriteTime() {
+        useServerForCopies();
+        server.withWriteTimeOnClose(true);
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_ON_CLOSE);
+        final byte[] content = InMemorySmbServer.content(COPY_SIZE, 0);
+        enqueueFile("data.bin", content, "a");
+        enqueueFile("data.bin", content, "b");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertArrayEquals(content, server.getFileContent(SHARE, "b\\data.bin"));
+        assertEquals(COPY_SIZE, server.getBytesCopied());
+    }
+
+    @Test
+    public void testOtherContentUploaded() {
+        useServerForCopies();
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "a");
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 1), "b");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertArrayEquals(InMemorySmbServer.content(COPY_SIZE, 1), server.getFileContent(SHARE, "b\\data.bin"));
+        assertEquals(0, server.getBytesCopied());
+    }
+
+    @Test
+    public void testSmallFilesNotHashed() {
+        useServerForCopies();
+        testRunner.setProperty(PutSmbFiles.SERVER_COPY_THRESHOLD, "1 MB");
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "a");
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "b");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertEquals(2 * COPY_SIZE, server.getBytesWritten());
+        assertEquals(0, server.getBytesCopied());
+    }
+
+    @Test
+    public void testChangedSourceNotCopied() {
+        useServerForCopies();
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "a");
+        testRunner.run(1, false, true);
+
+        // replaced by someone else with content of the same size
+        server.addFile(SHARE, "a\\data.bin", InMemorySmbServer.content(COPY_SIZE, 1), System.currentTimeMillis() + 60000);
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "b");
+        testRunner.run(1, false, false);
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertArrayEquals(InMemorySmbServer.content(COPY_SIZE, 0), server.getFileContent(SHARE, "b\\data.bin"));
+        assertEquals(0, server.getBytesCopied());
+    }
+
+    @Test
+    public void testFileNotCopiedOntoItself() {
+        useServerForCopies();
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "a");
+        enqueueFile("data.bin", InMemorySmbServer.content(COPY_SIZE, 0), "a");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        assertArrayEquals(InMemorySmbServer.content(COPY_SIZE, 0), server.getFileContent(SHARE, "a\\data.bin"));
+        assertEquals(0, server.getBytesCopied());
+    }
+
+    private void useServerForResumableUploads() {
+        useServer(new InMemorySmbServer().withMaxWriteSize(RESUMABLE_CHUNK));
+        testRunner.setProperty(PutSmbFiles.WRITE_CHUNK_SIZE, "64 KB");
+        testRunner.setProperty(PutSmbFiles.RESUMABLE_UPLOAD_THRESHOLD, "1 MB");
+    }
+
+    private static String temporaryPath(final MockFlowFile flowFile) {
+        return DIRECTORY + "\\.data.bin." + flowFile.getAttribute("uuid") + ".partial";
+    }
+
+    /**
+     * Fails the upload of the queued file once most of it has been written
+     * and queues it again for another attempt.
+     */
+    private MockFlowFile failMostOfTheWay() {
+        server.withConnectionDropAfter(RESUMABLE_SIZE * 9L / 10);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_FAILURE, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_FAILURE).get(0);
+        testRunner.clearTransferState();
+        testRunner.enqueue(flowFile);
+        return flowFile;
+    }
+
+    @Test
+    public void testResumesFromConfirmedOffset() {
+        useServerForResumableUploads();
+        final byte[] content = InMemorySmbServer.content(RESUMABLE_SIZE, 0);
+        enqueueFile("data.bin", content);
+        final MockFlowFile failed = failMostOfTheWay();
+
+        final long offset = Long.parseLong(failed.getAttribute(PutSmbFiles.RESUME_OFFSET_ATTRIBUTE));
+        assertTrue(offset >= RESUMABLE_SIZE / 2 && offset < RESUMABLE_SIZE);
+        assertEquals(0, offset % RESUMABLE_CHUNK);
+        assertNotNull(failed.getAttribute(PutSmbFiles.RESUME_CHECKSUM_ATTRIBUTE));
+        assertEquals(-1, server.getFileSize(SHARE, DIRECTORY + "\\data.bin"));
+        assertTrue(server.getFileSize(SHARE, temporaryPath(failed)) >= offset);
+
+        final long written = server.getBytesWritten();
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0);
+        flowFile.assertAttributeNotExists(PutSmbFiles.RESUME_OFFSET_ATTRIBUTE);
+        flowFile.assertAttributeNotExists(PutSmbFiles.RESUME_CHECKSUM_ATTRIBUTE);
+        assertArrayEquals(content, server.getFileContent(SHARE, DIRECTORY + "\\data.bin"));
+        assertEquals(RESUMABLE_SIZE - offset, server.getBytesWritten() - written);
+        assertEquals(-1, server.getFileSize(SHARE, temporaryPath(failed)));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Uploads resumed"));
+        assertEquals(Long.valueOf(offset), testRunner.getCounterValue("Bytes not uploaded again"));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testStartsOverIfPartialFileChanged() {
+        useServerForResumableUploads();
+        final byte[] content = InMemorySmbServer.content(RESUMABLE_SIZE, 0);
+        enqueueFile("data.bin", content);
+        final MockFlowFile failed = failMostOfTheWay();
+
+        // same length, other data
+        server.addFile(SHARE, temporaryPath(failed), InMemorySmbServer.content(RESUMABLE_SIZE, 1), System.currentTimeMillis());
+        final long written = server.getBytesWritten();
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertArrayEquals(content, server.getFileContent(SHARE, DIRECTORY + "\\data.bin"));
+        assertEquals(RESUMABLE_SIZE, server.getBytesWritten() - written);
+        assertNull(testRunner.getCounterValue("Uploads resumed"));
+    }
+
+    @Test
+    public void testStartsOverIfPartialFileShorter() {
+        useServerForResumableUploads();
+        final byte[] content = InMemorySmbServer.content(RESUMABLE_SIZE, 0);
+        enqueueFile("data.bin", content);
+        final MockFlowFile failed = failMostOfTheWay();
+
+        server.addFile(SHARE, temporaryPath(failed), new byte[RESUMABLE_CHUNK], System.currentTimeMillis());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertArrayEquals(content, server.getFileContent(SHARE, DIRECTORY + "\\data.bin"));
+        assertNull(testRunner.getCounterValue("Uploads resumed"));
+    }
+
+    @Test
+    public void testSmallFilesWrittenInPlace() {
+        useServerForResumableUploads();
+        testRunner.setProperty(PutSmbFiles.RESUMABLE_UPLOAD_THRESHOLD, "10 MB");
+        enqueueFile("data.bin", InMemorySmbServer.content(RESUMABLE_SIZE, 0));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertEquals(1, server.getFileCount(SHARE));
+        assertArrayEquals(InMemorySmbServer.content(RESUMABLE_SIZE, 0), server.getFileContent(SHARE, DIRECTORY + "\\data.bin"));
+    }
+
+    @Test
+    public void testResumableUploadIgnoresExistingFile() {
+        useServerForResumableUploads();
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.IGNORE_RESOLUTION);
+        server.addFile(SHARE, DIRECTORY + "\\data.bin", "remote".getBytes(), 0);
+        enqueueFile("data.bin", InMemorySmbServer.content(RESUMABLE_SIZE, 0));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        assertArrayEquals("remote".getBytes(), server.getFileContent(SHARE, DIRECTORY + "\\data.bin"));
+        assertEquals(1, server.getFileCount(SHARE));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testResumableUploadRenamesOnConflict() {
+        useServerForResumableUploads();
+        testRunner.setProperty(PutSmbFiles.CONFLICT_RESOLUTION, PutSmbFiles.RENAME_RESOLUTION);
+        server.addFile(SHARE, DIRECTORY + "\\data.bin", "remote".getBytes(), 0);
+        enqueueFile("data.bin", InMemorySmbServer.content(RESUMABLE_SIZE, 0));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PutSmbFiles.REL_SUCCESS).get(0).assertAttributeEquals("filename", "data_1.bin");
+        assertArrayEquals(InMemorySmbServer.content(RESUMABLE_SIZE, 0), server.getFileContent(SHARE, DIRECTORY + "\\data_1.bin"));
+        assertEquals(2, server.getFileCount(SHARE));
+    }
+
+    private void useServerWithTwoHeads() {
+        useServer(new InMemorySmbServer());
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "head1, head2");
+    }
+
+    private void enqueueFiles(final int count) {
+        for (int i = 0; i < count; i++) {
+            enqueueFile("file" + i + ".bin", InMemorySmbServer.content(FAILOVER_SIZE, i));
+        }
+    }
+
+    private Long filesWrittenTo(final String hostname) {
+        return testRunner.getCounterValue("Files written to \\\\" + hostname + "\\" + SHARE);
+    }
+
+    @Test
+    public void testFailsOverToNextHost() {
+        useServerWithTwoHeads();
+        server.withHostDown("head1", true);
+        enqueueFiles(3);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        assertEquals(Long.valueOf(3), filesWrittenTo("head2"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Failovers"));
+        assertArrayEquals(InMemorySmbServer.content(FAILOVER_SIZE, 2), server.getFileContent(SHARE, DIRECTORY + "\\file2.bin"));
+    }
+
+    @Test
+    public void testBatchMovesWhenHostIsLostMidway() {
+        useServerWithTwoHeads();
+        server.withConnectionDropAfter(FAILOVER_SIZE * 5L / 2);
+        enqueueFiles(5);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 5);
+        assertEquals(Long.valueOf(2), filesWrittenTo("head1"));
+        assertEquals(Long.valueOf(3), filesWrittenTo("head2"));
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(InMemorySmbServer.content(FAILOVER_SIZE, i), server.getFileContent(SHARE, DIRECTORY + "\\file" + i + ".bin"));
+        }
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testBatchMovesWithDeferredFlushesWhenHostIsLostMidway() {
+        useServerWithTwoHeads();
+        testRunner.setProperty(PutSmbFiles.DURABILITY, PutSmbFiles.DURABILITY_FLUSH_PER_BATCH);
+        server.withConnectionDropAfter(FAILOVER_SIZE * 5L / 2);
+        enqueueFiles(5);
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 5);
+        assertEquals(Long.valueOf(5), filesWrittenTo("head2"));
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(InMemorySmbServer.content(FAILOVER_SIZE, i), server.getFileContent(SHARE, DIRECTORY + "\\file" + i + ".bin"));
+        }
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testAllHostsDownLeavesFlowFilesQueued() {
+        useServerWithTwoHeads();
+        server.withHostDown("head1", true).withHostDown("head2", true);
+        enqueueFiles(3);
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        testRunner.assertTransferCount(PutSmbFiles.REL_SUCCESS, 0);
+        assertEquals(3, testRunner.getQueueSize().getObjectCount());
+        assertEquals(Long.valueOf(3), testRunner.getCounterValue("FlowFiles held back after failover"));
+
+        server.withHostDown("head2", false);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+    }
+
+    @Test
+    public void testSingleHostDownLeavesFlowFilesQueued() {
+        useServerWithTwoHeads();
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, "head1");
+        server.withHostDown("head1", true);
+        enqueueFiles(1);
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSmbFiles.REL_FAILURE, 0);
+        assertEquals(1, testRunner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void testHostListMustNotBeEmpty() {
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, ", ");
+        testRunner.assertNotValid();
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, ", head1");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testRoundRobin() {
+        useServerWithTwoHeads();
+        testRunner.setProperty(PutSmbFiles.HOST_SELECTION_POLICY, PutSmbFiles.HOST_SELECTION_ROUND_ROBIN);
+        // the selector lives as long as the processor is scheduled
+        for (int i = 0; i < 4; i++) {
+            enqueueFile("file" + i + ".bin", InMemorySmbServer.content(FAILOVER_SIZE, i));
+            testRunner.run(1, false, i == 0);
+        }
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 4);
+        assertEquals(Long.valueOf(2), filesWrittenTo("head1"));
+        assertEquals(Long.valueOf(2), filesWrittenTo("head2"));
+    }
+
+    @Test
+    public void testLowestLatency() {
+        useServerWithTwoHeads();
+        testRunner.setProperty(PutSmbFiles.HOST_SELECTION_POLICY, PutSmbFiles.HOST_SELECTION_LOWEST_LATENCY);
+        server.withHostLatency("head1", 50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 5; i++) {
+            enqueueFile("file" + i + ".bin", InMemorySmbServer.content(FAILOVER_SIZE, i));
+            testRunner.run(1, false, i == 0);
+        }
+
+        // each host is measured once, then the faster one is kept
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 5);
+        assertEquals(Long.valueOf(1), filesWrittenTo("head1"));
+        assertEquals(Long.valueOf(4), filesWrittenTo("head2"));
+    }
+
+    @Test
+    public void testSlowHostIsUnhealthy() {
+        useServerWithTwoHeads();
+        testRunner.setProperty(PutSmbFiles.MAX_HOST_LATENCY, "20 ms");
+        server.withHostLatency("head1", 50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 3; i++) {
+            enqueueFile("file" + i + ".bin", InMemorySmbServer.content(FAILOVER_SIZE, i));
+            testRunner.run(1, false, i == 0);
+        }
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 3);
+        assertEquals(Long.valueOf(1), filesWrittenTo("head1"));
+        assertEquals(Long.valueOf(2), filesWrittenTo("head2"));
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.processors.smb;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PutSmbRecordTest {
+
+    private static final String SHARE = "share";
+
+    private TestRunner testRunner;
+    private InMemorySmbServer server;
+    private MockRecordParser parser;
+
+    @Before
+    public void init() throws InitializationException {
+        server = new InMemorySmbServer();
+        testRunner = TestRunners.newTestRunner(PutSmbRecord.class);
+        ((PutSmbRecord) testRunner.getProcessor()).initSmbClient(server.newClient());
+
+        parser = new MockRecordParser();
+        parser.addSchemaField("site", RecordFieldType.STRING);
+        parser.addSchemaField("value", RecordFieldType.INT);
+        testRunner.addControllerService("reader", parser);
+        testRunner.enableControllerService(parser);
+        final MockRecordWriter writer = new MockRecordWriter(null, false);
+        testRunner.addControllerService("writer", writer);
+        testRunner.enableControllerService(writer);
+
+        testRunner.setProperty(PutSmbRecord.HOSTNAME, "host");
+        testRunner.setProperty(PutSmbRecord.SHARE, SHARE);
+        testRunner.setProperty(PutSmbRecord.RECORD_READER, "reader");
+        testRunner.setProperty(PutSmbRecord.RECORD_WRITER, "writer");
+        testRunner.setProperty(PutSmbRecord.DIRECTORY, "out/${smb.partition}");
+        testRunner.setProperty(PutSmbRecord.FILENAME, "part-${smb.file.index}.csv");
+        testRunner.setProperty(PutSmbRecord.CREATE_DIRS, "true");
+    }
+
+    @After
+    public void close() {
+        server.close();
+    }
+
+    private String content(final String path) {
+        return new String(server.getFileContent(SHARE, path));
+    }
+
+    private MockFlowFile runSuccessfully() {
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutSmbRecord.REL_SUCCESS, 1);
+        assertEquals(0, server.getOpenHandles());
+        return testRunner.getFlowFilesForRelationship(PutSmbRecord.REL_SUCCESS).get(0);
+    }
+
+    @Test
+    public void testPartitionsIntoDirectories() {
+        testRunner.setProperty(PutSmbRecord.PARTITION_RECORD_PATH, "/site");
+        parser.addRecord("a", 1);
+        parser.addRecord("b", 2);
+        parser.addRecord("a", 3);
+        parser.addRecord("b", 4);
+        parser.addRecord("a", 5);
+        final MockFlowFile flowFile = runSuccessfully();
+
+        flowFile.assertAttributeEquals(PutSmbRecord.RECORD_COUNT_ATTRIBUTE, "5");
+        flowFile.assertAttributeEquals(PutSmbRecord.FILE_COUNT_ATTRIBUTE, "2");
+        assertEquals("a,1\na,3\na,5\n", content("out\\a\\part-0.csv"));
+        assertEquals("b,2\nb,4\n", content("out\\b\\part-0.csv"));
+        assertEquals(2, server.getFileCount(SHARE));
+        assertEquals(Long.valueOf(5), testRunner.getCounterValue("Records written to \\\\host\\" + SHARE));
+    }
+
+    @Test
+    public void testPartitionValueCannotLeaveDirectory() {
+        testRunner.setProperty(PutSmbRecord.PARTITION_RECORD_PATH, "/site");
+        parser.addRecord("../x:y", 1);
+        parser.addRecord(null, 2);
+        runSuccessfully();
+
+        assertEquals("../x:y,1\n", content("out\\x_y\\part-0.csv"));
+        assertEquals(",2\n", content("out\\part-0.csv"));
+    }
+
+    @Test
+    public void testRotatesByRecordCount() {
+        testRunner.setProperty(PutSmbRecord.MAX_RECORDS_PER_FILE, "2");
+        for (int i = 0; i < 5; i++) {
+            parser.addRecord("a", i);
+        }
+        final MockFlowFile flowFile = runSuccessfully();
+
+        flowFile.assertAttributeEquals(PutSmbRecord.FILE_COUNT_ATTRIBUTE, "3");
+        assertEquals("a,0\na,1\n", content("out\\part-0.csv"));
+        assertEquals("a,2\na,3\n", content("out\\part-1.csv"));
+        assertEquals("a,4\n", content("out\\part-2.csv"));
+    }
+
+    @Test
+    public void testRotatesBySize() {
+        testRunner.setProperty(PutSmbRecord.MAX_FILE_SIZE, "8 B");
+        for (int i = 0; i < 5; i++) {
+            parser.addRecord("a", i);
+        }
+        runSuccessfully();
+
+        assertEquals(3, server.getFileCount(SHARE));
+        assertEquals("a,4\n", content("out\\part-2.csv"));
+    }
+
+    @Test
+    public void testOpenFilesBounded() {
+        testRunner.setProperty(PutSmbRecord.PARTITION_RECORD_PATH, "/site");
+        testRunner.setProperty(PutSmbRecord.MAX_OPEN_FILES, "1");
+        parser.addRecord("a", 1);
+        parser.addRecord("b", 2);
+        parser.addRecord("a", 3);
+        parser.addRecord("b", 4);
+        final MockFlowFile flowFile = runSuccessfully();
+
+        flowFile.assertAttributeEquals(PutSmbRecord.FILE_COUNT_ATTRIBUTE, "4");
+        assertEquals(1, server.getMaxOpenHandles());
+        assertEquals("a,1\n", content("out\\a\\part-0.csv"));
+        assertEquals("a,3\n", content("out\\a\\part-1.csv"));
+        assertEquals("b,4\n", content("out\\b\\part-1.csv"));
+        assertEquals(Long.valueOf(3), testRunner.getCounterValue("Files closed for the open file limit"));
+    }
+
+    @Test
+    public void testFailureRemovesWrittenFiles() {
+        testRunner.setProperty(PutSmbRecord.PARTITION_RECORD_PATH, "/site");
+        testRunner.setProperty(PutSmbRecord.MAX_RECORDS_PER_FILE, "1");
+        parser.addRecord("a", 1);
+        parser.addRecord("b", 2);
+        parser.addRecord("a", 3);
+        parser.addRecord("b", 4);
+        parser.failAfter(3);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbRecord.REL_FAILURE, 1);
+        assertEquals(0, server.getFileCount(SHARE));
+        assertEquals(0, server.getOpenHandles());
+    }
+
+    @Test
+    public void testSameFileTwiceFails() {
+        testRunner.setProperty(PutSmbRecord.FILENAME, "data.csv");
+        testRunner.setProperty(PutSmbRecord.MAX_RECORDS_PER_FILE, "1");
+        parser.addRecord("a", 1);
+        parser.addRecord("a", 2);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbRecord.REL_FAILURE, 1);
+        assertEquals(0, server.getFileCount(SHARE));
+    }
+}
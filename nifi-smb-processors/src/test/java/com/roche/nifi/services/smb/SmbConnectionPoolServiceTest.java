@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.roche.nifi.services.smb;
+
+import com.roche.nifi.processors.smb.PutSmbFiles;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.any;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+public class SmbConnectionPoolServiceTest {
+
+    private TestRunner testRunner;
+    private SmbConnectionPoolService poolService;
+
+    private SMBClient smbClient;
+    private Connection connection;
+    private Session session;
+    private DiskShare diskShare;
+
+    private final static String POOL_ID = "smb-pool";
+    private final static String HOSTNAME = "smbhostname";
+    private final static String SHARE = "smbshare";
+    private final static String USERNAME = "myusername";
+    private final static String PASSWORD = "mypassword";
+
+    @Before
+    public void init() throws IOException, InitializationException {
+        smbClient = mock(SMBClient.class);
+        connection = mock(Connection.class);
+        session = mock(Session.class);
+        diskShare = mock(DiskShare.class);
+        final File smbfile = mock(File.class);
+
+        when(smbClient.connect(any(String.class))).thenReturn(connection);
+        when(connection.authenticate(any(AuthenticationContext.class))).thenReturn(session);
+        when(connection.isConnected()).thenReturn(true);
+        when(session.connectShare(SHARE)).thenReturn(diskShare);
+        when(diskShare.isConnected()).thenReturn(true);
+        when(diskShare.openFile(
+                any(String.class)
+                ,anySet()
+                ,anySet()
+                ,anySet()
+                ,any(SMB2CreateDisposition.class)
+                ,anySet()
+        )).thenReturn(smbfile);
+        when(smbfile.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+        testRunner = TestRunners.newTestRunner(PutSmbFiles.class);
+        poolService = new SmbConnectionPoolService();
+        testRunner.addControllerService(POOL_ID, poolService);
+        poolService.initSmbClient(smbClient);
+        testRunner.setProperty(poolService, SmbConnectionPoolService.USERNAME, USERNAME);
+        testRunner.setProperty(poolService, SmbConnectionPoolService.PASSWORD, PASSWORD);
+
+        testRunner.setProperty(PutSmbFiles.CONNECTION_POOL, POOL_ID);
+        testRunner.setProperty(PutSmbFiles.HOSTNAME, HOSTNAME);
+        testRunner.setProperty(PutSmbFiles.SHARE, SHARE);
+        testRunner.setProperty(PutSmbFiles.DIRECTORY, "smbdirectory");
+    }
+
+    @Test
+    public void testProcessorBorrowsFromService() throws IOException {
+        testRunner.enableControllerService(poolService);
+        testRunner.setProperty(PutSmbFiles.BATCH_SIZE, "1");
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testSessionsOutliveProcessorStop() throws IOException {
+        testRunner.enableControllerService(poolService);
+        testRunner.enqueue("1");
+        testRunner.run();
+        testRunner.enqueue("2");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSmbFiles.REL_SUCCESS, 2);
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void testCredentialsOnProcessorNotAllowed() {
+        testRunner.enableControllerService(poolService);
+        testRunner.setProperty(PutSmbFiles.USERNAME, USERNAME);
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testMaxConnectionsPerShare() throws IOException {
+        testRunner.setProperty(poolService, SmbConnectionPoolService.MAX_CONNECTIONS_PER_SHARE, "1");
+        testRunner.setProperty(poolService, SmbConnectionPoolService.MAX_WAIT_TIME, "10 millis");
+        testRunner.enableControllerService(poolService);
+
+        final SmbShareLease first = poolService.borrow(HOSTNAME, SHARE);
+        try {
+            poolService.borrow(HOSTNAME, SHARE);
+            fail("second borrow should time out while the only connection is in use");
+        } catch (IOException e) {
+            // expected
+        }
+        first.close();
+
+        try (SmbShareLease second = poolService.borrow(HOSTNAME, SHARE)) {
+            assertSame(diskShare, second.getShare());
+        }
+    }
+
+    @Test
+    public void testInvalidatedLeaseIsNotReused() throws IOException {
+        testRunner.enableControllerService(poolService);
+
+        final SmbShareLease first = poolService.borrow(HOSTNAME, SHARE);
+        first.invalidate();
+        first.close();
+        poolService.borrow(HOSTNAME, SHARE).close();
+
+        verify(connection, times(2)).authenticate(any(AuthenticationContext.class));
+        verify(diskShare, times(1)).close();
+    }
+}